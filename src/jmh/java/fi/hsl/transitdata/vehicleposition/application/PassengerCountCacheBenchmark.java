@@ -0,0 +1,197 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.utils.CachedPassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.utils.PassengerCountCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares looking up the passenger count of a vehicle from {@link PassengerCountCache}, which only stores the fields
+ * needed for the occupancy status, with storing the whole passenger count payload and the trip it was received for.
+ * Heap used per cached vehicle is printed for both in the setup.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Djmh.args="PassengerCountCacheBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PassengerCountCacheBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    @Param({ "10000" })
+    public int vehicles;
+
+    private VehicleState[] vehicleStates;
+    private String[] routeIds;
+    private String[] startTimes;
+    private String[] directionIds;
+    private int[] lookupIndexes;
+
+    private PassengerCountCache passengerCountCache;
+    private PayloadCache payloadCache;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+
+        vehicleStates = new VehicleState[vehicles];
+        routeIds = new String[vehicles];
+        startTimes = new String[vehicles];
+        directionIds = new String[vehicles];
+        final PassengerCount.Payload[] payloads = new PassengerCount.Payload[vehicles];
+
+        for (int i = 0; i < vehicles; i++) {
+            vehicleStates[i] = new VehicleState(1 + i % 60, 100 + i);
+            routeIds[i] = String.valueOf(1000 + random.nextInt(500));
+            startTimes[i] = String.format("%02d:%02d", 5 + random.nextInt(18), random.nextInt(60));
+            directionIds[i] = String.valueOf(1 + random.nextInt(2));
+            payloads[i] = createPayload(random, i);
+        }
+
+        lookupIndexes = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookupIndexes[i] = random.nextInt(vehicles);
+        }
+
+        final long baselineHeap = usedHeap();
+        payloadCache = new PayloadCache();
+        for (int i = 0; i < vehicles; i++) {
+            payloadCache.updatePassengerCount(vehicleStates[i], routeIds[i], "2023-01-01", startTimes[i], directionIds[i], payloads[i]);
+        }
+        final long payloadCacheHeap = usedHeap() - baselineHeap;
+
+        passengerCountCache = new PassengerCountCache(Duration.ofMinutes(5), 0, Clock.systemUTC());
+        for (int i = 0; i < vehicles; i++) {
+            passengerCountCache.updatePassengerCount(vehicleStates[i], routeIds[i], "2023-01-01", startTimes[i], directionIds[i], payloads[i]);
+        }
+        final long passengerCountCacheHeap = usedHeap() - baselineHeap - payloadCacheHeap;
+
+        System.out.println();
+        System.out.println("Heap per cached vehicle with whole payload: " + payloadCacheHeap / vehicles + " bytes");
+        System.out.println("Heap per cached vehicle with occupancy fields: " + passengerCountCacheHeap / vehicles + " bytes");
+    }
+
+    private static PassengerCount.Payload createPayload(Random random, int vehicle) {
+        final int vehicleLoad = random.nextInt(80);
+
+        //Parsed from bytes like messages received from Pulsar, so that the heap usage is comparable
+        try {
+            return PassengerCount.Payload.parseFrom(PassengerCount.Payload.newBuilder()
+                    .setDesi(String.valueOf(random.nextInt(600)))
+                    .setDir(String.valueOf(1 + random.nextInt(2)))
+                    .setJrn(random.nextInt(1000))
+                    .setLat(60.1 + random.nextDouble() * 0.2)
+                    .setLine(random.nextInt(1000))
+                    .setLoc("GPS")
+                    .setLong(24.8 + random.nextDouble() * 0.4)
+                    .setOday("2023-01-01")
+                    .setOdo(random.nextInt(100000))
+                    .setOper(1 + vehicle % 60)
+                    .setRoute(String.valueOf(1000 + random.nextInt(500)))
+                    .setStart(String.format("%02d:%02d", 5 + random.nextInt(18), random.nextInt(60)))
+                    .setStop(1000000 + random.nextInt(10000))
+                    .setTsi(1672567200L + vehicle)
+                    .setTst(1672567200000L + vehicle)
+                    .setVeh(100 + vehicle)
+                    .setVehicleCounts(PassengerCount.VehicleCounts.newBuilder()
+                            .setCountQuality("regular")
+                            .setVehicleLoad(vehicleLoad)
+                            .setVehicleLoadRatio(vehicleLoad / 80.0))
+                    .build()
+                    .toByteArray());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public double passengerCountCache() {
+        double sum = 0;
+        for (int i : lookupIndexes) {
+            final CachedPassengerCount passengerCount = passengerCountCache.getPassengerCount(vehicleStates[i], routeIds[i], "2023-01-01", startTimes[i], directionIds[i]);
+            if (passengerCount != null) {
+                sum += passengerCount.getVehicleLoadRatio();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public double payloadCache() {
+        double sum = 0;
+        for (int i : lookupIndexes) {
+            final PassengerCount.Payload passengerCount = payloadCache.getPassengerCount(vehicleStates[i], routeIds[i], "2023-01-01", startTimes[i], directionIds[i]);
+            if (passengerCount != null) {
+                sum += passengerCount.getVehicleCounts().getVehicleLoadRatio();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Stores the whole passenger count payload with the trip and the time it was received
+     */
+    private static class PayloadCache {
+        private final Map<VehicleState, CachedPayload> payloads = new HashMap<>();
+
+        void updatePassengerCount(VehicleState vehicleState, String routeId, String operatingDay, String startTime, String directionId, PassengerCount.Payload passengerCount) {
+            final GtfsRealtime.TripDescriptor trip = GtfsRealtime.TripDescriptor.newBuilder()
+                    .setRouteId(routeId)
+                    .setStartDate(operatingDay)
+                    .setStartTime(startTime)
+                    .setDirectionId(Integer.parseInt(directionId))
+                    .build();
+            payloads.put(vehicleState, new CachedPayload(passengerCount, trip, System.currentTimeMillis()));
+        }
+
+        PassengerCount.Payload getPassengerCount(VehicleState vehicleState, String routeId, String operatingDay, String startTime, String directionId) {
+            final CachedPayload cached = payloads.get(vehicleState);
+            if (cached == null || System.currentTimeMillis() - cached.receivedAtMs >= 5 * 60 * 1000) {
+                return null;
+            }
+
+            if (!Objects.equals(cached.trip.getRouteId(), routeId)
+                    || !Objects.equals(cached.trip.getStartDate(), operatingDay)
+                    || !Objects.equals(cached.trip.getStartTime(), startTime)
+                    || cached.trip.getDirectionId() != Integer.parseInt(directionId)) {
+                return null;
+            }
+
+            return cached.payload;
+        }
+    }
+
+    private static class CachedPayload {
+        final PassengerCount.Payload payload;
+        final GtfsRealtime.TripDescriptor trip;
+        final long receivedAtMs;
+
+        CachedPayload(PassengerCount.Payload payload, GtfsRealtime.TripDescriptor trip, long receivedAtMs) {
+            this.payload = payload;
+            this.trip = trip;
+            this.receivedAtMs = receivedAtMs;
+        }
+    }
+}
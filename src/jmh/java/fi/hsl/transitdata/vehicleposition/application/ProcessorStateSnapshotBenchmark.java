@@ -0,0 +1,94 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripDescriptor;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures capturing, writing and restoring a state snapshot of a fleet of vehicles. Size of the snapshot is printed
+ * when the benchmark is set up.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Djmh.args="ProcessorStateSnapshotBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessorStateSnapshotBenchmark {
+    private static final GtfsRealtime.VehiclePosition.VehicleStopStatus[] STOP_STATUSES = GtfsRealtime.VehiclePosition.VehicleStopStatus.values();
+
+    @Param({ "5000" })
+    public int vehicles;
+
+    private Path file;
+    private VehicleStateStore vehicleStates;
+    private ProcessorStateSnapshotter snapshotter;
+    private ProcessorStateSnapshotter.Slot slot;
+
+    @Setup
+    public void setup() throws IOException {
+        final Random random = new Random(42);
+        final String operatingDay = LocalDate.now().toString();
+
+        final TripVehicleCache tripVehicleCache = new TripVehicleCache();
+        vehicleStates = new VehicleStateStore();
+
+        for (int i = 0; i < vehicles; i++) {
+            final int operatorId = 1 + i % 60;
+            final int vehicleNumber = 100 + i;
+            final String vehicleId = operatorId + "/" + vehicleNumber;
+            final TripDescriptor trip = new TripDescriptor(String.valueOf(1000 + random.nextInt(9000)), operatingDay,
+                    String.format("%02d:%02d", random.nextInt(24), random.nextInt(60)), String.valueOf(1 + random.nextInt(2)));
+
+            final VehicleState vehicleState = vehicleStates.getOrCreate(operatorId, vehicleNumber);
+            vehicleState.setLatestTimestamp(System.currentTimeMillis() / 1000 - random.nextInt(60));
+            vehicleState.setStopStatus(new StopStatusProcessor.StopStatus(String.valueOf(1_000_000 + random.nextInt(1_000_000)), STOP_STATUSES[random.nextInt(STOP_STATUSES.length)]));
+            vehicleState.setTrip(trip, tripVehicleCache.registerVehicleForTrip(vehicleId, trip));
+        }
+
+        file = Files.createTempFile("state-snapshot", ".bin");
+        snapshotter = new ProcessorStateSnapshotter(file, Duration.ofSeconds(30), Duration.ofMinutes(10), tripVehicleCache);
+        slot = snapshotter.newSlot(vehicleKey -> true);
+        slot.capture(vehicleStates.getAll());
+        snapshotter.writeSnapshot();
+
+        System.out.println("State snapshot of " + vehicles + " vehicles is " + Files.size(file) + " bytes");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public ProcessorStateSnapshotter.Slot capture() {
+        slot.capture(vehicleStates.getAll());
+        return slot;
+    }
+
+    @Benchmark
+    public byte[] createSnapshot() throws IOException {
+        return snapshotter.createSnapshot(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public VehicleStateStore restore() {
+        final ProcessorStateSnapshotter restoringSnapshotter = new ProcessorStateSnapshotter(file, Duration.ofSeconds(30), Duration.ofMinutes(10), new TripVehicleCache());
+        restoringSnapshotter.restore();
+
+        final VehicleStateStore restored = new VehicleStateStore();
+        restoringSnapshotter.newSlot(vehicleKey -> true).restore(restored);
+        return restored;
+    }
+}
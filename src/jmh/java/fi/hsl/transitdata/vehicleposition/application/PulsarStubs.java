@@ -0,0 +1,462 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.common.transitdata.TransitdataProperties;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerStats;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Messages;
+import org.apache.pulsar.client.api.transaction.Transaction;
+import org.apache.pulsar.common.api.EncryptionContext;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Hand-written stand-ins for the Pulsar consumer and messages used in benchmarks. Unlike mocks, the stubs only return
+ * preset fields, so calling them does not allocate and the allocation rate of a benchmark only contains the processor.
+ * Only the methods used by the processor are supported, other methods throw {@link UnsupportedOperationException}.
+ */
+final class PulsarStubs {
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    private PulsarStubs() {}
+
+    /**
+     * Message with preset data, event time and protobuf schema
+     */
+    static class StubMessage implements Message<byte[]> {
+        private final Map<String, String> properties;
+        private final byte[] data;
+        private final long eventTimeMs;
+
+        StubMessage(TransitdataProperties.ProtobufSchema protobufSchema, byte[] data, long eventTimeMs) {
+            this.properties = Collections.singletonMap(TransitdataProperties.KEY_PROTOBUF_SCHEMA, protobufSchema.toString());
+            this.data = data;
+            this.eventTimeMs = eventTimeMs;
+        }
+
+        @Override
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public boolean hasProperty(String name) {
+            return properties.containsKey(name);
+        }
+
+        @Override
+        public String getProperty(String name) {
+            return properties.get(name);
+        }
+
+        @Override
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public int size() {
+            return data.length;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return data;
+        }
+
+        @Override
+        public MessageId getMessageId() {
+            return MessageId.earliest;
+        }
+
+        @Override
+        public long getPublishTime() {
+            return eventTimeMs;
+        }
+
+        @Override
+        public long getEventTime() {
+            return eventTimeMs;
+        }
+
+        @Override
+        public long getSequenceId() {
+            return 0;
+        }
+
+        @Override
+        public String getProducerName() {
+            return null;
+        }
+
+        @Override
+        public boolean hasKey() {
+            return false;
+        }
+
+        @Override
+        public String getKey() {
+            return null;
+        }
+
+        @Override
+        public boolean hasBase64EncodedKey() {
+            return false;
+        }
+
+        @Override
+        public byte[] getKeyBytes() {
+            return null;
+        }
+
+        @Override
+        public boolean hasOrderingKey() {
+            return false;
+        }
+
+        @Override
+        public byte[] getOrderingKey() {
+            return null;
+        }
+
+        @Override
+        public String getTopicName() {
+            return null;
+        }
+
+        @Override
+        public Optional<EncryptionContext> getEncryptionCtx() {
+            return Optional.empty();
+        }
+
+        @Override
+        public int getRedeliveryCount() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getSchemaVersion() {
+            return null;
+        }
+
+        @Override
+        public boolean isReplicated() {
+            return false;
+        }
+
+        @Override
+        public String getReplicatedFrom() {
+            return null;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public boolean hasBrokerPublishTime() {
+            return false;
+        }
+
+        @Override
+        public Optional<Long> getBrokerPublishTime() {
+            return Optional.empty();
+        }
+
+        @Override
+        public boolean hasIndex() {
+            return false;
+        }
+
+        @Override
+        public Optional<Long> getIndex() {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Consumer that completes acknowledgements immediately without keeping track of them
+     */
+    static class StubConsumer implements Consumer<byte[]> {
+        @Override
+        public CompletableFuture<Void> acknowledgeAsync(MessageId messageId) {
+            return COMPLETED;
+        }
+
+        @Override
+        public CompletableFuture<Void> acknowledgeAsync(List<MessageId> messageIdList) {
+            return COMPLETED;
+        }
+
+        @Override
+        public void acknowledge(MessageId messageId) {
+        }
+
+        @Override
+        public void acknowledge(List<MessageId> messageIdList) {
+        }
+
+        @Override
+        public void negativeAcknowledge(MessageId messageId) {
+        }
+
+        @Override
+        public String getTopic() {
+            return "benchmark";
+        }
+
+        @Override
+        public String getSubscription() {
+            return "benchmark";
+        }
+
+        @Override
+        public String getConsumerName() {
+            return "benchmark";
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public CompletableFuture<Void> closeAsync() {
+            return COMPLETED;
+        }
+
+        @Override
+        public void unsubscribe() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> unsubscribeAsync() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Message<byte[]> receive() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Message<byte[]>> receiveAsync() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Message<byte[]> receive(int timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Messages<byte[]> batchReceive() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Messages<byte[]>> batchReceiveAsync() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void acknowledge(Message<?> message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void acknowledge(Messages<?> messages) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void negativeAcknowledge(Message<?> message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void negativeAcknowledge(Messages<?> messages) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reconsumeLater(Message<?> message, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reconsumeLater(Message<?> message, Map<String, String> customProperties, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reconsumeLater(Messages<?> messages, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void acknowledgeCumulative(Message<?> message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void acknowledgeCumulative(MessageId messageId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> acknowledgeCumulativeAsync(MessageId messageId, Transaction txn) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reconsumeLaterCumulative(Message<?> message, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reconsumeLaterCumulative(Message<?> message, Map<String, String> customProperties, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> acknowledgeAsync(Message<?> message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> acknowledgeAsync(MessageId messageId, Transaction txn) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> acknowledgeAsync(Messages<?> messages) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> reconsumeLaterAsync(Message<?> message, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> reconsumeLaterAsync(Message<?> message, Map<String, String> customProperties, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> reconsumeLaterAsync(Messages<?> messages, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> acknowledgeCumulativeAsync(Message<?> message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> acknowledgeCumulativeAsync(MessageId messageId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> reconsumeLaterCumulativeAsync(Message<?> message, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> reconsumeLaterCumulativeAsync(Message<?> message, Map<String, String> customProperties, long delayTime, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ConsumerStats getStats() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasReachedEndOfTopic() {
+            return false;
+        }
+
+        @Override
+        public void redeliverUnacknowledgedMessages() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void seek(MessageId messageId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void seek(long timestamp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void seek(Function<String, Object> function) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> seekAsync(Function<String, Object> function) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> seekAsync(MessageId messageId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> seekAsync(long timestamp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasMessageAvailable() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> hasMessageAvailableAsync() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MessageId getLastMessageId() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<MessageId> getLastMessageIdAsync() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLastDisconnectedTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void resume() {
+        }
+    }
+}
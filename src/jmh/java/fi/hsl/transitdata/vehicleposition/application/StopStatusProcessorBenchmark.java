@@ -0,0 +1,91 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link StopStatusProcessor} with the previous implementation in {@link LegacyStopStatusProcessor}, which
+ * creates a new stop status for each message. HFP messages are generated by {@link FleetSimulator} and parsed in the
+ * setup, so the results only contain the cost of determining the stop status.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Djmh.args="StopStatusProcessorBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StopStatusProcessorBenchmark {
+    private static final int MESSAGES_PER_INVOCATION = 20_000;
+
+    @Param({ "500" })
+    public int vehicles;
+
+    private Hfp.Data[] messages;
+    private VehicleState[] messageVehicleStates;
+
+    private StopStatusProcessor processor;
+    private LegacyStopStatusProcessor legacyProcessor;
+
+    @Setup
+    public void setup() throws Exception {
+        final FleetSimulator simulator = new FleetSimulator(vehicles, 42, Instant.parse("2023-03-01T06:00:00Z"));
+
+        //Only a small share of the generated messages are passenger counts, which are skipped
+        messages = simulator.generate(2 * MESSAGES_PER_INVOCATION).stream()
+                .filter(message -> message.protobufSchema == TransitdataProperties.ProtobufSchema.HfpData)
+                .limit(MESSAGES_PER_INVOCATION)
+                .map(message -> {
+                    try {
+                        return Hfp.Data.parseFrom(message.data);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+                .toArray(Hfp.Data[]::new);
+
+        final Map<String, VehicleState> vehicleStates = new HashMap<>();
+        messageVehicleStates = new VehicleState[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            final Hfp.Topic topic = messages[i].getTopic();
+            messageVehicleStates[i] = vehicleStates.computeIfAbsent(topic.getUniqueVehicleId(), id -> new VehicleState(topic.getOperatorId(), topic.getVehicleNumber()));
+        }
+
+        processor = new StopStatusProcessor();
+        legacyProcessor = new LegacyStopStatusProcessor();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public int transitionTable() {
+        int stopped = 0;
+        for (int i = 0; i < messages.length; i++) {
+            final StopStatusProcessor.StopStatus stopStatus = processor.getStopStatus(messageVehicleStates[i], messages[i]);
+            if (stopStatus != null && stopStatus.stopStatus == GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT) {
+                stopped++;
+            }
+        }
+        return stopped;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public int legacy() {
+        int stopped = 0;
+        for (int i = 0; i < messages.length; i++) {
+            final StopStatusProcessor.StopStatus stopStatus = legacyProcessor.getStopStatus(messageVehicleStates[i], messages[i]);
+            if (stopStatus != null && stopStatus.stopStatus == GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT) {
+                stopped++;
+            }
+        }
+        return stopped;
+    }
+}
@@ -0,0 +1,128 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.transitdata.vehicleposition.application.utils.PartitionedTripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripDescriptor;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures registering vehicles for all trips of a simulated service day, including expiring the registrations, with
+ * {@link TripVehicleCache} and {@link PartitionedTripRegistry}. Time of the registries is simulated, so a whole day
+ * is registered in a single invocation. Each invocation starts with an empty registry.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Djmh.args="TripRegistryBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TripRegistryBenchmark {
+    @Param({ "cache", "partitioned" })
+    public String registry;
+
+    @Param({ "20000" })
+    public int trips;
+
+    //Registrations of the day sorted by time
+    private long[] registrationTimes;
+    private String[] vehicleIds;
+    private TripDescriptor[] registrationTrips;
+
+    private SimulatedTime time;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        final long startOfDay = LocalDateTime.parse("2023-03-01T04:00").atZone(ZoneId.of("Europe/Helsinki")).toInstant().toEpochMilli();
+        final long dayMinutes = TimeUnit.HOURS.toMinutes(22);
+
+        //Trips start evenly from 05:00 to 02:00, 2% of the trips are served by two vehicles
+        final int registrations = trips + (trips + 49) / 50;
+        registrationTimes = new long[registrations];
+        vehicleIds = new String[registrations];
+        registrationTrips = new TripDescriptor[registrations];
+
+        int registration = 0;
+        for (int i = 0; i < trips; i++) {
+            final long startMinute = 60 + i * dayMinutes / trips;
+            final int localStartMinute = (int) (startMinute + 4 * 60);
+            final TripDescriptor trip = new TripDescriptor(String.valueOf(1000 + random.nextInt(500)), "2023-03-01",
+                    String.format("%02d:%02d", localStartMinute / 60 % 24, localStartMinute % 60), String.valueOf(1 + random.nextInt(2)));
+
+            //Vehicles register a few minutes before the start of the trip
+            final long registrationTime = startOfDay + TimeUnit.MINUTES.toMillis(startMinute - 5);
+            registrationTimes[registration] = registrationTime;
+            vehicleIds[registration] = "22/" + i;
+            registrationTrips[registration++] = trip;
+
+            if (i % 50 == 0) {
+                registrationTimes[registration] = registrationTime;
+                vehicleIds[registration] = "22/" + (trips + i);
+                registrationTrips[registration++] = trip;
+            }
+        }
+
+        time = new SimulatedTime();
+    }
+
+    private TripRegistry createRegistry() {
+        if ("partitioned".equals(registry)) {
+            return new PartitionedTripRegistry(TripRegistry.MAX_AGE, time);
+        }
+        return new TripVehicleCache(() -> TimeUnit.MILLISECONDS.toNanos(time.millis()));
+    }
+
+    @Benchmark
+    public int serviceDay() {
+        time.setMillis(registrationTimes[0]);
+        final TripRegistry tripRegistry = createRegistry();
+
+        int registered = 0;
+        for (int i = 0; i < registrationTimes.length; i++) {
+            time.setMillis(registrationTimes[i]);
+            if (tripRegistry.registerVehicleForTrip(vehicleIds[i], registrationTrips[i])) {
+                registered++;
+            }
+        }
+        return registered;
+    }
+
+    //Clock that can be set to any time without allocating
+    private static class SimulatedTime extends Clock {
+        private long millis;
+
+        void setMillis(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneId.of("UTC");
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.typesafe.config.Config;
+import fi.hsl.common.config.ConfigParser;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark of {@link VehiclePositionHandler#handleMessage(Message)} with a mix of HFP and APC messages from {@link FleetSimulator}.
+ * Consumer and messages are hand-written stubs from {@link PulsarStubs} and vehicle positions are sent to a producer that
+ * completes immediately, so the results only contain the cost of processing the message.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Djmh.args="VehiclePositionHandlerBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VehiclePositionHandlerBenchmark {
+    private static final int MESSAGES_PER_INVOCATION = 20_000;
+    private static final CompletableFuture<MessageId> SENT = CompletableFuture.completedFuture(MessageId.latest);
+
+    @Param({ "500" })
+    public int vehicles;
+
+    private Config config;
+    private PulsarStubs.StubConsumer consumer;
+    private Message[] messages;
+
+    private VehiclePositionHandler handler;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        config = ConfigParser.createConfig();
+        consumer = new PulsarStubs.StubConsumer();
+        //Messages are in the past so that none of them has a future timestamp relative to the current time
+        final FleetSimulator simulator = new FleetSimulator(vehicles, 42, Instant.now().minusSeconds(2L * MESSAGES_PER_INVOCATION / vehicles));
+        messages = simulator.generate(MESSAGES_PER_INVOCATION).stream()
+                .map(message -> new PulsarStubs.StubMessage(message.protobufSchema, message.data, message.eventTimeMs))
+                .toArray(Message[]::new);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        //Vehicle timestamps are validated to be increasing, so the message stream can only be replayed with an empty state
+        handler = new VehiclePositionHandler(consumer, (key, topicSuffix, feedMessage, eventTimeMs) -> SENT, config,
+                new TripVehicleCache(), null, new ProcessingMetrics(), null, Clock.systemUTC());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_INVOCATION)
+    public void handleMessage() {
+        for (Message message : messages) {
+            handler.handleMessage(message);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares looking up vehicle state with a string key built per message, with a boxed long key and with
+ * {@link VehicleStateStore}, which uses primitive long keys.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Djmh.args="VehicleStateLookupBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VehicleStateLookupBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    @Param({ "5000" })
+    public int vehicles;
+
+    private int[] operatorIds;
+    private int[] vehicleNumbers;
+
+    private Map<String, VehicleState> stringKeyedStates;
+    private Map<Long, VehicleState> boxedKeyedStates;
+    private VehicleStateStore vehicleStateStore;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+
+        stringKeyedStates = new HashMap<>(1000);
+        boxedKeyedStates = new HashMap<>(1000);
+        vehicleStateStore = new VehicleStateStore();
+
+        for (int i = 0; i < vehicles; i++) {
+            final int operatorId = 1 + i % 60;
+            final int vehicleNumber = 100 + i;
+            final VehicleState vehicleState = vehicleStateStore.getOrCreate(operatorId, vehicleNumber);
+
+            stringKeyedStates.put(operatorId + "_" + vehicleNumber, vehicleState);
+            boxedKeyedStates.put(((long) operatorId << 32) | vehicleNumber, vehicleState);
+        }
+
+        operatorIds = new int[LOOKUPS];
+        vehicleNumbers = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            final int vehicle = random.nextInt(vehicles);
+            operatorIds[i] = 1 + vehicle % 60;
+            vehicleNumbers[i] = 100 + vehicle;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long stringKey() {
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            sum += stringKeyedStates.get(operatorIds[i] + "_" + vehicleNumbers[i]).getVehicleNumber();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long boxedLongKey() {
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            sum += boxedKeyedStates.get(((long) operatorIds[i] << 32) | vehicleNumbers[i]).getVehicleNumber();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long primitiveLongKey() {
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            sum += vehicleStateStore.getOrCreate(operatorIds[i], vehicleNumbers[i]).getVehicleNumber();
+        }
+        return sum;
+    }
+}
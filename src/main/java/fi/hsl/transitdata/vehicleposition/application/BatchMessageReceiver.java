@@ -0,0 +1,73 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives messages in batches bounded by size and time and passes them to {@link VehiclePositionHandler#handleMessages(List)}
+ */
+public class BatchMessageReceiver {
+    private static final Logger log = LoggerFactory.getLogger(BatchMessageReceiver.class);
+
+    private final Consumer<byte[]> consumer;
+    private final VehiclePositionHandler handler;
+
+    private final int maxMessages;
+    private final long timeoutNanos;
+
+    /**
+     * @param consumer
+     * @param handler
+     * @param maxMessages Maximum amount of messages in a batch
+     * @param timeout Maximum time to wait for more messages after the first message of the batch has been received
+     */
+    public BatchMessageReceiver(Consumer<byte[]> consumer, VehiclePositionHandler handler, int maxMessages, Duration timeout) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Batch must contain at least one message");
+        }
+
+        this.consumer = consumer;
+        this.handler = handler;
+        this.maxMessages = maxMessages;
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    public void receive() throws PulsarClientException {
+        log.info("Receiving messages in batches of at most {} messages or {}ms", maxMessages, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+
+        while (true) {
+            handler.handleMessages(receiveBatch());
+        }
+    }
+
+    List<Message<byte[]>> receiveBatch() throws PulsarClientException {
+        final List<Message<byte[]>> batch = new ArrayList<>(maxMessages);
+
+        //Wait for the first message without timeout, the batch is closed when the timeout has passed after that
+        batch.add(consumer.receive());
+        final long deadline = System.nanoTime() + timeoutNanos;
+
+        while (batch.size() < maxMessages) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                break;
+            }
+
+            final Message<byte[]> message = consumer.receive((int) TimeUnit.NANOSECONDS.toMicros(remainingNanos), TimeUnit.MICROSECONDS);
+            if (message == null) {
+                break;
+            }
+            batch.add(message);
+        }
+
+        return batch;
+    }
+}
@@ -8,11 +8,19 @@ import fi.hsl.common.pulsar.PulsarApplication;
 import fi.hsl.common.pulsar.PulsarApplicationContext;
 import fi.hsl.common.transitdata.TransitdataProperties;
 import fi.hsl.common.transitdata.TransitdataSchema;
+import fi.hsl.transitdata.vehicleposition.application.metrics.MetricsServer;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.PartitionedTripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.MessageRouter;
+import org.apache.pulsar.client.api.PulsarClientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
+
 public class Main {
     private static final Logger log = LoggerFactory.getLogger(Main.class);
 
@@ -22,12 +30,108 @@ public class Main {
         try (PulsarApplication app = PulsarApplication.newInstance(config)) {
 
             PulsarApplicationContext context = app.getContext();
-            IMessageHandler handler = new VehiclePositionHandler(context);
 
-            log.info("Start handling the messages");
-            app.launchWithHandler(handler);
+            final int workerThreads = config.getInt("processor.vehicleposition.workerThreads");
+            final boolean batchEnabled = config.getBoolean("processor.vehicleposition.batch.enabled");
+
+            final VehiclePositionSnapshotPublisher snapshotPublisher = createSnapshotPublisher(context);
+
+            final ProcessingMetrics metrics = new ProcessingMetrics();
+
+            final TripRegistry tripRegistry = createTripRegistry(config, metrics);
+            final ProcessorStateSnapshotter stateSnapshotter = createStateSnapshotter(config, tripRegistry);
+
+            final int metricsPort = config.getInt("processor.vehicleposition.metrics.port");
+            if (metricsPort > 0) {
+                new MetricsServer(metricsPort, metrics).start();
+            }
+
+            if (workerThreads > 1) {
+                if (batchEnabled) {
+                    log.warn("Batch mode is not supported with multiple worker threads, messages are received one by one");
+                }
+
+                log.info("Start handling the messages with {} worker threads", workerThreads);
+                final ShardedMessageHandler handler = new ShardedMessageHandler(context, workerThreads, config.getInt("processor.vehicleposition.workerQueueSize"), snapshotPublisher, metrics, tripRegistry, stateSnapshotter);
+                releaseRestoredVehicleStates(stateSnapshotter);
+                //Messages already queued for the workers are handled before the application exits
+                Runtime.getRuntime().addShutdownHook(new Thread(handler::close, "vehicle-position-worker-shutdown"));
+                app.launchWithHandler(handler);
+            } else if (batchEnabled) {
+                log.info("Start handling the messages in batches");
+                final VehiclePositionHandler handler = new VehiclePositionHandler(context, tripRegistry, snapshotPublisher, metrics, newStateSnapshotSlot(stateSnapshotter));
+                releaseRestoredVehicleStates(stateSnapshotter);
+                new BatchMessageReceiver(context.getConsumer(), handler,
+                        config.getInt("processor.vehicleposition.batch.maxMessages"),
+                        config.getDuration("processor.vehicleposition.batch.timeout")).receive();
+            } else {
+                log.info("Start handling the messages");
+                final VehiclePositionHandler handler = new VehiclePositionHandler(context, tripRegistry, snapshotPublisher, metrics, newStateSnapshotSlot(stateSnapshotter));
+                releaseRestoredVehicleStates(stateSnapshotter);
+                app.launchWithHandler(handler);
+            }
         } catch (Exception e) {
             log.error("Exception at main", e);
         }
     }
-}
\ No newline at end of file
+
+    private static TripRegistry createTripRegistry(Config config, ProcessingMetrics metrics) {
+        if (!config.getBoolean("processor.vehicleposition.tripRegistry.partitioned")) {
+            return new TripVehicleCache();
+        }
+
+        log.info("Using trip registry partitioned by operating day and start hour");
+        final PartitionedTripRegistry tripRegistry = new PartitionedTripRegistry();
+        metrics.setTripRegistry(tripRegistry);
+        return tripRegistry;
+    }
+
+    private static ProcessorStateSnapshotter createStateSnapshotter(Config config, TripRegistry tripRegistry) {
+        if (!config.getBoolean("processor.vehicleposition.stateSnapshot.enabled")) {
+            return null;
+        }
+
+        final ProcessorStateSnapshotter stateSnapshotter = new ProcessorStateSnapshotter(
+                Paths.get(config.getString("processor.vehicleposition.stateSnapshot.file")),
+                config.getDuration("processor.vehicleposition.stateSnapshot.interval"),
+                config.getDuration("processor.vehicleposition.stateSnapshot.maxAge"),
+                tripRegistry);
+        stateSnapshotter.restore();
+        stateSnapshotter.start();
+        //Write the snapshot also when the application is stopped, e.g. on deploy. Vehicle states cannot be captured
+        //from the shutdown hook, because they are only accessed by the handler threads, so the latest captures are
+        //written. Trip registrations are always current.
+        Runtime.getRuntime().addShutdownHook(new Thread(stateSnapshotter::writeSnapshot, "state-snapshotter-shutdown"));
+        return stateSnapshotter;
+    }
+
+    private static void releaseRestoredVehicleStates(ProcessorStateSnapshotter stateSnapshotter) {
+        //All handlers have restored their vehicle states, so the states read from the snapshot are no longer needed
+        if (stateSnapshotter != null) {
+            stateSnapshotter.releaseRestoredVehicleStates();
+        }
+    }
+
+    private static ProcessorStateSnapshotter.Slot newStateSnapshotSlot(ProcessorStateSnapshotter stateSnapshotter) {
+        return stateSnapshotter != null ? stateSnapshotter.newSlot(vehicleKey -> true) : null;
+    }
+
+    private static VehiclePositionSnapshotPublisher createSnapshotPublisher(PulsarApplicationContext context) throws PulsarClientException {
+        final Config config = context.getConfig();
+        if (!config.getBoolean("processor.vehicleposition.snapshot.enabled")) {
+            return null;
+        }
+
+        final String topic = config.getString("processor.vehicleposition.snapshot.topic");
+        log.info("Publishing vehicle position snapshots to topic {}", topic);
+
+        final VehiclePositionSnapshotPublisher snapshotPublisher = new VehiclePositionSnapshotPublisher(
+                context.getClient().newProducer().topic(topic).enableBatching(false).create(),
+                config.getDuration("processor.vehicleposition.snapshot.interval"),
+                config.getDuration("processor.vehicleposition.snapshot.maxAge"));
+        snapshotPublisher.start();
+        //Producer of the snapshot topic is not managed by the Pulsar application like the main producer
+        Runtime.getRuntime().addShutdownHook(new Thread(snapshotPublisher::close, "vehicle-position-snapshot-publisher-shutdown"));
+        return snapshotPublisher;
+    }
+}
@@ -0,0 +1,69 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the amount of messages that have been sent but not yet acknowledged by the broker. When the limit is reached,
+ * sending blocks until an earlier message has been acknowledged. Messages are sent from the thread that handles
+ * received messages, so this also pauses consuming new messages while the producer is saturated.
+ */
+public class PendingSendWindow {
+    //null if the amount of pending sends is not limited
+    private final Semaphore permits;
+    private final ProcessingMetrics metrics;
+
+    /**
+     * @param maxPendingSends Maximum amount of messages waiting for acknowledgement from the broker. 0 means no limit.
+     * @param metrics Metrics where the amount of pending sends is recorded
+     */
+    public PendingSendWindow(int maxPendingSends, ProcessingMetrics metrics) {
+        if (maxPendingSends < 0) {
+            throw new IllegalArgumentException("Maximum amount of pending sends cannot be negative");
+        }
+
+        this.permits = maxPendingSends > 0 ? new Semaphore(maxPendingSends) : null;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends the message, waiting until there is room in the window if necessary
+     * @param message
+     * @return Future that is completed after the permit of the message has been released
+     */
+    public CompletableFuture<MessageId> send(TypedMessageBuilder<byte[]> message) {
+        if (permits != null) {
+            //Not interruptible, because the message has already been processed and would otherwise be lost
+            permits.acquireUninterruptibly();
+        }
+        metrics.incrementPendingSends();
+
+        final CompletableFuture<MessageId> sent;
+        try {
+            sent = message.sendAsync();
+        } catch (RuntimeException e) {
+            release();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return sent.whenComplete((messageId, error) -> release());
+    }
+
+    private void release() {
+        metrics.decrementPendingSends();
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return Amount of sends that can be started without blocking, or {@link Integer#MAX_VALUE} if not limited
+     */
+    public int getAvailablePermits() {
+        return permits != null ? permits.availablePermits() : Integer.MAX_VALUE;
+    }
+}
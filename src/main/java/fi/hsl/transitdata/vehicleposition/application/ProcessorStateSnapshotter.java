@@ -0,0 +1,386 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripDescriptor;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.VehicleKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+/**
+ * Periodically writes the state of the processor, i.e. trip registrations and the latest timestamp, stop status and
+ * trip of each vehicle, to a local file and restores it on startup. This way a restart does not change which vehicle
+ * owns a trip or which positions are accepted.
+ *
+ * Vehicle states are not thread-safe, so each handler has its own {@link Slot} and captures its vehicle states on
+ * its own thread. The latest captures of all slots are written together with trip registrations. The file is
+ * written to a temporary file first and then renamed, so that a crash while writing never leaves a partial snapshot.
+ * Because vehicle states are only captured by the handlers, they can be up to one interval older than the trip
+ * registrations in a snapshot, also when the snapshot is written on shutdown. This only means that slightly older
+ * timestamps and stop statuses are restored.
+ *
+ * Passenger counts and rate limiting state are not included, they are rebuilt from the next messages.
+ */
+public class ProcessorStateSnapshotter {
+    private static final Logger log = LoggerFactory.getLogger(ProcessorStateSnapshotter.class);
+
+    private static final int MAGIC = 0x56505353;
+    private static final int VERSION = 1;
+
+    private static final int HAS_STOP_STATUS = 1;
+    private static final int HAS_TRIP = 2;
+    private static final int REGISTERED_FOR_TRIP = 4;
+
+    private final Path file;
+    private final long intervalMs;
+    private final long maxAgeMs;
+    private final TripRegistry tripRegistry;
+    private final Clock clock;
+
+    private final List<Slot> slots = new CopyOnWriteArrayList<>();
+
+    //Vehicle states read from the snapshot file, restored by each slot when it is created. Released after all slots have been created.
+    private byte[] restoredVehicleStates = new byte[0];
+    private int restoredVehicleCount = 0;
+
+    /**
+     * @param file Snapshot file
+     * @param interval Interval for writing snapshots
+     * @param maxAge Vehicle states that were last updated longer than this ago are not restored
+     * @param tripRegistry Trip registrations
+     */
+    public ProcessorStateSnapshotter(Path file, Duration interval, Duration maxAge, TripRegistry tripRegistry) {
+        this(file, interval, maxAge, tripRegistry, Clock.systemUTC());
+    }
+
+    public ProcessorStateSnapshotter(Path file, Duration interval, Duration maxAge, TripRegistry tripRegistry, Clock clock) {
+        this.file = file;
+        this.intervalMs = interval.toMillis();
+        this.maxAgeMs = maxAge.toMillis();
+        this.tripRegistry = tripRegistry;
+        this.clock = clock;
+    }
+
+    /**
+     * Restores trip registrations from the snapshot file and reads vehicle states, which are restored when the slots
+     * are created. Must be called before creating the slots.
+     * @return true if the snapshot was restored
+     */
+    public boolean restore() {
+        if (!Files.exists(file)) {
+            log.info("No state snapshot found at {}", file);
+            return false;
+        }
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                log.warn("State snapshot {} has unsupported format, ignoring it", file);
+                return false;
+            }
+
+            final long now = clock.millis();
+            final long createdAtMs = input.readLong();
+
+            int restoredTrips = 0;
+            final int tripCount = input.readInt();
+            for (int i = 0; i < tripCount; i++) {
+                final String vehicleId = readString(input);
+                final TripDescriptor trip = readTrip(input);
+                final long expiresAtMs = input.readLong();
+
+                if (expiresAtMs > now) {
+                    tripRegistry.restoreRegistration(vehicleId, trip, Duration.ofMillis(expiresAtMs - now));
+                    restoredTrips++;
+                }
+            }
+
+            restoredVehicleCount = input.readInt();
+            restoredVehicleStates = input.readAllBytes();
+
+            log.info("Restored {} trip registrations from state snapshot created at {}, {} vehicle states available", restoredTrips, Instant.ofEpochMilli(createdAtMs), restoredVehicleCount);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to read state snapshot {}, ignoring it", file, e);
+            restoredVehicleStates = new byte[0];
+            restoredVehicleCount = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Releases the vehicle states read from the snapshot file. Must be called after all slots have restored their
+     * vehicle states, slots restoring after this do not restore any vehicle states.
+     */
+    public void releaseRestoredVehicleStates() {
+        restoredVehicleStates = new byte[0];
+        restoredVehicleCount = 0;
+    }
+
+    /**
+     * Creates a slot for a handler
+     * @param vehicleFilter Filters vehicles by {@link VehicleKey}, only states of the vehicles whose messages are handled by the handler are restored
+     * @return Slot
+     */
+    public Slot newSlot(LongPredicate vehicleFilter) {
+        final Slot slot = new Slot(vehicleFilter);
+        slots.add(slot);
+        return slot;
+    }
+
+    public void start() {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "state-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::writeSnapshot, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+        log.info("Writing state snapshots to {} every {}ms", file, intervalMs);
+    }
+
+    /**
+     * Writes the snapshot file. Errors are logged, because a missing snapshot only affects the next restart.
+     */
+    public synchronized void writeSnapshot() {
+        try {
+            final byte[] snapshot = createSnapshot(clock.millis());
+
+            final Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tempFile, snapshot);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            log.debug("Wrote state snapshot of {} bytes to {}", snapshot.length, file);
+        } catch (Exception e) {
+            log.error("Failed to write state snapshot to {}", file, e);
+        }
+    }
+
+    byte[] createSnapshot(long now) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(now);
+
+        //Registrations can be added while they are being written, so they are counted afterwards
+        final ByteArrayOutputStream tripBytes = new ByteArrayOutputStream();
+        final DataOutputStream tripOutput = new DataOutputStream(tripBytes);
+        final int[] tripCount = { 0 };
+        tripRegistry.forEachRegistration((vehicleId, trip, expiresAfter) -> {
+            try {
+                writeString(tripOutput, vehicleId);
+                writeTrip(tripOutput, trip);
+                tripOutput.writeLong(now + expiresAfter.toMillis());
+                tripCount[0]++;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        output.writeInt(tripCount[0]);
+        tripBytes.writeTo(output);
+
+        final List<Capture> captures = new ArrayList<>(slots.size());
+        int vehicleCount = 0;
+        for (Slot slot : slots) {
+            final Capture capture = slot.capture;
+            if (capture != null) {
+                captures.add(capture);
+                vehicleCount += capture.vehicleCount;
+            }
+        }
+        output.writeInt(vehicleCount);
+        for (Capture capture : captures) {
+            output.write(capture.vehicleStates);
+        }
+
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeVehicleState(DataOutputStream output, VehicleState vehicleState) throws IOException {
+        output.writeInt(vehicleState.getOperatorId());
+        output.writeInt(vehicleState.getVehicleNumber());
+        output.writeLong(vehicleState.getLastAccessedMs());
+        output.writeLong(vehicleState.getLatestTimestamp());
+
+        final StopStatusProcessor.StopStatus stopStatus = vehicleState.getStopStatus();
+        final TripDescriptor trip = vehicleState.getTrip();
+        output.writeByte((stopStatus != null ? HAS_STOP_STATUS : 0) |
+                (trip != null ? HAS_TRIP : 0) |
+                (vehicleState.isRegisteredForTrip() ? REGISTERED_FOR_TRIP : 0));
+
+        if (stopStatus != null) {
+            output.writeByte(stopStatus.stopStatus.getNumber());
+            writeString(output, stopStatus.stopId);
+        }
+        if (trip != null) {
+            writeTrip(output, trip);
+        }
+    }
+
+    private static void writeTrip(DataOutputStream output, TripDescriptor trip) throws IOException {
+        writeString(output, trip.routeId);
+        writeString(output, trip.operatingDay);
+        writeString(output, trip.startTime);
+        writeString(output, trip.directionId);
+    }
+
+    private static TripDescriptor readTrip(DataInputStream input) throws IOException {
+        return new TripDescriptor(readString(input), readString(input), readString(input), readString(input));
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static class Capture {
+        private final byte[] vehicleStates;
+        private final int vehicleCount;
+
+        private Capture(byte[] vehicleStates, int vehicleCount) {
+            this.vehicleStates = vehicleStates;
+            this.vehicleCount = vehicleCount;
+        }
+    }
+
+    private static class RestoredVehicleState {
+        private final int operatorId;
+        private final int vehicleNumber;
+        private final long lastAccessedMs;
+        private final long latestTimestamp;
+        private final StopStatusProcessor.StopStatus stopStatus;
+        private final TripDescriptor trip;
+        private final boolean registeredForTrip;
+
+        private RestoredVehicleState(DataInputStream input) throws IOException {
+            operatorId = input.readInt();
+            vehicleNumber = input.readInt();
+            lastAccessedMs = input.readLong();
+            latestTimestamp = input.readLong();
+
+            final int flags = input.readByte();
+            stopStatus = (flags & HAS_STOP_STATUS) != 0 ? readStopStatus(input) : null;
+            trip = (flags & HAS_TRIP) != 0 ? readTrip(input) : null;
+            registeredForTrip = (flags & REGISTERED_FOR_TRIP) != 0;
+        }
+
+        private static StopStatusProcessor.StopStatus readStopStatus(DataInputStream input) throws IOException {
+            final GtfsRealtime.VehiclePosition.VehicleStopStatus status = GtfsRealtime.VehiclePosition.VehicleStopStatus.forNumber(input.readByte());
+            return new StopStatusProcessor.StopStatus(readString(input), status);
+        }
+    }
+
+    /**
+     * Vehicle states of a single handler. Methods must be called from the thread that handles the messages.
+     */
+    public class Slot {
+        private final LongPredicate vehicleFilter;
+
+        //Latest capture, read by the thread writing the snapshot
+        private volatile Capture capture;
+        private long lastCapturedAtMs;
+
+        private Slot(LongPredicate vehicleFilter) {
+            this.vehicleFilter = vehicleFilter;
+            this.lastCapturedAtMs = clock.millis();
+        }
+
+        /**
+         * Restores states of the vehicles accepted by the filter of this slot to an empty store
+         * @param vehicleStates
+         * @return Amount of restored vehicle states
+         */
+        public int restore(VehicleStateStore vehicleStates) {
+            final long now = clock.millis();
+            final List<RestoredVehicleState> restored = new ArrayList<>();
+
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(restoredVehicleStates))) {
+                for (int i = 0; i < restoredVehicleCount; i++) {
+                    final RestoredVehicleState vehicleState = new RestoredVehicleState(input);
+                    if (now - vehicleState.lastAccessedMs <= maxAgeMs && vehicleFilter.test(VehicleKey.of(vehicleState.operatorId, vehicleState.vehicleNumber))) {
+                        restored.add(vehicleState);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to read vehicle states from state snapshot, restored {} vehicle states", restored.size(), e);
+            }
+
+            //States are restored in access order, so that the least recently used states are evicted first
+            restored.sort(Comparator.comparingLong(vehicleState -> vehicleState.lastAccessedMs));
+
+            int restoredCount = 0;
+            for (RestoredVehicleState restoredState : restored) {
+                final VehicleState vehicleState = vehicleStates.restore(restoredState.operatorId, restoredState.vehicleNumber, restoredState.lastAccessedMs);
+                if (vehicleState != null) {
+                    vehicleState.setLatestTimestamp(restoredState.latestTimestamp);
+                    vehicleState.setStopStatus(restoredState.stopStatus);
+                    vehicleState.setTrip(restoredState.trip, restoredState.registeredForTrip);
+                    restoredCount++;
+                }
+            }
+            return restoredCount;
+        }
+
+        /**
+         * Captures the vehicle states if the snapshot interval has elapsed since the previous capture
+         * @param vehicleStates
+         */
+        public void captureIfDue(VehicleStateStore vehicleStates) {
+            final long now = clock.millis();
+            if (now - lastCapturedAtMs >= intervalMs) {
+                lastCapturedAtMs = now;
+                capture(vehicleStates.getAll());
+            }
+        }
+
+        void capture(Collection<VehicleState> vehicleStates) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(vehicleStates.size() * 64);
+            final DataOutputStream output = new DataOutputStream(bytes);
+
+            try {
+                for (VehicleState vehicleState : vehicleStates) {
+                    writeVehicleState(output, vehicleState);
+                }
+                output.flush();
+            } catch (IOException e) {
+                //ByteArrayOutputStream does not throw
+                throw new IllegalStateException(e);
+            }
+
+            capture = new Capture(bytes.toByteArray(), vehicleStates.size());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.common.transitdata.TransitdataProperties;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends vehicle positions to Pulsar, limiting the amount of messages waiting for acknowledgement from the broker
+ */
+public class PulsarVehiclePositionProducer implements VehiclePositionProducer {
+    private final Producer<byte[]> producer;
+    private final PendingSendWindow pendingSendWindow;
+
+    public PulsarVehiclePositionProducer(Producer<byte[]> producer, PendingSendWindow pendingSendWindow) {
+        this.producer = producer;
+        this.pendingSendWindow = pendingSendWindow;
+    }
+
+    @Override
+    public CompletableFuture<MessageId> send(String key, String topicSuffix, byte[] feedMessage, long eventTimeMs) {
+        return pendingSendWindow.send(producer.newMessage()
+                .key(key)
+                .value(feedMessage)
+                .eventTime(eventTimeMs)
+                .property(TransitdataProperties.KEY_MQTT_TOPIC, topicSuffix)
+                .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.GTFS_VehiclePosition.toString()));
+    }
+}
@@ -0,0 +1,93 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * File format used by {@link ReplayMain}. Both input and output files are sequences of records written with
+ * {@link DataOutputStream}, binary payloads are prefixed with their length.
+ *
+ * Input record: protobuf schema (as in transitdata properties), event time in milliseconds, payload (Hfp.Data or PassengerCount.Data)
+ * Output record: key, MQTT topic suffix, event time in milliseconds, payload (GTFS-RT feed message)
+ */
+final class ReplayFile {
+    private ReplayFile() {}
+
+    static class InputRecord {
+        final String protobufSchema;
+        final long eventTimeMs;
+        final byte[] data;
+
+        InputRecord(String protobufSchema, long eventTimeMs, byte[] data) {
+            this.protobufSchema = protobufSchema;
+            this.eventTimeMs = eventTimeMs;
+            this.data = data;
+        }
+    }
+
+    static class OutputRecord {
+        final String key;
+        final String topicSuffix;
+        final long eventTimeMs;
+        final byte[] feedMessage;
+
+        OutputRecord(String key, String topicSuffix, long eventTimeMs, byte[] feedMessage) {
+            this.key = key;
+            this.topicSuffix = topicSuffix;
+            this.eventTimeMs = eventTimeMs;
+            this.feedMessage = feedMessage;
+        }
+    }
+
+    static void writeInput(DataOutputStream output, InputRecord record) throws IOException {
+        output.writeUTF(record.protobufSchema);
+        output.writeLong(record.eventTimeMs);
+        writeBytes(output, record.data);
+    }
+
+    /**
+     * @return Next record or null if the end of the file was reached
+     */
+    static InputRecord readInput(DataInputStream input) throws IOException {
+        final String protobufSchema;
+        try {
+            protobufSchema = input.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+        return new InputRecord(protobufSchema, input.readLong(), readBytes(input));
+    }
+
+    static void writeOutput(DataOutputStream output, OutputRecord record) throws IOException {
+        output.writeUTF(record.key);
+        output.writeUTF(record.topicSuffix);
+        output.writeLong(record.eventTimeMs);
+        writeBytes(output, record.feedMessage);
+    }
+
+    /**
+     * @return Next record or null if the end of the file was reached
+     */
+    static OutputRecord readOutput(DataInputStream input) throws IOException {
+        final String key;
+        try {
+            key = input.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+        return new OutputRecord(key, input.readUTF(), input.readLong(), readBytes(input));
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,170 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.typesafe.config.Config;
+import fi.hsl.common.config.ConfigParser;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.PartitionedTripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
+import org.apache.pulsar.client.api.MessageId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays HFP and APC messages from a file through {@link VehiclePositionHandler} and writes the produced vehicle
+ * positions to another file, without Pulsar. The clock of the handler follows the event times of the messages, so
+ * the output does not depend on when or how fast the file is replayed. See {@link ReplayFile} for the file format.
+ *
+ * Usage: ReplayMain &lt;input file&gt; &lt;output file&gt;
+ */
+public class ReplayMain {
+    private static final Logger log = LoggerFactory.getLogger(ReplayMain.class);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ReplayMain <input file> <output file>");
+            System.exit(1);
+        }
+
+        final Config config = ConfigParser.createConfig();
+        final ReplayResult result = replay(config, Paths.get(args[0]), Paths.get(args[1]));
+
+        log.info("Replayed {} messages in {} ms ({} messages/s), produced {} vehicle positions",
+                result.messagesIn,
+                result.duration.toMillis(),
+                String.format("%.0f", result.getMessagesPerSecond()),
+                result.messagesOut);
+    }
+
+    static ReplayResult replay(Config config, Path inputFile, Path outputFile) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(inputFile), 1 << 16));
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(outputFile), 1 << 16))) {
+            final ReplayClock clock = new ReplayClock();
+            final FileVehiclePositionProducer producer = new FileVehiclePositionProducer(output);
+            final VehiclePositionHandler handler = new VehiclePositionHandler(null, producer, config, createTripRegistry(config, clock), null, new ProcessingMetrics(), null, clock);
+
+            final long startTime = System.nanoTime();
+            long messagesIn = 0;
+
+            ReplayFile.InputRecord record;
+            while ((record = ReplayFile.readInput(input)) != null) {
+                //Clock never goes backwards, messages can be slightly out of order in the input
+                clock.advanceTo(record.eventTimeMs);
+                handler.handle(record.protobufSchema, record.data, record.eventTimeMs);
+                messagesIn++;
+
+                producer.throwIfFailed();
+            }
+            handler.flushPendingPositions();
+            producer.throwIfFailed();
+
+            output.flush();
+            return new ReplayResult(messagesIn, producer.messagesOut, Duration.ofNanos(System.nanoTime() - startTime));
+        }
+    }
+
+    /**
+     * Creates the trip registry used by the processor, expiring registrations by the replay clock
+     */
+    private static TripRegistry createTripRegistry(Config config, Clock clock) {
+        if (config.getBoolean("processor.vehicleposition.tripRegistry.partitioned")) {
+            return new PartitionedTripRegistry(TripRegistry.MAX_AGE, clock);
+        }
+        return new TripVehicleCache(() -> TimeUnit.MILLISECONDS.toNanos(clock.millis()));
+    }
+
+    static class ReplayResult {
+        final long messagesIn;
+        final long messagesOut;
+        final Duration duration;
+
+        private ReplayResult(long messagesIn, long messagesOut, Duration duration) {
+            this.messagesIn = messagesIn;
+            this.messagesOut = messagesOut;
+            this.duration = duration;
+        }
+
+        double getMessagesPerSecond() {
+            return messagesIn / Math.max(1e-9, duration.toNanos() / 1e9);
+        }
+    }
+
+    /**
+     * Writes vehicle positions to the output file. Positions are persisted as soon as they have been written to the buffer.
+     */
+    private static class FileVehiclePositionProducer implements VehiclePositionProducer {
+        private final DataOutputStream output;
+        private long messagesOut = 0;
+        private IOException error;
+
+        private FileVehiclePositionProducer(DataOutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public CompletableFuture<MessageId> send(String key, String topicSuffix, byte[] feedMessage, long eventTimeMs) {
+            try {
+                ReplayFile.writeOutput(output, new ReplayFile.OutputRecord(key, topicSuffix, eventTimeMs, feedMessage));
+                messagesOut++;
+                //There is no message ID outside of Pulsar
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        private void throwIfFailed() {
+            if (error != null) {
+                throw new UncheckedIOException("Failed to write vehicle positions", error);
+            }
+        }
+    }
+
+    private static class ReplayClock extends Clock {
+        private long currentTimeMs = Long.MIN_VALUE;
+
+        private void advanceTo(long timeMs) {
+            currentTimeMs = Math.max(currentTimeMs, timeMs);
+        }
+
+        @Override
+        public long millis() {
+            return currentTimeMs;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(currentTimeMs);
+        }
+    }
+}
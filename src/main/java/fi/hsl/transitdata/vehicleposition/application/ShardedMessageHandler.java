@@ -0,0 +1,150 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.common.pulsar.IMessageHandler;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.TransitdataSchema;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripRegistry;
+import fi.hsl.transitdata.vehicleposition.application.utils.VehicleKey;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Distributes messages to worker threads by vehicle. Each worker has its own {@link VehiclePositionHandler} and
+ * therefore its own vehicle state, and messages of a single vehicle are always processed in order by the same worker.
+ * Trip registrations, vehicle position snapshots, state snapshots and metrics are shared by all workers. Messages are acknowledged by the workers after they have been handled.
+ * Workers run until the handler is closed.
+ */
+public class ShardedMessageHandler implements IMessageHandler, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ShardedMessageHandler.class);
+
+    //Maximum time to wait for the workers to handle queued messages when closing
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+    private final Consumer<byte[]> consumer;
+    private final List<Worker> workers;
+
+    /**
+     * @param context
+     * @param workerCount Amount of worker threads
+     * @param queueSize Maximum amount of messages waiting for each worker. When the queue is full, receiving messages is blocked.
+     * @param snapshotPublisher Publisher for vehicle position snapshots, shared by all workers. null if snapshots are not published.
+     * @param metrics Processing metrics, shared by all workers
+     * @param tripRegistry Trip registrations, shared by all workers
+     * @param stateSnapshotter State snapshots, each worker restores and captures states of its own vehicles. null if state snapshots are not written.
+     */
+    public ShardedMessageHandler(PulsarApplicationContext context, int workerCount, int queueSize, VehiclePositionSnapshotPublisher snapshotPublisher, ProcessingMetrics metrics, TripRegistry tripRegistry, ProcessorStateSnapshotter stateSnapshotter) {
+        consumer = context.getConsumer();
+        workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            final int workerIndex = i;
+            final ProcessorStateSnapshotter.Slot stateSnapshotSlot = stateSnapshotter != null ?
+                    stateSnapshotter.newSlot(vehicleKey -> getWorkerIndex(vehicleKey, workerCount) == workerIndex) :
+                    null;
+            final Worker worker = new Worker(new VehiclePositionHandler(context, tripRegistry, snapshotPublisher, metrics, stateSnapshotSlot), queueSize, "vehicle-position-worker-" + i);
+            worker.thread.start();
+
+            workers.add(worker);
+        }
+
+        log.info("Processing messages with {} worker threads", workerCount);
+    }
+
+    @Override
+    public void handleMessage(Message message) {
+        try {
+            workers.get(getWorkerIndex(message, workers.size())).queue.put(message);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for space in worker queue, message will be redelivered");
+            consumer.negativeAcknowledge(message.getMessageId());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the workers. Messages already in the queues are handled and pending vehicle positions are published before
+     * the workers exit. Waits at most {@link #CLOSE_TIMEOUT} for the workers, messages that were not handled by then are
+     * not acknowledged and are redelivered after restart.
+     */
+    @Override
+    public void close() {
+        workers.forEach(worker -> worker.thread.interrupt());
+
+        final long deadline = System.nanoTime() + CLOSE_TIMEOUT.toNanos();
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(Math.max(1, Duration.ofNanos(deadline - System.nanoTime()).toMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (worker.thread.isAlive()) {
+                log.warn("Worker thread {} did not stop within {} seconds", worker.thread.getName(), CLOSE_TIMEOUT.toSeconds());
+            }
+        }
+    }
+
+    static int getWorkerIndex(Message message, int workerCount) {
+        final long vehicleKey;
+        if (TransitdataSchema.hasProtobufSchema(message, TransitdataProperties.ProtobufSchema.HfpData)) {
+            vehicleKey = VehicleKey.fromHfpData(message.getData());
+        } else if (TransitdataSchema.hasProtobufSchema(message, TransitdataProperties.ProtobufSchema.PassengerCount)) {
+            vehicleKey = VehicleKey.fromPassengerCountData(message.getData());
+        } else {
+            vehicleKey = VehicleKey.UNKNOWN;
+        }
+
+        return getWorkerIndex(vehicleKey, workerCount);
+    }
+
+    static int getWorkerIndex(long vehicleKey, int workerCount) {
+        //Spread consecutive vehicle numbers evenly
+        return Math.floorMod(Long.hashCode(vehicleKey * 0x9E3779B97F4A7C15L), workerCount);
+    }
+
+    private static class Worker implements Runnable {
+        private final VehiclePositionHandler handler;
+        private final BlockingQueue<Message> queue;
+        private final Thread thread;
+
+        private Worker(VehiclePositionHandler handler, int queueSize, String threadName) {
+            this.handler = handler;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+
+            thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, throwable) -> {
+                log.error("Worker thread {} failed, exiting", t.getName(), throwable);
+                System.exit(1);
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    handler.handleMessage(queue.take());
+                }
+            } catch (InterruptedException e) {
+                //Interrupted by close(), messages that were already queued are handled before exiting
+                Message message;
+                while ((message = queue.poll()) != null) {
+                    handler.handleMessage(message);
+                }
+                handler.flushPendingPositions();
+            } finally {
+                handler.close();
+            }
+        }
+    }
+}
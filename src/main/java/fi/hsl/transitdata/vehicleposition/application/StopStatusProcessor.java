@@ -5,23 +5,95 @@ import fi.hsl.common.hfp.proto.Hfp;
 
 import java.util.*;
 
+/**
+ * Determines the stop status of a vehicle from its HFP messages. For vehicles that produce events, the new status is
+ * looked up from a transition table by previous status, event type and whether the vehicle is still at the same
+ * stop. Stop statuses are immutable and shared, a single instance exists for each stop ID and status. Not thread-safe.
+ */
 public class StopStatusProcessor {
-    private static final List<Hfp.Topic.TransportMode> TRANSPORT_MODES_WITHOUT_EVENTS = Collections.unmodifiableList(Arrays.asList(
+    private static final Set<Hfp.Topic.TransportMode> TRANSPORT_MODES_WITHOUT_EVENTS = EnumSet.of(
             Hfp.Topic.TransportMode.metro,
             Hfp.Topic.TransportMode.ferry,
             Hfp.Topic.TransportMode.ubus,
             Hfp.Topic.TransportMode.robot
-    ));
+    );
 
-    private final Map<String, StopStatus> vehicleStopStatus = new HashMap<>(1000);
+    //There are less than 10 000 stops, the cache is cleared if it grows larger than this e.g. because of invalid stop IDs
+    private static final int MAX_CACHED_STOPS = 20000;
 
-    public StopStatus getStopStatus(Hfp.Data hfpData) {
-        return vehicleStopStatus.compute(hfpData.getTopic().getUniqueVehicleId(), (uniqueVehicleId, previousStopStatus) -> processStopStatus(previousStopStatus, hfpData));
+    private static final GtfsRealtime.VehiclePosition.VehicleStopStatus[] STOP_STATUSES = GtfsRealtime.VehiclePosition.VehicleStopStatus.values();
+
+    private enum Transition {
+        //Previous status is kept
+        KEEP,
+        IN_TRANSIT_TO_NEXT_STOP,
+        INCOMING_AT_NEXT_STOP,
+        STOPPED_AT_NEXT_STOP
+    }
+
+    //Previous status of the vehicle, NONE if there is no previous status
+    private static final int NONE = 0;
+    private static final int IN_TRANSIT_TO = 1;
+    private static final int INCOMING_AT = 2;
+    private static final int STOPPED_AT = 3;
+    private static final int PREVIOUS_STATUSES = 4;
+
+    private static final int DEPARTURE = 0; //PDE or PAS
+    private static final int DUE = 1;
+    private static final int ARRIVAL = 2; //ARS
+    private static final int OTHER_EVENT = 3;
+    private static final int EVENTS = 4;
+
+    /**
+     * Indexed by previous status, event and whether the vehicle is still at the same stop. The vehicle is at the same
+     * stop when it was arriving to a stop and the next stop in the topic is still that stop, or when it was stopped at
+     * a stop and the stop in the payload is the next stop in the topic.
+     */
+    private static final Transition[] TRANSITIONS = new Transition[PREVIOUS_STATUSES * EVENTS * 2];
+
+    static {
+        for (int previous = 0; previous < PREVIOUS_STATUSES; previous++) {
+            for (int sameStop = 0; sameStop < 2; sameStop++) {
+                //Vehicle departs from a stop or passes through a stop
+                setTransition(previous, DEPARTURE, sameStop, Transition.IN_TRANSIT_TO_NEXT_STOP);
+                //Vehicle is just about to arrive to a stop, unless there is no previous status
+                setTransition(previous, DUE, sameStop, previous == NONE ? Transition.IN_TRANSIT_TO_NEXT_STOP : Transition.INCOMING_AT_NEXT_STOP);
+                //Vehicle has arrived to a stop, unless there is no previous status
+                setTransition(previous, ARRIVAL, sameStop, previous == NONE ? Transition.IN_TRANSIT_TO_NEXT_STOP : Transition.STOPPED_AT_NEXT_STOP);
+                //Vehicle is moving, unless it is still arriving to or stopped at the same stop
+                setTransition(previous, OTHER_EVENT, sameStop, (previous == INCOMING_AT || previous == STOPPED_AT) && sameStop == 1 ? Transition.KEEP : Transition.IN_TRANSIT_TO_NEXT_STOP);
+            }
+        }
+    }
+
+    private static void setTransition(int previousStatus, int event, int sameStop, Transition transition) {
+        TRANSITIONS[transitionIndex(previousStatus, event, sameStop == 1)] = transition;
+    }
+
+    private static int transitionIndex(int previousStatus, int event, boolean sameStop) {
+        return ((previousStatus * EVENTS) + event) * 2 + (sameStop ? 1 : 0);
+    }
+
+    //Shared stop statuses of each stop ID, indexed by the number of the stop status
+    private final Map<String, StopStatus[]> stopStatuses = new HashMap<>();
+
+    /**
+     * Calculates stop status of the vehicle and updates it to the vehicle state
+     * @param vehicleState State of the vehicle that sent the message
+     * @param hfpData
+     * @return Stop status or null if the vehicle has reached its final stop or left HSL area
+     */
+    public StopStatus getStopStatus(VehicleState vehicleState, Hfp.Data hfpData) {
+        final StopStatus stopStatus = processStopStatus(vehicleState.getStopStatus(), hfpData);
+        vehicleState.setStopStatus(stopStatus);
+        return stopStatus;
     }
 
     private StopStatus processStopStatus(StopStatus previousStopStatus, Hfp.Data hfpData) {
+        final String nextStop = hfpData.getTopic().getNextStop();
+
         //If vehicle has reached its final stop or left HSL area (next_stop being empty), remove it from the list
-        if ("EOL".equals(hfpData.getTopic().getNextStop()) || hfpData.getTopic().getNextStop().isEmpty()) {
+        if ("EOL".equals(nextStop) || nextStop.isEmpty()) {
             return null;
         }
 
@@ -30,48 +102,111 @@ public class StopStatusProcessor {
             return processStopStatusWithoutEvents(hfpData);
         }
 
-        if (previousStopStatus == null || hfpData.getTopic().getEventType() == Hfp.Topic.EventType.PDE || hfpData.getTopic().getEventType() == Hfp.Topic.EventType.PAS) {
-            //Set StopStatus to IN_TRANSIT_TO when a vehicle departs from a stop or passes through a stop
-            return new StopStatus(hfpData.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO);
+        final int previousStatus = getPreviousStatus(previousStopStatus);
+
+        final boolean sameStop;
+        if (previousStatus == INCOMING_AT) {
+            sameStop = nextStop.equals(previousStopStatus.stopId);
+        } else if (previousStatus == STOPPED_AT) {
+            sameStop = hfpData.getPayload().hasStop() && isSameStop(hfpData.getPayload().getStop(), nextStop);
+        } else {
+            sameStop = false;
+        }
+
+        switch (TRANSITIONS[transitionIndex(previousStatus, getEvent(hfpData.getTopic().getEventType()), sameStop)]) {
+            case KEEP:
+                return previousStopStatus;
+            case INCOMING_AT_NEXT_STOP:
+                return getStopStatus(nextStop, GtfsRealtime.VehiclePosition.VehicleStopStatus.INCOMING_AT);
+            case STOPPED_AT_NEXT_STOP:
+                return getStopStatus(nextStop, GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT);
+            default:
+                return getStopStatus(nextStop, GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO);
+        }
+    }
+
+    private StopStatus processStopStatusWithoutEvents(Hfp.Data data) {
+        if (data.getPayload().hasStop() && isSameStop(data.getPayload().getStop(), data.getTopic().getNextStop())) {
+            //If the vehicle is near a stop, its payload contains a stop ID -> assume that the vehicle is stopped at the stop
+            return getStopStatus(data.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT);
+        } else {
+            //Otherwise assume that the vehicle is in transit to the next stop
+            return getStopStatus(data.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO);
         }
+    }
 
-        if (hfpData.getTopic().getEventType() == Hfp.Topic.EventType.DUE) {
-            //Set StopStatus to INCOMING_AT when a vehicle is just about to arrive to a stop
-            return new StopStatus(hfpData.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.INCOMING_AT);
+    private static int getPreviousStatus(StopStatus previousStopStatus) {
+        if (previousStopStatus == null) {
+            return NONE;
         }
 
-        if (hfpData.getTopic().getEventType() == Hfp.Topic.EventType.ARS) {
-            //Set StopStatus to STOPPED_AT when a vehicle has arrived to a stop
-            return new StopStatus(hfpData.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT);
+        switch (previousStopStatus.stopStatus) {
+            case INCOMING_AT:
+                return INCOMING_AT;
+            case STOPPED_AT:
+                return STOPPED_AT;
+            default:
+                return IN_TRANSIT_TO;
         }
+    }
 
-        //If a vehicle was arriving to a stop and the stop id in the topic has not changed, return previous status
-        if (previousStopStatus.stopStatus == GtfsRealtime.VehiclePosition.VehicleStopStatus.INCOMING_AT &&
-                hfpData.getTopic().getNextStop().equals(previousStopStatus.stopId)) {
-            return previousStopStatus;
+    private static int getEvent(Hfp.Topic.EventType eventType) {
+        switch (eventType) {
+            case PDE:
+            case PAS:
+                return DEPARTURE;
+            case DUE:
+                return DUE;
+            case ARS:
+                return ARRIVAL;
+            default:
+                return OTHER_EVENT;
         }
+    }
 
-        if (previousStopStatus.stopStatus == GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT) {
-            if (hfpData.getPayload().hasStop() && String.valueOf(hfpData.getPayload().getStop()).equals(hfpData.getTopic().getNextStop())) {
-                //If next_stop has not changed in the topic, the vehicle is still at a stop
-                return previousStopStatus;
-            } else {
-                //If next_stop has changed, the vehicle is in transit to the next stop
-                return new StopStatus(hfpData.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO);
+    /**
+     * @return Shared stop status for the stop, stop ID of the status is the same instance for all statuses of the stop
+     */
+    private StopStatus getStopStatus(String stopId, GtfsRealtime.VehiclePosition.VehicleStopStatus status) {
+        StopStatus[] statuses = stopStatuses.get(stopId);
+        if (statuses == null) {
+            if (stopStatuses.size() >= MAX_CACHED_STOPS) {
+                stopStatuses.clear();
             }
-        }
 
-        return new StopStatus(hfpData.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO);
+            statuses = new StopStatus[STOP_STATUSES.length];
+            for (GtfsRealtime.VehiclePosition.VehicleStopStatus stopStatus : STOP_STATUSES) {
+                statuses[stopStatus.ordinal()] = new StopStatus(stopId, stopStatus);
+            }
+            stopStatuses.put(stopId, statuses);
+        }
+        return statuses[status.ordinal()];
     }
 
-    private StopStatus processStopStatusWithoutEvents(Hfp.Data data) {
-        if (data.getPayload().hasStop() && String.valueOf(data.getPayload().getStop()).equals(data.getTopic().getNextStop())) {
-            //If the vehicle is near a stop, its payload contains a stop ID -> assume that the vehicle is stopped at the stop
-            return new StopStatus(String.valueOf(data.getPayload().getStop()), GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT);
-        } else {
-            //Otherwise assume that the vehicle is in transit to the next stop
-            return new StopStatus(data.getTopic().getNextStop(), GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO);
+    /**
+     * Checks whether the stop ID is the stop number formatted as a string, i.e. String.valueOf(stop).equals(stopId),
+     * without formatting the number
+     */
+    static boolean isSameStop(int stop, String stopId) {
+        long value = stop;
+        final boolean negative = value < 0;
+        if (negative) {
+            value = -value;
         }
+
+        int index = stopId.length();
+        do {
+            if (--index < 0 || stopId.charAt(index) != '0' + (int) (value % 10)) {
+                return false;
+            }
+            value /= 10;
+        } while (value > 0);
+
+        if (negative && (--index < 0 || stopId.charAt(index) != '-')) {
+            return false;
+        }
+
+        return index == 0;
     }
 
     public static class StopStatus {
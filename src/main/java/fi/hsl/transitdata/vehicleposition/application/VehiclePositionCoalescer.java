@@ -0,0 +1,318 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Limits the rate at which vehicle positions are published for each vehicle.
+ *
+ * A vehicle position is published immediately if the previous position of the vehicle was published at least
+ * the minimum interval ago or if the stop status, trip or occupancy status of the vehicle has changed. Otherwise the
+ * vehicle position is held as pending, replacing any earlier pending position of the vehicle, and published when
+ * the interval has elapsed.
+ *
+ * Pending positions are published when the next position of the same vehicle is offered or when {@link #flush()}
+ * is called, so vehicles that have gone silent do not lose their last position. {@link #flush()} can also be
+ * scheduled with {@link #startScheduledFlush(Duration)}, so that pending positions are published, and the messages
+ * they were produced from acknowledged, even if no more messages are received. A replaced position is considered
+ * persisted when the position that replaced it is.
+ *
+ * State of the coalescer is guarded by its monitor so that the scheduled flush can run concurrently with the thread
+ * offering positions. The monitor is not held while publishing, so waiting for room in the send window does not block
+ * reading the statistics or stopping the scheduled flush. Positions are published by one thread at a time in the order
+ * they were taken from the vehicles. Coalescer fields of the vehicle states must only be accessed through the coalescer.
+ */
+public class VehiclePositionCoalescer {
+    private static final Logger log = LoggerFactory.getLogger(VehiclePositionCoalescer.class);
+
+    private final long minIntervalMs;
+    private final Clock clock;
+    private final Consumer<VehiclePositionMessage> publisher;
+
+    //Vehicles with a pending position, roughly in the order the positions become publishable
+    private final ArrayDeque<VehicleState> pendingVehicles = new ArrayDeque<>();
+    //Positions taken for publishing, published after releasing the monitor
+    private final ArrayDeque<VehiclePositionMessage> publishQueue = new ArrayDeque<>();
+    //Held while publishing, so that positions queued by different threads are published in order
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+    private long publishedCount = 0;
+    private long coalescedCount = 0;
+    private int pendingCount = 0;
+
+    //null if pending positions are only flushed when flush() is called by the owner
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * @param minInterval Minimum interval between published positions of a vehicle. 0 disables rate limiting.
+     * @param publisher Called for each published position
+     */
+    public VehiclePositionCoalescer(Duration minInterval, Consumer<VehiclePositionMessage> publisher) {
+        this(minInterval, publisher, Clock.systemUTC());
+    }
+
+    public VehiclePositionCoalescer(Duration minInterval, Consumer<VehiclePositionMessage> publisher, Clock clock) {
+        this.minIntervalMs = minInterval.toMillis();
+        this.publisher = publisher;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts flushing pending positions periodically in a separate thread. Does nothing if rate limiting is disabled.
+     * @param maxDelay Interval of the flush, i.e. maximum time a pending position is held after its minimum interval
+     *                 has elapsed. 0 disables the scheduled flush.
+     */
+    public synchronized void startScheduledFlush(Duration maxDelay) {
+        if (minIntervalMs <= 0 || maxDelay.isZero() || flushExecutor != null) {
+            return;
+        }
+
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "vehicle-position-coalescer-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                //Exception must not be thrown, otherwise the flush would not be run again
+                log.error("Failed to flush pending vehicle positions", e);
+            }
+        }, maxDelay.toMillis(), maxDelay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the scheduled flush, if it was started
+     */
+    public synchronized void stopScheduledFlush() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+            flushExecutor = null;
+        }
+    }
+
+    /**
+     * Publishes the vehicle position or holds it as pending for the vehicle
+     * @param vehicleState State of the vehicle that produced the position
+     * @param message Vehicle position
+     */
+    public void offer(VehicleState vehicleState, VehiclePositionMessage message) {
+        if (queueOrHold(vehicleState, message)) {
+            publishQueued();
+        }
+    }
+
+    /**
+     * @return true if there are positions to publish
+     */
+    private synchronized boolean queueOrHold(VehicleState vehicleState, VehiclePositionMessage message) {
+        if (minIntervalMs <= 0) {
+            queuePublish(message);
+            return true;
+        }
+
+        final long now = clock.millis();
+
+        if (vehicleState.pendingPosition != null) {
+            //Latest position always replaces the pending one
+            final VehiclePositionMessage replaced = vehicleState.pendingPosition;
+            message.persisted.whenComplete((result, error) -> {
+                if (error != null) {
+                    replaced.persisted.completeExceptionally(error);
+                } else {
+                    replaced.persisted.complete(null);
+                }
+            });
+            vehicleState.pendingPosition = null;
+            pendingCount--;
+            coalescedCount++;
+        }
+
+        if (vehicleState.lastPublishedPosition == null ||
+                now - vehicleState.lastPublishedAtMs >= minIntervalMs ||
+                isSignificantChange(vehicleState.lastPublishedPosition, message)) {
+            publish(vehicleState, message, now);
+        } else {
+            vehicleState.pendingPosition = message;
+            pendingCount++;
+            if (!vehicleState.inPendingQueue) {
+                vehicleState.inPendingQueue = true;
+                vehicleState.queuedAfterPublishAtMs = vehicleState.lastPublishedAtMs;
+                pendingVehicles.add(vehicleState);
+            }
+        }
+        return !publishQueue.isEmpty();
+    }
+
+    /**
+     * Publishes pending positions whose interval has elapsed
+     */
+    public void flush() {
+        if (queueDue()) {
+            publishQueued();
+        }
+    }
+
+    /**
+     * @return true if there are positions to publish
+     */
+    private synchronized boolean queueDue() {
+        if (pendingVehicles.isEmpty()) {
+            return !publishQueue.isEmpty();
+        }
+
+        final long now = clock.millis();
+
+        VehicleState vehicleState;
+        while ((vehicleState = pendingVehicles.peek()) != null) {
+            if (vehicleState.pendingPosition != null) {
+                if (now - vehicleState.lastPublishedAtMs < minIntervalMs) {
+                    if (vehicleState.lastPublishedAtMs == vehicleState.queuedAfterPublishAtMs) {
+                        //Vehicles are queued in the order their positions become publishable
+                        break;
+                    }
+
+                    //Vehicle was published again after it was queued, so its position in the queue is too early.
+                    //It is moved to the end of the queue so that it does not hold back the vehicles behind it.
+                    pendingVehicles.poll();
+                    vehicleState.queuedAfterPublishAtMs = vehicleState.lastPublishedAtMs;
+                    pendingVehicles.add(vehicleState);
+                    continue;
+                }
+
+                final VehiclePositionMessage message = vehicleState.pendingPosition;
+                vehicleState.pendingPosition = null;
+                pendingCount--;
+                publish(vehicleState, message, now);
+            }
+
+            pendingVehicles.poll();
+            vehicleState.inPendingQueue = false;
+        }
+        return !publishQueue.isEmpty();
+    }
+
+    /**
+     * Publishes all pending positions regardless of their interval, e.g. when there are no more messages to process
+     */
+    public void flushAll() {
+        queueAll();
+        publishQueued();
+    }
+
+    private synchronized void queueAll() {
+        final long now = clock.millis();
+
+        VehicleState vehicleState;
+        while ((vehicleState = pendingVehicles.poll()) != null) {
+            vehicleState.inPendingQueue = false;
+            if (vehicleState.pendingPosition != null) {
+                final VehiclePositionMessage message = vehicleState.pendingPosition;
+                vehicleState.pendingPosition = null;
+                pendingCount--;
+                publish(vehicleState, message, now);
+            }
+        }
+    }
+
+    /**
+     * Publishes the pending position of a vehicle whose state is removed, e.g. because the state store is full. A new
+     * state is created if the vehicle sends messages again, so the pending position must be published before any
+     * position of the new state.
+     * @param vehicleState Removed state
+     */
+    public void remove(VehicleState vehicleState) {
+        if (queuePending(vehicleState)) {
+            publishQueued();
+        }
+    }
+
+    /**
+     * @return true if there are positions to publish
+     */
+    private synchronized boolean queuePending(VehicleState vehicleState) {
+        if (vehicleState.pendingPosition != null) {
+            //Vehicle is left in the pending queue until it reaches the head, so that removing does not scan the queue
+            final VehiclePositionMessage message = vehicleState.pendingPosition;
+            vehicleState.pendingPosition = null;
+            pendingCount--;
+            publish(vehicleState, message, clock.millis());
+        }
+        return !publishQueue.isEmpty();
+    }
+
+    private void publish(VehicleState vehicleState, VehiclePositionMessage message, long now) {
+        vehicleState.lastPublishedPosition = message;
+        vehicleState.lastPublishedAtMs = now;
+        queuePublish(message);
+    }
+
+    private void queuePublish(VehiclePositionMessage message) {
+        publishedCount++;
+        publishQueue.add(message);
+    }
+
+    /**
+     * Publishes the queued positions without holding the monitor. The publisher can block, e.g. when the send window
+     * is full, in which case other threads wait for the publish lock.
+     */
+    private void publishQueued() {
+        publishLock.lock();
+        try {
+            VehiclePositionMessage message;
+            while ((message = pollPublishQueue()) != null) {
+                publisher.accept(message);
+            }
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    private synchronized VehiclePositionMessage pollPublishQueue() {
+        return publishQueue.poll();
+    }
+
+    static boolean isSignificantChange(VehiclePositionMessage previous, VehiclePositionMessage current) {
+        return !isSameStopStatus(previous.stopStatus, current.stopStatus) ||
+                !previous.trip.equals(current.trip) ||
+                previous.occupancyStatus != current.occupancyStatus;
+    }
+
+    private static boolean isSameStopStatus(StopStatusProcessor.StopStatus previous, StopStatusProcessor.StopStatus current) {
+        if (previous == null || current == null) {
+            return previous == current;
+        }
+        return previous.stopStatus == current.stopStatus && previous.stopId.equals(current.stopId);
+    }
+
+    /**
+     * @return Amount of positions published in total
+     */
+    public synchronized long getPublishedCount() {
+        return publishedCount;
+    }
+
+    /**
+     * @return Amount of positions that were replaced by a newer position before they were published
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return Amount of vehicles that have a pending position
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+}
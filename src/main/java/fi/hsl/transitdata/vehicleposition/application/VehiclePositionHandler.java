@@ -4,16 +4,19 @@ package fi.hsl.transitdata.vehicleposition.application;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime;
 import com.typesafe.config.Config;
-import fi.hsl.common.gtfsrt.FeedMessageFactory;
 import fi.hsl.common.hfp.proto.Hfp;
 import fi.hsl.common.passengercount.proto.PassengerCount;
 import fi.hsl.common.pulsar.IMessageHandler;
 import fi.hsl.common.pulsar.PulsarApplicationContext;
 import fi.hsl.common.transitdata.TransitdataProperties;
-import fi.hsl.common.transitdata.TransitdataSchema;
 import fi.hsl.transitdata.vehicleposition.application.gtfsrt.GtfsRtGenerator;
 import fi.hsl.transitdata.vehicleposition.application.gtfsrt.GtfsRtOccupancyStatusHelper;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.HfpTopicFilter;
+import fi.hsl.transitdata.vehicleposition.application.utils.CachedPassengerCount;
 import fi.hsl.transitdata.vehicleposition.application.utils.PassengerCountCache;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripDescriptor;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripRegistry;
 import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
 import fi.hsl.transitdata.vehicleposition.application.utils.VehicleDelayValidator;
 import fi.hsl.transitdata.vehicleposition.application.utils.VehicleTimestampValidator;
@@ -21,8 +24,10 @@ import org.apache.pulsar.client.api.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -33,12 +38,16 @@ public class VehiclePositionHandler implements IMessageHandler {
     private static final Duration LOG_INTERVAL = Duration.ofSeconds(1);
     //If HFP message is delayed by more than this duration, add it to delayed messages counter
     private static final Duration DELAYED_MESSAGE_THRESHOLD = Duration.ofMinutes(2);
+    //Returned for messages that do not produce a vehicle position, i.e. they can be acknowledged immediately
+    private static final CompletableFuture<Void> NO_OUTPUT = CompletableFuture.completedFuture(null);
 
+    //null if messages are not received from Pulsar
     private final Consumer<byte[]> consumer;
-    private final Producer<byte[]> producer;
+    private final VehiclePositionProducer producer;
     private final Config config;
+    private final Clock clock;
 
-    private final TripVehicleCache tripVehicleCache;
+    private final TripRegistry tripRegistry;
     private final StopStatusProcessor stopStatusProcessor;
     private final VehicleTimestampValidator vehicleTimestampValidator;
 
@@ -48,19 +57,91 @@ public class VehiclePositionHandler implements IMessageHandler {
 
     private long messagesProcessed = 0;
     private long messagesDelayed = 0;
+    private long messagesRejectedOnFastPath = 0;
     private long messageProcessingStartTime = System.nanoTime();
 
+    //State of each vehicle, i.e. latest timestamp, stop status, trip and passenger count
+    private final VehicleStateStore vehicleStates;
+
     //Keeps track of latest passenger count message received for the trip
-    private final PassengerCountCache passengerCountCache = new PassengerCountCache();
+    private final PassengerCountCache passengerCountCache;
 
     private final Set<Hfp.Topic.TransportMode> addedTripsEnabledModes;
 
+    //Limits the rate of published vehicle positions per vehicle
+    private final VehiclePositionCoalescer vehiclePositionCoalescer;
+
+    //null if snapshots are not published
+    private final VehiclePositionSnapshotPublisher snapshotPublisher;
+
+    private final ProcessingMetrics metrics;
+
+    //null if state snapshots are not written
+    private final ProcessorStateSnapshotter.Slot stateSnapshotSlot;
+
     public VehiclePositionHandler(final PulsarApplicationContext context) {
-        consumer = context.getConsumer();
-        producer = context.getSingleProducer();
-        config = context.getConfig();
+        this(context, new TripVehicleCache(), null, new ProcessingMetrics(), null);
+    }
 
-        tripVehicleCache = new TripVehicleCache();
+    /**
+     * @param context
+     * @param tripRegistry Trip registrations, can be shared by handlers that process messages from different vehicles
+     * @param snapshotPublisher Publisher for vehicle position snapshots, can be shared by handlers. null if snapshots are not published.
+     * @param metrics Processing metrics, can be shared by handlers
+     * @param stateSnapshotSlot Slot for capturing vehicle states to state snapshots, vehicle states are restored from it. null if state snapshots are not written.
+     */
+    public VehiclePositionHandler(final PulsarApplicationContext context, final TripRegistry tripRegistry, final VehiclePositionSnapshotPublisher snapshotPublisher, final ProcessingMetrics metrics, final ProcessorStateSnapshotter.Slot stateSnapshotSlot) {
+        this(context.getConsumer(),
+                new PulsarVehiclePositionProducer(context.getSingleProducer(), new PendingSendWindow(context.getConfig().getInt("processor.vehicleposition.publish.maxPending"), metrics)),
+                context.getConfig(), tripRegistry, snapshotPublisher, metrics, stateSnapshotSlot, Clock.systemUTC());
+        //Messages of pending positions are not acknowledged until the positions are published, so they must be
+        //published also when no more messages are received from the partition
+        vehiclePositionCoalescer.startScheduledFlush(Duration.ofMillis(context.getConfig().getDuration("processor.vehicleposition.publish.maxFlushDelay", TimeUnit.MILLISECONDS)));
+    }
+
+    /**
+     * @param consumer Consumer for acknowledging messages, null if messages are only handled with {@link #handle(String, byte[], long)}
+     * @param producer Destination of the produced vehicle positions
+     * @param config
+     * @param tripRegistry Trip registrations, can be shared by handlers that process messages from different vehicles
+     * @param snapshotPublisher Publisher for vehicle position snapshots, can be shared by handlers. null if snapshots are not published.
+     * @param metrics Processing metrics, can be shared by handlers
+     * @param stateSnapshotSlot Slot for capturing vehicle states to state snapshots, vehicle states are restored from it. null if state snapshots are not written.
+     * @param clock Clock used for expiring vehicle states and passenger counts, rate limiting and measuring delays of messages
+     */
+    public VehiclePositionHandler(final Consumer<byte[]> consumer, final VehiclePositionProducer producer, final Config config, final TripRegistry tripRegistry, final VehiclePositionSnapshotPublisher snapshotPublisher, final ProcessingMetrics metrics, final ProcessorStateSnapshotter.Slot stateSnapshotSlot, final Clock clock) {
+        this.consumer = consumer;
+        this.producer = producer;
+        this.config = config;
+        this.clock = clock;
+
+        this.tripRegistry = tripRegistry;
+        this.snapshotPublisher = snapshotPublisher;
+        this.metrics = metrics;
+        passengerCountCache = new PassengerCountCache(
+                Duration.ofSeconds(config.getDuration("processor.vehicleposition.passengerCount.maxAge", TimeUnit.SECONDS)),
+                config.getInt("processor.vehicleposition.passengerCount.maxSize"),
+                clock);
+        vehiclePositionCoalescer = new VehiclePositionCoalescer(
+                Duration.ofMillis(config.getDuration("processor.vehicleposition.publish.minInterval", TimeUnit.MILLISECONDS)),
+                this::publish,
+                clock);
+        metrics.addVehiclePositionCoalescer(vehiclePositionCoalescer);
+        vehicleStates = new VehicleStateStore(
+                Duration.ofSeconds(config.getDuration("processor.vehicleposition.vehicleState.maxIdleTime", TimeUnit.SECONDS)),
+                config.getInt("processor.vehicleposition.vehicleState.maxSize"),
+                clock,
+                vehicleState -> {
+                    //Passenger count of a removed vehicle would otherwise take room from other vehicles
+                    passengerCountCache.remove(vehicleState);
+                    //Pending position of a removed vehicle would otherwise be published after positions of its new state
+                    vehiclePositionCoalescer.remove(vehicleState);
+                });
+        metrics.addVehicleStateStore(vehicleStates);
+        this.stateSnapshotSlot = stateSnapshotSlot;
+        if (stateSnapshotSlot != null) {
+            log.info("Restored state of {} vehicles", stateSnapshotSlot.restore(vehicleStates));
+        }
         stopStatusProcessor = new StopStatusProcessor();
         vehicleTimestampValidator = new VehicleTimestampValidator(config.getDuration("processor.vehicleposition.maxTimeDifference", TimeUnit.SECONDS));
         vehicleDelayValidator = new VehicleDelayValidator(config.getDuration("processor.vehicleposition.maxDelayAllowed", TimeUnit.SECONDS));
@@ -92,75 +173,180 @@ public class VehiclePositionHandler implements IMessageHandler {
         gtfsRtOccupancyStatusHelper = new GtfsRtOccupancyStatusHelper(occupancyStatusMap, occuLevelsVehicleLoadRatio, passengerCountEnabledVehicles);
     }
 
-    private static String getUniqueVehicleId(int oper, int veh) {
-        return oper + "_" + veh;
-    }
-
+    /**
+     * Handles a message. The message is acknowledged after the vehicle position produced from it has been persisted
+     * by the broker, or immediately if no vehicle position was produced.
+     */
     @Override
     public void handleMessage(Message message) {
+        CompletableFuture<Void> persisted = NO_OUTPUT;
+        try {
+            persisted = processMessage(message);
+            vehiclePositionCoalescer.flush();
+            captureStateIfDue();
+        } finally {
+            final MessageId messageId = message.getMessageId();
+            persisted.whenComplete((result, error) -> {
+                if (error != null) {
+                    log.warn("Vehicle position was not persisted, message will be redelivered", error);
+                    consumer.negativeAcknowledge(messageId);
+                } else {
+                    ack(messageId);
+                }
+            });
+            updateStatistics(1);
+        }
+    }
+
+    /**
+     * Handles a batch of messages. Messages are acknowledged with a single call after vehicle positions produced from
+     * the whole batch have been persisted by the broker.
+     * @param messages Messages in the order they were received
+     */
+    public void handleMessages(List<Message<byte[]>> messages) {
+        final List<CompletableFuture<Void>> persisted = new ArrayList<>(messages.size());
+        try {
+            for (Message<byte[]> message : messages) {
+                persisted.add(processMessage(message));
+            }
+            vehiclePositionCoalescer.flush();
+            captureStateIfDue();
+        } finally {
+            //Messages that were not processed due to an exception are acknowledged like in the single message case
+            while (persisted.size() < messages.size()) {
+                persisted.add(NO_OUTPUT);
+            }
+
+            CompletableFuture.allOf(persisted.toArray(new CompletableFuture[0])).whenComplete((result, error) -> {
+                if (error == null) {
+                    ack(messages.stream().map(Message::getMessageId).collect(Collectors.toList()));
+                    return;
+                }
+
+                log.warn("Vehicle positions of a batch were not persisted, failed messages will be redelivered", error);
+                for (int i = 0; i < messages.size(); i++) {
+                    if (persisted.get(i).isCompletedExceptionally()) {
+                        consumer.negativeAcknowledge(messages.get(i).getMessageId());
+                    } else {
+                        ack(messages.get(i).getMessageId());
+                    }
+                }
+            });
+            updateStatistics(messages.size());
+        }
+    }
+
+    /**
+     * Handles a message that was not received from Pulsar, e.g. when replaying messages from a file
+     * @param protobufSchema Protobuf schema of the message as in {@link TransitdataProperties#KEY_PROTOBUF_SCHEMA}
+     * @param data
+     * @param eventTimeMs Event time of the message
+     * @return Future that is completed when the vehicle position produced from the message has been persisted
+     */
+    public CompletableFuture<Void> handle(String protobufSchema, byte[] data, long eventTimeMs) {
+        try {
+            final CompletableFuture<Void> persisted = processMessage(protobufSchema, data, eventTimeMs);
+            vehiclePositionCoalescer.flush();
+            captureStateIfDue();
+            return persisted;
+        } finally {
+            updateStatistics(1);
+        }
+    }
+
+    /**
+     * Publishes all pending vehicle positions regardless of rate limiting, e.g. when there are no more messages to handle
+     */
+    public void flushPendingPositions() {
+        vehiclePositionCoalescer.flushAll();
+    }
+
+    /**
+     * Stops the scheduled flush of pending vehicle positions. Pending positions are not published, use
+     * {@link #flushPendingPositions()} before closing to publish them.
+     */
+    public void close() {
+        vehiclePositionCoalescer.stopScheduledFlush();
+    }
+
+    private CompletableFuture<Void> processMessage(Message message) {
+        return processMessage(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA), message.getData(), message.getEventTime());
+    }
+
+    /**
+     * @return Future that is completed when the vehicle position produced from the message has been persisted
+     */
+    private CompletableFuture<Void> processMessage(String protobufSchema, byte[] messageData, long eventTimeMs) {
         try {
-            if (TransitdataSchema.hasProtobufSchema(message, TransitdataProperties.ProtobufSchema.PassengerCount)) {
+            if (TransitdataProperties.ProtobufSchema.PassengerCount.toString().equals(protobufSchema)) {
+                metrics.incrementMessagesIn(TransitdataProperties.ProtobufSchema.PassengerCount.toString());
+                final long parseStartTime = System.nanoTime();
+
                 PassengerCount.Data data = null;
                 try {
-                    data = PassengerCount.Data.parseFrom(message.getData());
+                    data = PassengerCount.Data.parseFrom(messageData);
                 } catch (InvalidProtocolBufferException e) {
                     log.error("Failed to parse passenger count data", e);
-                    throw new Exception(e);
+                    metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.PARSE_ERROR);
+                    return NO_OUTPUT;
                 }
+                metrics.recordStage(ProcessingMetrics.Stage.PARSE, parseStartTime);
                 
                 try {
-                    final String uniqueVehicleId = getUniqueVehicleId(data.getPayload().getOper(), data.getPayload().getVeh());
+                    final VehicleState vehicleState = vehicleStates.getOrCreate(data.getPayload().getOper(), data.getPayload().getVeh());
     
-                    passengerCountCache.updatePassengerCount(uniqueVehicleId, data.getPayload().getRoute(), data.getPayload().getOday(), data.getPayload().getStart(), data.getPayload().getDir(), data.getPayload());
+                    passengerCountCache.updatePassengerCount(vehicleState, data.getPayload().getRoute(), data.getPayload().getOday(), data.getPayload().getStart(), data.getPayload().getDir(), data.getPayload());
                 } catch (Exception x) {
-                    log.error("Failed to get unique vehicleId and update passenger count");
+                    log.error("Failed to update passenger count");
                     throw x;
                 }
-            } else if (TransitdataSchema.hasProtobufSchema(message, TransitdataProperties.ProtobufSchema.HfpData)) {
+            } else if (TransitdataProperties.ProtobufSchema.HfpData.toString().equals(protobufSchema)) {
+                metrics.incrementMessagesIn(TransitdataProperties.ProtobufSchema.HfpData.toString());
+                final long receivedAtMs = clock.millis();
+                final long receivedAtNanos = System.nanoTime();
+                long stageStartTime = receivedAtNanos;
+
+                final byte[] hfpData = messageData;
+
+                //Most of the HFP messages are not relevant, check the topic before parsing the whole message.
+                //Rejected messages are not parsed, so they are counted by the filter result even if they are malformed
+                final HfpTopicFilter.Result filterResult = HfpTopicFilter.check(hfpData);
+                stageStartTime = metrics.recordStage(ProcessingMetrics.Stage.FILTER, stageStartTime);
+                if (filterResult != HfpTopicFilter.Result.RELEVANT) {
+                    // Rejected messages are not logged because it would produce a big amount of log items
+                    messagesRejectedOnFastPath++;
+                    metrics.incrementMessagesDropped(getDropReason(filterResult), HfpTopicFilter.getTransportMode(hfpData));
+                    return NO_OUTPUT;
+                }
+
                 Hfp.Data data = null;
                 try {
-                    data = Hfp.Data.parseFrom(message.getData());
+                    data = Hfp.Data.parseFrom(hfpData);
                 } catch (InvalidProtocolBufferException e) {
                     log.error("Failed to parse HfpData", e);
-                    throw new Exception(e);
-                }
-                
-                try {
-                    //Ignore HFP messages that are not sent from vehicles on a journey
-                    if (data.getTopic().getJourneyType() != Hfp.Topic.JourneyType.journey) {
-                        // This log statement is commented out because it produces a big amount of log items
-                        //log.info("Ignore HFP messages that are not sent from vehicles on a journey");
-                        return;
-                    }
-    
-                    //Ignore HFP messages that are not sent from vehicles on an ongoing journey
-                    if (data.getTopic().getTemporalType() != Hfp.Topic.TemporalType.ongoing) {
-                        // This log statement is commented out because it produces a big amount of log items
-                        //log.info("Ignored message since vehicle wasn't on a journey");
-                        return;
-                    }
-    
-                    //Ignore events that are not relevant to calculating stop status
-                    if (data.getTopic().getEventType() != Hfp.Topic.EventType.VP &&
-                            data.getTopic().getEventType() != Hfp.Topic.EventType.DUE &&
-                            data.getTopic().getEventType() != Hfp.Topic.EventType.PAS &&
-                            data.getTopic().getEventType() != Hfp.Topic.EventType.ARS &&
-                            data.getTopic().getEventType() != Hfp.Topic.EventType.PDE) {
-                        log.debug("Ignoring HFP message with event type {}", data.getTopic().getEventType());
-                        return;
-                    }
-                } catch (Exception x) {
-                    log.error("Topic related checks failed");
-                    throw x;
+                    metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.PARSE_ERROR, HfpTopicFilter.getTransportMode(hfpData));
+                    return NO_OUTPUT;
                 }
+                stageStartTime = metrics.recordStage(ProcessingMetrics.Stage.PARSE, stageStartTime);
+
+                //Timestamp of the vehicle has only second precision, latency from the vehicle to the MQTT bridge is therefore only accurate to a second
+                final Hfp.Topic.TransportMode transportMode = data.getTopic().getTransportMode();
+                metrics.recordLatency(ProcessingMetrics.Latency.VEHICLE_TO_BRIDGE, transportMode, TimeUnit.MILLISECONDS.toNanos(data.getTopic().getReceivedAt() - data.getPayload().getTsi() * 1000));
+                metrics.recordLatency(ProcessingMetrics.Latency.BRIDGE_TO_RECEIVE, transportMode, TimeUnit.MILLISECONDS.toNanos(receivedAtMs - data.getTopic().getReceivedAt()));
+
+                final VehicleState vehicleState = vehicleStates.getOrCreate(data.getTopic());
 
-                final boolean tripAlreadyTaken = !tripVehicleCache.registerVehicleForTrip(data.getTopic().getUniqueVehicleId(), data.getTopic().getRouteId(), data.getPayload().getOday(), data.getTopic().getStartTime(), data.getPayload().getDir());
+                final boolean tripAlreadyTaken = !tripRegistry.registerVehicleForTrip(vehicleState, data.getTopic().getUniqueVehicleId(),
+                        data.getTopic().getRouteId(), data.getPayload().getOday(), data.getTopic().getStartTime(), data.getPayload().getDir());
+                final TripDescriptor trip = vehicleState.getTrip();
+                stageStartTime = metrics.recordStage(ProcessingMetrics.Stage.TRIP_REGISTRATION, stageStartTime);
                 
                 try {
                     if (tripAlreadyTaken && !addedTripsEnabledModes.contains(data.getTopic().getTransportMode())) {
                         //If some other vehicle was registered for the trip and the vehicle is not a bus, do not produce vehicle position
-                        log.debug("There was already a vehicle registered for trip {} / {} / {} / {} - not producing vehicle position message for {}", data.getTopic().getRouteId(), data.getPayload().getOday(), data.getTopic().getStartTime(), data.getPayload().getDir(), data.getTopic().getUniqueVehicleId());
-                        return;
+                        log.debug("There was already a vehicle registered for trip {} - not producing vehicle position message for {}", trip, data.getTopic().getUniqueVehicleId());
+                        metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.TRIP_ALREADY_TAKEN, transportMode);
+                        return NO_OUTPUT;
                     }
                 } catch (Exception x) {
                     log.error("tripAlreadyTaken check failed");
@@ -168,14 +354,20 @@ public class VehiclePositionHandler implements IMessageHandler {
                 }
                 
                 try {
-                    if (!vehicleTimestampValidator.validateTimestamp(data, message.getEventTime())) {
+                    final VehicleTimestampValidator.Result timestampResult = vehicleTimestampValidator.checkTimestamp(vehicleState, data, eventTimeMs);
+                    final boolean validDelay = timestampResult == VehicleTimestampValidator.Result.VALID && vehicleDelayValidator.validateDelay(data);
+                    stageStartTime = metrics.recordStage(ProcessingMetrics.Stage.VALIDATION, stageStartTime);
+
+                    if (timestampResult != VehicleTimestampValidator.Result.VALID) {
                         //Vehicle had invalid timestamp..
-                        return;
+                        metrics.incrementMessagesDropped(timestampResult == VehicleTimestampValidator.Result.FUTURE_TIMESTAMP ? ProcessingMetrics.DropReason.FUTURE_TIMESTAMP : ProcessingMetrics.DropReason.OLDER_TIMESTAMP, transportMode);
+                        return NO_OUTPUT;
                     }
     
-                    if (!vehicleDelayValidator.validateDelay(data)) {
+                    if (!validDelay) {
                         // Vehicle was delayed too much
-                        return;
+                        metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.DELAY_TOO_LARGE, transportMode);
+                        return NO_OUTPUT;
                     }
                 } catch (Exception x) {
                     log.error("Validations failed");
@@ -183,16 +375,17 @@ public class VehiclePositionHandler implements IMessageHandler {
                 }
                 
                 try {
-                    StopStatusProcessor.StopStatus stopStatus = stopStatusProcessor.getStopStatus(data);
-                    String uniqueVehicleId = getUniqueVehicleId(data.getTopic().getOperatorId(), data.getTopic().getVehicleNumber());
-                    PassengerCount.Payload passengerCount = passengerCountCache.getPassengerCount(uniqueVehicleId, data.getPayload().getRoute(), data.getPayload().getOday(), data.getPayload().getStart(), data.getPayload().getDir());
+                    StopStatusProcessor.StopStatus stopStatus = stopStatusProcessor.getStopStatus(vehicleState, data);
+                    stageStartTime = metrics.recordStage(ProcessingMetrics.Stage.STOP_STATUS, stageStartTime);
+
+                    CachedPassengerCount passengerCount = passengerCountCache.getPassengerCount(vehicleState, data.getPayload().getRoute(), data.getPayload().getOday(), data.getPayload().getStart(), data.getPayload().getDir());
                     
                     if (!isValidPassengerCountData(passengerCount)) {
                         if (passengerCount != null) {
                             log.debug("Passenger count for vehicle {} was invalid (vehicle load: {}, vehicle load ratio: {})",
-                                    uniqueVehicleId,
-                                    passengerCount.getVehicleCounts().getVehicleLoad(),
-                                    passengerCount.getVehicleCounts().getVehicleLoadRatio());
+                                    data.getTopic().getUniqueVehicleId(),
+                                    passengerCount.getVehicleLoad(),
+                                    passengerCount.getVehicleLoadRatio());
                         }
         
                         //Don't use invalid data
@@ -200,40 +393,73 @@ public class VehiclePositionHandler implements IMessageHandler {
                     }
                     
                     Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> maybeOccupancyStatus = gtfsRtOccupancyStatusHelper.getOccupancyStatus(data.getPayload(), passengerCount);
-                    Optional<GtfsRealtime.VehiclePosition> optionalVehiclePosition = GtfsRtGenerator.generateVehiclePosition(data, tripAlreadyTaken ? GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED : GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, stopStatus, maybeOccupancyStatus);
-                    
-                    if (optionalVehiclePosition.isPresent()) {
-                        final GtfsRealtime.VehiclePosition vehiclePosition = optionalVehiclePosition.get();
-                        final String topicSuffix = getTopicSuffix(vehiclePosition);
-                        final GtfsRealtime.FeedMessage feedMessage = FeedMessageFactory.createDifferentialFeedMessage(generateEntityId(data), vehiclePosition, data.getPayload().getTsi());
-                        
-                        if (Duration.ofMillis(System.currentTimeMillis() - (data.getPayload().getTsi() * 1000)).compareTo(DELAYED_MESSAGE_THRESHOLD) >= 0) {
+                    //Ignore messages where the vehicle has no location
+                    if (GtfsRtGenerator.hasLocation(data)) {
+                        if (Duration.ofMillis(clock.millis() - (data.getPayload().getTsi() * 1000)).compareTo(DELAYED_MESSAGE_THRESHOLD) >= 0) {
                             messagesDelayed++;
                         }
-                        sendPulsarMessage(data.getTopic().getUniqueVehicleId(), topicSuffix, feedMessage, data.getPayload().getTsi());
+
+                        final GtfsRealtime.TripDescriptor gtfsRtTrip = GtfsRtGenerator.getTripDescriptor(vehicleState, data, tripAlreadyTaken ? GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED : GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED);
+                        final VehiclePositionMessage vehiclePositionMessage = new VehiclePositionMessage(data.getTopic().getUniqueVehicleId(), generateEntityId(data), data, gtfsRtTrip, stopStatus, maybeOccupancyStatus.orElse(null), receivedAtNanos);
+                        metrics.recordStage(ProcessingMetrics.Stage.GENERATION, stageStartTime);
+
+                        vehiclePositionCoalescer.offer(vehicleState, vehiclePositionMessage);
+                        return vehiclePositionMessage.persisted;
+                    } else {
+                        metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.NO_LOCATION, transportMode);
                     }
                 } catch (Exception x) {
                     log.error("Preparing or sending pulsar message failed.", x);
                     throw x;
                 }
             } else {
+                metrics.incrementMessagesIn(ProcessingMetrics.UNKNOWN_SCHEMA);
+                metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.UNKNOWN_SCHEMA);
                 log.warn("Invalid protobuf schema, expecting HfpData");
             }
         } catch (Exception e) {
             log.error("Exception while handling message", e);
-        } finally {
-            ack(message.getMessageId());
+            if (TransitdataProperties.ProtobufSchema.HfpData.toString().equals(protobufSchema)) {
+                metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.PROCESSING_ERROR, HfpTopicFilter.getTransportMode(messageData));
+            } else {
+                metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.PROCESSING_ERROR);
+            }
+        }
+        return NO_OUTPUT;
+    }
 
-            messagesProcessed++;
+    private void captureStateIfDue() {
+        if (stateSnapshotSlot != null) {
+            stateSnapshotSlot.captureIfDue(vehicleStates);
+        }
+    }
 
-            final Duration timeSinceLastLogging = Duration.ofNanos(System.nanoTime() - messageProcessingStartTime);
-            if (timeSinceLastLogging.compareTo(LOG_INTERVAL) >= 0) {
-                log.info("{} messages processed during last {}ms ({} messages delayed by more than {} seconds)", messagesProcessed, timeSinceLastLogging.toMillis(), messagesDelayed, DELAYED_MESSAGE_THRESHOLD.toSeconds());
+    private void updateStatistics(int messageCount) {
+        messagesProcessed += messageCount;
 
-                messagesProcessed = 0;
-                messagesDelayed = 0;
-                messageProcessingStartTime = System.nanoTime();
-            }
+        final Duration timeSinceLastLogging = Duration.ofNanos(System.nanoTime() - messageProcessingStartTime);
+        if (timeSinceLastLogging.compareTo(LOG_INTERVAL) >= 0) {
+            log.info("{} messages processed during last {}ms ({} messages delayed by more than {} seconds, {} HFP messages rejected before parsing)", messagesProcessed, timeSinceLastLogging.toMillis(), messagesDelayed, DELAYED_MESSAGE_THRESHOLD.toSeconds(), messagesRejectedOnFastPath);
+            log.info("State stored for {} vehicles ({} expired and {} evicted in total)", vehicleStates.size(), vehicleStates.getExpiredCount(), vehicleStates.getEvictedCount());
+            log.info("{} vehicle positions published and {} coalesced in total, {} vehicles have a pending position, {} vehicle positions waiting for acknowledgement from Pulsar", vehiclePositionCoalescer.getPublishedCount(), vehiclePositionCoalescer.getCoalescedCount(), vehiclePositionCoalescer.getPendingCount(), metrics.getPendingSends());
+
+            messagesProcessed = 0;
+            messagesDelayed = 0;
+            messagesRejectedOnFastPath = 0;
+            messageProcessingStartTime = System.nanoTime();
+        }
+    }
+
+    private static ProcessingMetrics.DropReason getDropReason(HfpTopicFilter.Result filterResult) {
+        switch (filterResult) {
+            case NOT_JOURNEY:
+                return ProcessingMetrics.DropReason.NOT_JOURNEY;
+            case NOT_ONGOING:
+                return ProcessingMetrics.DropReason.NOT_ONGOING;
+            case IRRELEVANT_EVENT_TYPE:
+                return ProcessingMetrics.DropReason.IRRELEVANT_EVENT_TYPE;
+            default:
+                throw new IllegalArgumentException("Message was not filtered out: " + filterResult);
         }
     }
 
@@ -242,12 +468,12 @@ public class VehiclePositionHandler implements IMessageHandler {
      * @param payload
      * @return
      */
-    private static boolean isValidPassengerCountData(PassengerCount.Payload payload) {
-        if (payload == null) {
+    private static boolean isValidPassengerCountData(CachedPassengerCount passengerCount) {
+        if (passengerCount == null) {
             return false;
         }
 
-        return payload.getVehicleCounts().getVehicleLoad() >= 0;
+        return passengerCount.getVehicleLoad() >= 0;
     }
 
     static String getTopicSuffix(GtfsRealtime.VehiclePosition vehiclePosition) {
@@ -262,6 +488,19 @@ public class VehiclePositionHandler implements IMessageHandler {
                 vehiclePosition.getStopId());
     }
 
+    /**
+     * Same as {@link #getTopicSuffix(GtfsRealtime.VehiclePosition)} for the vehicle position with the given trip and stop status
+     */
+    static String getTopicSuffix(GtfsRealtime.TripDescriptor trip, StopStatusProcessor.StopStatus stopStatus) {
+        return String.join("/",
+                trip.getRouteId(),
+                trip.getStartDate(),
+                trip.getStartTime(),
+                String.valueOf(trip.getDirectionId()),
+                stopStatus != null ? stopStatus.stopStatus.name() : GtfsRealtime.VehiclePosition.getDefaultInstance().getCurrentStatus().name(),
+                stopStatus != null ? stopStatus.stopId : "");
+    }
+
     private static String generateEntityId(Hfp.Data data) {
         return "vehicle_position_"+data.getTopic().getUniqueVehicleId();
         //return String.join("_",data.getTopic().getUniqueVehicleId(), data.getTopic().getRouteId(), data.getPayload().getOday(), data.getTopic().getStartTime(), String.valueOf(data.getTopic().getDirectionId()));
@@ -276,14 +515,47 @@ public class VehiclePositionHandler implements IMessageHandler {
                 .thenRun(() -> {});
     }
 
-    private void sendPulsarMessage(final String vehicleId, final String topicSuffix, final GtfsRealtime.FeedMessage feedMessage, long timestampMs) {
-        producer.newMessage()
-            .key(vehicleId)
-            .value(feedMessage.toByteArray())
-            .eventTime(timestampMs)
-            .property(TransitdataProperties.KEY_MQTT_TOPIC, topicSuffix)
-            .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.GTFS_VehiclePosition.toString())
-            .sendAsync()
+    private void ack(List<MessageId> received) {
+        consumer.acknowledgeAsync(received)
+                .exceptionally(throwable -> {
+                    log.error("Failed to ack {} Pulsar messages", received.size(), throwable);
+                    return null;
+                })
+                .thenRun(() -> {});
+    }
+
+    private void publish(VehiclePositionMessage message) {
+        final long sendStartTime = System.nanoTime();
+        final Hfp.Topic.TransportMode transportMode = message.data.getTopic().getTransportMode();
+        metrics.recordLatency(ProcessingMetrics.Latency.RECEIVE_TO_PRODUCE, transportMode, sendStartTime - message.receivedAtNanos);
+
+        final String topicSuffix = getTopicSuffix(message.trip, message.stopStatus);
+
+        try {
+            sendPulsarMessage(message.vehicleId, topicSuffix, message.serializeFeedMessage(), message.timestamp, transportMode)
+                    .whenComplete((messageId, error) -> {
+                        if (error != null) {
+                            message.persisted.completeExceptionally(error);
+                        } else {
+                            message.persisted.complete(null);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            message.persisted.completeExceptionally(e);
+            throw e;
+        }
+        metrics.recordStage(ProcessingMetrics.Stage.SEND, sendStartTime);
+        metrics.incrementMessagesOut();
+
+        if (snapshotPublisher != null) {
+            snapshotPublisher.update(message);
+        }
+    }
+
+    private CompletableFuture<MessageId> sendPulsarMessage(final String vehicleId, final String topicSuffix, final byte[] feedMessage, long timestampMs, final Hfp.Topic.TransportMode transportMode) {
+        final long producedAtNanos = System.nanoTime();
+
+        return producer.send(vehicleId, topicSuffix, feedMessage, timestampMs)
             .whenComplete((messageId, error) -> {
                 if (error != null) {
                     if (error instanceof PulsarClientException) {
@@ -294,6 +566,7 @@ public class VehiclePositionHandler implements IMessageHandler {
                 }
 
                 if (messageId != null) {
+                    metrics.recordLatency(ProcessingMetrics.Latency.PRODUCE_TO_ACK, transportMode, System.nanoTime() - producedAtNanos);
                     log.debug("Produced a new position for vehicle {} with timestamp {}", vehicleId, timestampMs);
                 }
             });
@@ -0,0 +1,53 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.gtfsrt.FeedMessageSerializer;
+import fi.hsl.transitdata.vehicleposition.application.gtfsrt.GtfsRtGenerator;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Vehicle position produced from a HFP message, waiting to be published. The GTFS-RT vehicle position is only
+ * created when needed, the feed message is serialized directly from the HFP data.
+ */
+public class VehiclePositionMessage {
+    public final String vehicleId;
+    public final String entityId;
+    //HFP data that has a location
+    public final Hfp.Data data;
+    public final GtfsRealtime.TripDescriptor trip;
+    //null if the vehicle has no stop status
+    public final StopStatusProcessor.StopStatus stopStatus;
+    //null if the vehicle has no occupancy status
+    public final GtfsRealtime.VehiclePosition.OccupancyStatus occupancyStatus;
+    //Timestamp (tsi) of the HFP message
+    public final long timestamp;
+    //Time when the HFP message was received, from System.nanoTime()
+    public final long receivedAtNanos;
+    //Completed when the vehicle position, or a newer position of the same vehicle that replaced it, has been persisted by the broker
+    public final CompletableFuture<Void> persisted = new CompletableFuture<>();
+
+    public VehiclePositionMessage(String vehicleId, String entityId, Hfp.Data data, GtfsRealtime.TripDescriptor trip, StopStatusProcessor.StopStatus stopStatus, GtfsRealtime.VehiclePosition.OccupancyStatus occupancyStatus, long receivedAtNanos) {
+        this.vehicleId = vehicleId;
+        this.entityId = entityId;
+        this.data = data;
+        this.trip = trip;
+        this.stopStatus = stopStatus;
+        this.occupancyStatus = occupancyStatus;
+        this.timestamp = data.getPayload().getTsi();
+        this.receivedAtNanos = receivedAtNanos;
+    }
+
+    public GtfsRealtime.VehiclePosition createVehiclePosition() {
+        return GtfsRtGenerator.createVehiclePosition(data, trip, stopStatus, Optional.ofNullable(occupancyStatus));
+    }
+
+    /**
+     * @return Serialized differential feed message containing the vehicle position
+     */
+    public byte[] serializeFeedMessage() {
+        return FeedMessageSerializer.serializeDifferentialFeedMessage(entityId, data, trip, stopStatus, occupancyStatus, timestamp);
+    }
+}
@@ -0,0 +1,19 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import org.apache.pulsar.client.api.MessageId;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Destination of the produced vehicle positions
+ */
+public interface VehiclePositionProducer {
+    /**
+     * @param key Key of the message, i.e. ID of the vehicle
+     * @param topicSuffix Suffix for the MQTT topic of the vehicle position
+     * @param feedMessage Serialized GTFS-RT feed message
+     * @param eventTimeMs Event time of the message
+     * @return Future that is completed when the message has been persisted
+     */
+    CompletableFuture<MessageId> send(String key, String topicSuffix, byte[] feedMessage, long eventTimeMs);
+}
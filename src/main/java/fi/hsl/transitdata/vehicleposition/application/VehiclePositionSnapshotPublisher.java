@@ -0,0 +1,152 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the latest published position of each vehicle and periodically publishes all of them as a single
+ * FULL_DATASET feed message, so that consumers can get positions of all vehicles without processing the whole stream.
+ * Vehicles whose latest position is older than the maximum age are not included in the snapshot.
+ *
+ * Positions can be updated from multiple threads.
+ */
+public class VehiclePositionSnapshotPublisher {
+    private static final Logger log = LoggerFactory.getLogger(VehiclePositionSnapshotPublisher.class);
+
+    private static final String GTFS_RT_VERSION = "2.0";
+
+    private final Producer<byte[]> producer;
+    private final Duration interval;
+    private final long maxAgeMs;
+    private final Clock clock;
+
+    //Latest position of each vehicle by entity ID
+    private final Map<String, SnapshotEntry> latestPositions = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "vehicle-position-snapshot-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile byte[] latestSnapshot;
+
+    /**
+     * @param producer Producer for the snapshot topic
+     * @param interval Interval for publishing snapshots
+     * @param maxAge Vehicles that have not had a new position within this time are removed from the snapshot
+     */
+    public VehiclePositionSnapshotPublisher(Producer<byte[]> producer, Duration interval, Duration maxAge) {
+        this(producer, interval, maxAge, Clock.systemUTC());
+    }
+
+    public VehiclePositionSnapshotPublisher(Producer<byte[]> producer, Duration interval, Duration maxAge, Clock clock) {
+        this.producer = producer;
+        this.interval = interval;
+        this.maxAgeMs = maxAge.toMillis();
+        this.clock = clock;
+    }
+
+    public void start() {
+        executor.scheduleAtFixedRate(this::publishSnapshot, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        log.info("Publishing vehicle position snapshots every {} seconds", interval.toSeconds());
+    }
+
+    /**
+     * Stops publishing snapshots and closes the producer after pending snapshots have been sent
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(interval.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("Vehicle position snapshot was still being published when closing the producer");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            producer.close();
+            log.info("Closed vehicle position snapshot producer");
+        } catch (PulsarClientException e) {
+            log.error("Failed to close vehicle position snapshot producer", e);
+        }
+    }
+
+    public void update(VehiclePositionMessage message) {
+        latestPositions.put(message.entityId, new SnapshotEntry(message, clock.millis()));
+    }
+
+    /**
+     * @return Latest published snapshot as a serialized FeedMessage or null if no snapshot has been published yet
+     */
+    public byte[] getLatestSnapshot() {
+        return latestSnapshot;
+    }
+
+    public int getVehicleCount() {
+        return latestPositions.size();
+    }
+
+    void publishSnapshot() {
+        try {
+            final long timestampMs = clock.millis();
+            final byte[] snapshot = createSnapshot(timestampMs);
+            latestSnapshot = snapshot;
+
+            producer.newMessage()
+                    .value(snapshot)
+                    .eventTime(timestampMs)
+                    .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.GTFS_VehiclePosition.toString())
+                    .sendAsync()
+                    .whenComplete((messageId, error) -> {
+                        if (error != null) {
+                            log.error("Failed to send vehicle position snapshot to Pulsar", error);
+                        }
+                    });
+        } catch (Exception e) {
+            //Exception must not be thrown, otherwise no more snapshots would be published
+            log.error("Failed to publish vehicle position snapshot", e);
+        }
+    }
+
+    byte[] createSnapshot(long timestampMs) {
+        latestPositions.values().removeIf(entry -> timestampMs - entry.updatedAtMs > maxAgeMs);
+
+        final GtfsRealtime.FeedMessage.Builder feedMessage = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder()
+                        .setGtfsRealtimeVersion(GTFS_RT_VERSION)
+                        .setIncrementality(GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET)
+                        .setTimestamp(timestampMs / 1000));
+
+        latestPositions.forEach((entityId, entry) -> feedMessage.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                .setId(entityId)
+                .setVehicle(entry.message.createVehiclePosition())));
+
+        log.debug("Created vehicle position snapshot with {} vehicles", feedMessage.getEntityCount());
+
+        return feedMessage.build().toByteArray();
+    }
+
+    private static class SnapshotEntry {
+        private final VehiclePositionMessage message;
+        private final long updatedAtMs;
+
+        private SnapshotEntry(VehiclePositionMessage message, long updatedAtMs) {
+            this.message = message;
+            this.updatedAtMs = updatedAtMs;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.transitdata.vehicleposition.application.gtfsrt.CachedTripDescriptor;
+import fi.hsl.transitdata.vehicleposition.application.utils.CachedPassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripDescriptor;
+
+/**
+ * State of a single vehicle that is needed for processing its messages
+ */
+public class VehicleState {
+    //Used as the latest timestamp until a timestamp has been received from the vehicle
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private final int operatorId;
+    private final int vehicleNumber;
+
+    //Latest timestamp (tsi) received from the vehicle
+    private long latestTimestamp = NO_TIMESTAMP;
+
+    //null if the vehicle has reached its final stop, left HSL area or no stop status has been calculated yet
+    private StopStatusProcessor.StopStatus stopStatus;
+
+    //Trip that the vehicle last tried to register for and whether the registration succeeded
+    private TripDescriptor trip;
+    private boolean registeredForTrip;
+    //Time until which registeredForTrip is known to be up to date in the time source of the trip registry, maintained by TripRegistry
+    private long tripRegistrationValidUntil;
+    private boolean hasTripRegistrationValidity;
+
+    //GTFS-RT trip descriptor of the latest vehicle position, maintained by GtfsRtGenerator
+    private CachedTripDescriptor tripDescriptor;
+
+    //Latest passenger count received from the vehicle, maintained by PassengerCountCache
+    private CachedPassengerCount passengerCount;
+
+    //Time when the state was last accessed, used for expiring states of vehicles that have gone silent
+    private long lastAccessedMs;
+    //Latest published position of the vehicle and the position waiting to be published, maintained by VehiclePositionCoalescer
+    VehiclePositionMessage lastPublishedPosition;
+    long lastPublishedAtMs;
+    VehiclePositionMessage pendingPosition;
+    boolean inPendingQueue;
+    //Value of lastPublishedAtMs when the vehicle was added to the pending queue
+    long queuedAfterPublishAtMs;
+
+    //Neighbours in access order, maintained by VehicleStateStore
+    VehicleState lessRecentlyUsed;
+    VehicleState moreRecentlyUsed;
+
+    public VehicleState(int operatorId, int vehicleNumber) {
+        this.operatorId = operatorId;
+        this.vehicleNumber = vehicleNumber;
+    }
+
+    public int getOperatorId() {
+        return operatorId;
+    }
+
+    public int getVehicleNumber() {
+        return vehicleNumber;
+    }
+
+    public long getLastAccessedMs() {
+        return lastAccessedMs;
+    }
+
+    void setLastAccessedMs(long lastAccessedMs) {
+        this.lastAccessedMs = lastAccessedMs;
+    }
+
+    public long getLatestTimestamp() {
+        return latestTimestamp;
+    }
+
+    public void setLatestTimestamp(long latestTimestamp) {
+        this.latestTimestamp = latestTimestamp;
+    }
+
+    public StopStatusProcessor.StopStatus getStopStatus() {
+        return stopStatus;
+    }
+
+    public void setStopStatus(StopStatusProcessor.StopStatus stopStatus) {
+        this.stopStatus = stopStatus;
+    }
+
+    public TripDescriptor getTrip() {
+        return trip;
+    }
+
+    public boolean isRegisteredForTrip() {
+        return registeredForTrip;
+    }
+
+    /**
+     * Sets the trip without knowing how long the registration result stays the same, e.g. when the state is restored
+     */
+    public void setTrip(TripDescriptor trip, boolean registeredForTrip) {
+        this.trip = trip;
+        this.registeredForTrip = registeredForTrip;
+        this.hasTripRegistrationValidity = false;
+    }
+
+    public void setTrip(TripDescriptor trip, boolean registeredForTrip, long tripRegistrationValidUntil) {
+        this.trip = trip;
+        this.registeredForTrip = registeredForTrip;
+        this.tripRegistrationValidUntil = tripRegistrationValidUntil;
+        this.hasTripRegistrationValidity = true;
+    }
+
+    /**
+     * @param now Current time in the time source of the trip registry
+     * @return true if the registration result for the trip is still up to date
+     */
+    public boolean isTripRegistrationValid(long now) {
+        //Compared by difference, because ticker time can overflow
+        return hasTripRegistrationValidity && now - tripRegistrationValidUntil < 0;
+    }
+
+    public CachedTripDescriptor getTripDescriptor() {
+        return tripDescriptor;
+    }
+
+    public void setTripDescriptor(CachedTripDescriptor tripDescriptor) {
+        this.tripDescriptor = tripDescriptor;
+    }
+
+    public CachedPassengerCount getPassengerCount() {
+        return passengerCount;
+    }
+
+    public void setPassengerCount(CachedPassengerCount passengerCount) {
+        this.passengerCount = passengerCount;
+    }
+
+    public void clearPassengerCount() {
+        setPassengerCount(null);
+    }
+
+    @Override
+    public String toString() {
+        return "VehicleState{" +
+                "vehicle=" + operatorId + "/" + vehicleNumber +
+                ", latestTimestamp=" + latestTimestamp +
+                ", stopStatus=" + (stopStatus != null ? stopStatus.stopStatus + " " + stopStatus.stopId : null) +
+                ", trip=" + trip +
+                ", registeredForTrip=" + registeredForTrip +
+                ", hasPassengerCount=" + (passengerCount != null) +
+                '}';
+    }
+}
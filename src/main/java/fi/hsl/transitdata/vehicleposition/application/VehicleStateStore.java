@@ -0,0 +1,202 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.utils.LongObjectMap;
+import fi.hsl.transitdata.vehicleposition.application.utils.VehicleKey;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Stores the state of each vehicle by operator ID and vehicle number. States of vehicles that have not sent
+ * messages within the maximum idle time are removed and when the store is full, the least recently used state is
+ * evicted. Not thread-safe, each thread processing messages must have its own store. Only the size and the counts of
+ * removed states can be read from other threads, e.g. for metrics.
+ */
+public class VehicleStateStore {
+    //Keyed by VehicleKey, so that looking up the state does not allocate
+    private final LongObjectMap<VehicleState> vehicleStates = new LongObjectMap<>(1000);
+
+    private final long maxIdleTimeMs;
+    private final int maxSize;
+    private final Clock clock;
+    //Called for each state that is expired or evicted
+    private final Consumer<VehicleState> removalListener;
+
+    //States are linked in access order, so that idle and least recently used states are found without scanning the store
+    private VehicleState leastRecentlyUsed;
+    private VehicleState mostRecentlyUsed;
+
+    //Written only by the thread owning the store, volatile so that they can be read for metrics
+    private volatile int size = 0;
+    private volatile long expiredCount = 0;
+    private volatile long evictedCount = 0;
+
+    /**
+     * Creates a store without expiration or size limit
+     */
+    public VehicleStateStore() {
+        this(Duration.ZERO, 0);
+    }
+
+    /**
+     * @param maxIdleTime States that have not been accessed for this time are removed. Zero disables expiration.
+     * @param maxSize Maximum amount of states. Zero means no limit.
+     */
+    public VehicleStateStore(Duration maxIdleTime, int maxSize) {
+        this(maxIdleTime, maxSize, Clock.systemUTC());
+    }
+
+    public VehicleStateStore(Duration maxIdleTime, int maxSize, Clock clock) {
+        this(maxIdleTime, maxSize, clock, vehicleState -> {});
+    }
+
+    /**
+     * @param maxIdleTime States that have not been accessed for this time are removed. Zero disables expiration.
+     * @param maxSize Maximum amount of states. Zero means no limit.
+     * @param clock
+     * @param removalListener Called for each state that is removed, e.g. to release data that is referenced from outside the state
+     */
+    public VehicleStateStore(Duration maxIdleTime, int maxSize, Clock clock, Consumer<VehicleState> removalListener) {
+        this.maxIdleTimeMs = maxIdleTime.toMillis();
+        this.maxSize = maxSize;
+        this.clock = clock;
+        this.removalListener = removalListener;
+    }
+
+    public VehicleState getOrCreate(int operatorId, int vehicleNumber) {
+        final long now = clock.millis();
+        removeIdle(now);
+
+        final long vehicleKey = VehicleKey.of(operatorId, vehicleNumber);
+
+        VehicleState vehicleState = vehicleStates.get(vehicleKey);
+        if (vehicleState == null) {
+            if (maxSize > 0 && vehicleStates.size() >= maxSize) {
+                remove(leastRecentlyUsed);
+                evictedCount++;
+            }
+
+            vehicleState = new VehicleState(operatorId, vehicleNumber);
+            vehicleStates.put(vehicleKey, vehicleState);
+            size = vehicleStates.size();
+        } else {
+            unlink(vehicleState);
+        }
+
+        linkAsMostRecentlyUsed(vehicleState);
+        vehicleState.setLastAccessedMs(now);
+
+        return vehicleState;
+    }
+
+    /**
+     * Creates a state restored from a snapshot. States must be restored in the order they were last accessed and
+     * before any other states are created, so that the access order of the store stays intact.
+     * @param lastAccessedMs Time when the state was last accessed before the snapshot
+     * @return Created state or null if the state already exists
+     */
+    VehicleState restore(int operatorId, int vehicleNumber, long lastAccessedMs) {
+        final long vehicleKey = VehicleKey.of(operatorId, vehicleNumber);
+        if (vehicleStates.get(vehicleKey) != null) {
+            return null;
+        }
+
+        if (maxSize > 0 && vehicleStates.size() >= maxSize) {
+            remove(leastRecentlyUsed);
+            evictedCount++;
+        }
+
+        final VehicleState vehicleState = new VehicleState(operatorId, vehicleNumber);
+        vehicleStates.put(vehicleKey, vehicleState);
+        size = vehicleStates.size();
+        linkAsMostRecentlyUsed(vehicleState);
+        vehicleState.setLastAccessedMs(lastAccessedMs);
+
+        return vehicleState;
+    }
+
+    public VehicleState getOrCreate(Hfp.Topic topic) {
+        return getOrCreate(topic.getOperatorId(), topic.getVehicleNumber());
+    }
+
+    /**
+     * Returns the state without updating its access time
+     * @return State of the vehicle or null if there is no state for the vehicle
+     */
+    public VehicleState get(int operatorId, int vehicleNumber) {
+        return vehicleStates.get(VehicleKey.of(operatorId, vehicleNumber));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Amount of states removed because they were not accessed within the maximum idle time
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * @return Amount of states removed because the store was full
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return Copy of the states of all vehicles
+     */
+    public Collection<VehicleState> getAll() {
+        return vehicleStates.values();
+    }
+
+    private void removeIdle(long now) {
+        if (maxIdleTimeMs <= 0) {
+            return;
+        }
+
+        while (leastRecentlyUsed != null && now - leastRecentlyUsed.getLastAccessedMs() >= maxIdleTimeMs) {
+            remove(leastRecentlyUsed);
+            expiredCount++;
+        }
+    }
+
+    private void remove(VehicleState vehicleState) {
+        vehicleStates.remove(VehicleKey.of(vehicleState.getOperatorId(), vehicleState.getVehicleNumber()));
+        size = vehicleStates.size();
+        unlink(vehicleState);
+        removalListener.accept(vehicleState);
+    }
+
+    private void unlink(VehicleState vehicleState) {
+        if (vehicleState.lessRecentlyUsed != null) {
+            vehicleState.lessRecentlyUsed.moreRecentlyUsed = vehicleState.moreRecentlyUsed;
+        } else {
+            leastRecentlyUsed = vehicleState.moreRecentlyUsed;
+        }
+
+        if (vehicleState.moreRecentlyUsed != null) {
+            vehicleState.moreRecentlyUsed.lessRecentlyUsed = vehicleState.lessRecentlyUsed;
+        } else {
+            mostRecentlyUsed = vehicleState.lessRecentlyUsed;
+        }
+
+        vehicleState.lessRecentlyUsed = null;
+        vehicleState.moreRecentlyUsed = null;
+    }
+
+    private void linkAsMostRecentlyUsed(VehicleState vehicleState) {
+        vehicleState.lessRecentlyUsed = mostRecentlyUsed;
+        if (mostRecentlyUsed != null) {
+            mostRecentlyUsed.moreRecentlyUsed = vehicleState;
+        } else {
+            leastRecentlyUsed = vehicleState;
+        }
+        mostRecentlyUsed = vehicleState;
+    }
+}
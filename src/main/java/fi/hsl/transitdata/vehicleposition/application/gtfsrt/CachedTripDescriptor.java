@@ -0,0 +1,33 @@
+package fi.hsl.transitdata.vehicleposition.application.gtfsrt;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+/**
+ * Latest GTFS-RT trip descriptor of a vehicle and the HFP fields it was created from. Vehicles stay on the same trip
+ * for a long time, so the descriptor is reused until the trip or the schedule relationship changes.
+ */
+public class CachedTripDescriptor {
+    private final String routeId;
+    private final String operatingDay;
+    //Start time computed from the timestamp of the message, changes when the trip continues past midnight
+    private final String startTime;
+    private final int directionId;
+
+    final GtfsRealtime.TripDescriptor tripDescriptor;
+
+    CachedTripDescriptor(String routeId, String operatingDay, String startTime, int directionId, GtfsRealtime.TripDescriptor tripDescriptor) {
+        this.routeId = routeId;
+        this.operatingDay = operatingDay;
+        this.startTime = startTime;
+        this.directionId = directionId;
+        this.tripDescriptor = tripDescriptor;
+    }
+
+    boolean matches(String routeId, String operatingDay, String startTime, int directionId, GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship) {
+        return this.directionId == directionId &&
+                tripDescriptor.getScheduleRelationship() == scheduleRelationship &&
+                this.routeId.equals(routeId) &&
+                this.operatingDay.equals(operatingDay) &&
+                this.startTime.equals(startTime);
+    }
+}
@@ -0,0 +1,146 @@
+package fi.hsl.transitdata.vehicleposition.application.gtfsrt;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.StopStatusProcessor;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Serializes differential GTFS-RT feed messages containing a single vehicle position directly from HFP data, without
+ * building the feed message objects. The output is identical to serializing the feed message created by
+ * {@link FeedMessageFactory#createDifferentialFeedMessage(String, GtfsRealtime.VehiclePosition, long)} with the
+ * vehicle position created by {@link GtfsRtGenerator#createVehiclePosition(Hfp.Data, GtfsRealtime.TripDescriptor, StopStatusProcessor.StopStatus, Optional)}.
+ * The equivalence is verified by unit tests.
+ */
+public class FeedMessageSerializer {
+    private static final int LENGTH_DELIMITED = WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    //Feed header only depends on the timestamp, which is shared by many consecutive messages
+    private static volatile TimestampedHeader latestHeader = new TimestampedHeader(0);
+
+    private FeedMessageSerializer() {}
+
+    /**
+     * @param entityId ID of the feed entity
+     * @param hfpData HFP data that has a location
+     * @param trip Trip descriptor
+     * @param stopStatus Stop status or null if the vehicle has no stop status
+     * @param occupancyStatus Occupancy status or null if the vehicle has no occupancy status
+     * @param timestamp Timestamp of the feed message
+     * @return Serialized feed message
+     */
+    public static byte[] serializeDifferentialFeedMessage(String entityId, Hfp.Data hfpData, GtfsRealtime.TripDescriptor trip, StopStatusProcessor.StopStatus stopStatus, GtfsRealtime.VehiclePosition.OccupancyStatus occupancyStatus, long timestamp) {
+        final Hfp.Payload payload = hfpData.getPayload();
+        final GtfsRealtime.FeedHeader header = getHeader(timestamp);
+
+        //Fields are written in the order of field numbers, like protobuf does
+        final int positionSize = CodedOutputStream.computeFloatSize(GtfsRealtime.Position.LATITUDE_FIELD_NUMBER, (float) payload.getLat()) +
+                CodedOutputStream.computeFloatSize(GtfsRealtime.Position.LONGITUDE_FIELD_NUMBER, (float) payload.getLong()) +
+                CodedOutputStream.computeFloatSize(GtfsRealtime.Position.BEARING_FIELD_NUMBER, payload.getHdg()) +
+                CodedOutputStream.computeDoubleSize(GtfsRealtime.Position.ODOMETER_FIELD_NUMBER, payload.getOdo()) +
+                CodedOutputStream.computeFloatSize(GtfsRealtime.Position.SPEED_FIELD_NUMBER, (float) payload.getSpd());
+
+        int vehicleDescriptorSize = CodedOutputStream.computeStringSize(GtfsRealtime.VehicleDescriptor.ID_FIELD_NUMBER, hfpData.getTopic().getUniqueVehicleId());
+        if (payload.hasLabel()) {
+            vehicleDescriptorSize += CodedOutputStream.computeStringSize(GtfsRealtime.VehicleDescriptor.LABEL_FIELD_NUMBER, payload.getLabel());
+        }
+
+        int vehiclePositionSize = CodedOutputStream.computeMessageSize(GtfsRealtime.VehiclePosition.TRIP_FIELD_NUMBER, trip) +
+                lengthDelimitedSize(GtfsRealtime.VehiclePosition.POSITION_FIELD_NUMBER, positionSize) +
+                CodedOutputStream.computeUInt64Size(GtfsRealtime.VehiclePosition.TIMESTAMP_FIELD_NUMBER, payload.getTsi()) +
+                lengthDelimitedSize(GtfsRealtime.VehiclePosition.VEHICLE_FIELD_NUMBER, vehicleDescriptorSize);
+        if (stopStatus != null) {
+            vehiclePositionSize += CodedOutputStream.computeEnumSize(GtfsRealtime.VehiclePosition.CURRENT_STATUS_FIELD_NUMBER, stopStatus.stopStatus.getNumber()) +
+                    CodedOutputStream.computeStringSize(GtfsRealtime.VehiclePosition.STOP_ID_FIELD_NUMBER, stopStatus.stopId);
+        }
+        if (occupancyStatus != null) {
+            vehiclePositionSize += CodedOutputStream.computeEnumSize(GtfsRealtime.VehiclePosition.OCCUPANCY_STATUS_FIELD_NUMBER, occupancyStatus.getNumber());
+        }
+
+        final int entitySize = CodedOutputStream.computeStringSize(GtfsRealtime.FeedEntity.ID_FIELD_NUMBER, entityId) +
+                lengthDelimitedSize(GtfsRealtime.FeedEntity.VEHICLE_FIELD_NUMBER, vehiclePositionSize);
+
+        final int feedMessageSize = CodedOutputStream.computeMessageSize(GtfsRealtime.FeedMessage.HEADER_FIELD_NUMBER, header) +
+                lengthDelimitedSize(GtfsRealtime.FeedMessage.ENTITY_FIELD_NUMBER, entitySize);
+
+        //Pulsar keeps a reference to the message value until it has been sent, so the array cannot be reused
+        final byte[] bytes = new byte[feedMessageSize];
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+
+        try {
+            output.writeMessage(GtfsRealtime.FeedMessage.HEADER_FIELD_NUMBER, header);
+
+            writeLengthDelimitedTag(output, GtfsRealtime.FeedMessage.ENTITY_FIELD_NUMBER, entitySize);
+            output.writeString(GtfsRealtime.FeedEntity.ID_FIELD_NUMBER, entityId);
+
+            writeLengthDelimitedTag(output, GtfsRealtime.FeedEntity.VEHICLE_FIELD_NUMBER, vehiclePositionSize);
+            output.writeMessage(GtfsRealtime.VehiclePosition.TRIP_FIELD_NUMBER, trip);
+
+            writeLengthDelimitedTag(output, GtfsRealtime.VehiclePosition.POSITION_FIELD_NUMBER, positionSize);
+            output.writeFloat(GtfsRealtime.Position.LATITUDE_FIELD_NUMBER, (float) payload.getLat());
+            output.writeFloat(GtfsRealtime.Position.LONGITUDE_FIELD_NUMBER, (float) payload.getLong());
+            output.writeFloat(GtfsRealtime.Position.BEARING_FIELD_NUMBER, payload.getHdg());
+            output.writeDouble(GtfsRealtime.Position.ODOMETER_FIELD_NUMBER, payload.getOdo());
+            output.writeFloat(GtfsRealtime.Position.SPEED_FIELD_NUMBER, (float) payload.getSpd());
+
+            if (stopStatus != null) {
+                output.writeEnum(GtfsRealtime.VehiclePosition.CURRENT_STATUS_FIELD_NUMBER, stopStatus.stopStatus.getNumber());
+            }
+            output.writeUInt64(GtfsRealtime.VehiclePosition.TIMESTAMP_FIELD_NUMBER, payload.getTsi());
+            if (stopStatus != null) {
+                output.writeString(GtfsRealtime.VehiclePosition.STOP_ID_FIELD_NUMBER, stopStatus.stopId);
+            }
+
+            writeLengthDelimitedTag(output, GtfsRealtime.VehiclePosition.VEHICLE_FIELD_NUMBER, vehicleDescriptorSize);
+            output.writeString(GtfsRealtime.VehicleDescriptor.ID_FIELD_NUMBER, hfpData.getTopic().getUniqueVehicleId());
+            if (payload.hasLabel()) {
+                output.writeString(GtfsRealtime.VehicleDescriptor.LABEL_FIELD_NUMBER, payload.getLabel());
+            }
+
+            if (occupancyStatus != null) {
+                output.writeEnum(GtfsRealtime.VehiclePosition.OCCUPANCY_STATUS_FIELD_NUMBER, occupancyStatus.getNumber());
+            }
+
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            //Cannot happen when writing to an array of the correct size
+            throw new IllegalStateException("Failed to serialize feed message", e);
+        }
+
+        return bytes;
+    }
+
+    private static int lengthDelimitedSize(int fieldNumber, int size) {
+        return CodedOutputStream.computeTagSize(fieldNumber) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    private static void writeLengthDelimitedTag(CodedOutputStream output, int fieldNumber, int size) throws IOException {
+        output.writeTag(fieldNumber, LENGTH_DELIMITED);
+        output.writeUInt32NoTag(size);
+    }
+
+    private static GtfsRealtime.FeedHeader getHeader(long timestamp) {
+        TimestampedHeader header = latestHeader;
+        if (header.timestamp != timestamp) {
+            header = new TimestampedHeader(timestamp);
+            latestHeader = header;
+        }
+        return header.header;
+    }
+
+    private static class TimestampedHeader {
+        private final long timestamp;
+        private final GtfsRealtime.FeedHeader header;
+
+        private TimestampedHeader(long timestamp) {
+            this.timestamp = timestamp;
+            //Header is created by FeedMessageFactory so that it is identical to headers of other feed messages
+            this.header = FeedMessageFactory.createDifferentialFeedMessage("", GtfsRealtime.VehiclePosition.getDefaultInstance(), timestamp).getHeader();
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.hfp.proto.Hfp;
 import fi.hsl.common.transitdata.RouteIdUtils;
 import fi.hsl.transitdata.vehicleposition.application.StopStatusProcessor;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 
 import java.util.Optional;
 
@@ -14,10 +15,22 @@ public class GtfsRtGenerator {
 
     public static Optional<GtfsRealtime.VehiclePosition> generateVehiclePosition(Hfp.Data hfpData, GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship, StopStatusProcessor.StopStatus stopStatus, Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> occupancyStatus) {
         //Ignore messages where the vehicle has no location
-        if (!hfpData.getPayload().hasLat() || !hfpData.getPayload().hasLong()) {
+        if (!hasLocation(hfpData)) {
             return Optional.empty();
         }
 
+        return Optional.of(createVehiclePosition(hfpData, getTripDescriptor(hfpData, scheduleRelationship), stopStatus, occupancyStatus));
+    }
+
+    public static boolean hasLocation(Hfp.Data hfpData) {
+        return hfpData.getPayload().hasLat() && hfpData.getPayload().hasLong();
+    }
+
+    /**
+     * Creates vehicle position from HFP data that has a location
+     * @param trip Trip descriptor, see {@link #getTripDescriptor(Hfp.Data, GtfsRealtime.TripDescriptor.ScheduleRelationship)}
+     */
+    public static GtfsRealtime.VehiclePosition createVehiclePosition(Hfp.Data hfpData, GtfsRealtime.TripDescriptor trip, StopStatusProcessor.StopStatus stopStatus, Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> occupancyStatus) {
         GtfsRealtime.VehiclePosition.Builder vp = GtfsRealtime.VehiclePosition.newBuilder();
 
         vp.setTimestamp(hfpData.getPayload().getTsi());
@@ -42,17 +55,46 @@ public class GtfsRtGenerator {
 
         vp.setVehicle(vehicleDescriptor);
 
-        String startTime = getStartTime(hfpData);
-
-        vp.setTrip(GtfsRealtime.TripDescriptor.newBuilder()
-                .setScheduleRelationship(scheduleRelationship)
-                .setDirectionId(hfpData.getTopic().getDirectionId() - 1)
-                .setRouteId(RouteIdUtils.normalizeRouteId(hfpData.getTopic().getRouteId()))
-                .setStartDate(hfpData.getPayload().getOday().replaceAll("-", ""))
-                .setStartTime(startTime));
+        vp.setTrip(trip);
 
         occupancyStatus.ifPresent(vp::setOccupancyStatus);
 
-        return Optional.of(vp.build());
+        return vp.build();
+    }
+
+    /**
+     * Same as {@link #getTripDescriptor(Hfp.Data, GtfsRealtime.TripDescriptor.ScheduleRelationship)}, but reuses the
+     * trip descriptor of the vehicle if its trip and schedule relationship have not changed
+     * @param vehicleState State of the vehicle that sent the message, the trip descriptor is stored in it
+     */
+    public static GtfsRealtime.TripDescriptor getTripDescriptor(VehicleState vehicleState, Hfp.Data hfpData, GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship) {
+        final String routeId = hfpData.getTopic().getRouteId();
+        final String operatingDay = hfpData.getPayload().getOday();
+        //Start time depends on the timestamp of the message (i.e. it changes when the trip continues past midnight)
+        final String startTime = getStartTime(hfpData);
+        final int directionId = hfpData.getTopic().getDirectionId();
+
+        final CachedTripDescriptor previous = vehicleState.getTripDescriptor();
+        if (previous != null && previous.matches(routeId, operatingDay, startTime, directionId, scheduleRelationship)) {
+            return previous.tripDescriptor;
+        }
+
+        final GtfsRealtime.TripDescriptor tripDescriptor = createTripDescriptor(routeId, operatingDay, startTime, directionId, scheduleRelationship);
+        vehicleState.setTripDescriptor(new CachedTripDescriptor(routeId, operatingDay, startTime, directionId, tripDescriptor));
+        return tripDescriptor;
+    }
+
+    public static GtfsRealtime.TripDescriptor getTripDescriptor(Hfp.Data hfpData, GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship) {
+        return createTripDescriptor(hfpData.getTopic().getRouteId(), hfpData.getPayload().getOday(), getStartTime(hfpData), hfpData.getTopic().getDirectionId(), scheduleRelationship);
+    }
+
+    private static GtfsRealtime.TripDescriptor createTripDescriptor(String routeId, String operatingDay, String startTime, int directionId, GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship) {
+        return GtfsRealtime.TripDescriptor.newBuilder()
+                .setScheduleRelationship(scheduleRelationship)
+                .setDirectionId(directionId - 1)
+                .setRouteId(RouteIdUtils.normalizeRouteId(routeId))
+                .setStartDate(operatingDay.replaceAll("-", ""))
+                .setStartTime(startTime)
+                .build();
     }
 }
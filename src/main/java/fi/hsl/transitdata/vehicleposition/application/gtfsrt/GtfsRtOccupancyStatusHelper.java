@@ -2,18 +2,40 @@ package fi.hsl.transitdata.vehicleposition.application.gtfsrt;
 
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.hfp.proto.Hfp;
-import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.utils.CachedPassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.utils.LongObjectMap;
+import fi.hsl.transitdata.vehicleposition.application.utils.VehicleKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
+/**
+ * Resolves the occupancy status of a vehicle from HFP occu field or from passenger count. Configured occupancy levels
+ * are compiled into arrays and enabled vehicles into a set of vehicle keys, so that resolving the status does not
+ * allocate.
+ */
 public class GtfsRtOccupancyStatusHelper {
     private static final Logger log = LoggerFactory.getLogger(GtfsRtOccupancyStatusHelper.class);
 
-    private final NavigableMap<Integer, GtfsRealtime.VehiclePosition.OccupancyStatus> occuToOccupancyStatus;
-    private final NavigableMap<Double, GtfsRealtime.VehiclePosition.OccupancyStatus> loadRatioToOccupancyStatus;
-    private final Set<String> passengerCountEnabledVehicles; //null if no filtering is used (i.e. publish passenger count for all vehicles)
+    //HFP occu values from 0 to 100 are looked up directly by index
+    private static final int MAX_OCCU = 100;
+
+    //Optional for each occupancy status, indexed by ordinal, so that the result does not need to be wrapped for each call
+    private static final List<Optional<GtfsRealtime.VehiclePosition.OccupancyStatus>> OCCUPANCY_STATUSES = Arrays.stream(GtfsRealtime.VehiclePosition.OccupancyStatus.values())
+            .map(Optional::of)
+            .collect(Collectors.toUnmodifiableList());
+    private static final Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> FULL = of(GtfsRealtime.VehiclePosition.OccupancyStatus.FULL);
+    private static final Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> EMPTY = of(GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY);
+
+    //Status of each occu value, i.e. status of the highest level lower than the value. Empty if there is no lower level.
+    private final Optional<GtfsRealtime.VehiclePosition.OccupancyStatus>[] occuToOccupancyStatus;
+    //Load ratio levels in ascending order and their statuses
+    private final double[] loadRatioLevels;
+    private final Optional<GtfsRealtime.VehiclePosition.OccupancyStatus>[] loadRatioOccupancyStatuses;
+    //Keyed by VehicleKey, null if no filtering is used (i.e. publish passenger count for all vehicles)
+    private final LongObjectMap<Boolean> passengerCountEnabledVehicles;
 
     /**
      *
@@ -21,12 +43,25 @@ public class GtfsRtOccupancyStatusHelper {
      * @param loadRatioToOccupancyStatus
      * @param passengerCountEnabledVehicles Comma-separated list of vehicles for which passenger count is enabled, empty or null list -> no filtering
      */
+    @SuppressWarnings("unchecked")
     public GtfsRtOccupancyStatusHelper(NavigableMap<Integer, GtfsRealtime.VehiclePosition.OccupancyStatus> occuToOccupancyStatus,
                                        NavigableMap<Double, GtfsRealtime.VehiclePosition.OccupancyStatus> loadRatioToOccupancyStatus,
                                        Collection<String> passengerCountEnabledVehicles) {
-        this.occuToOccupancyStatus = occuToOccupancyStatus;
-        this.loadRatioToOccupancyStatus = loadRatioToOccupancyStatus;
-        this.passengerCountEnabledVehicles = (passengerCountEnabledVehicles == null || passengerCountEnabledVehicles.isEmpty()) ? null : new HashSet<>(passengerCountEnabledVehicles);
+        this.occuToOccupancyStatus = new Optional[MAX_OCCU + 1];
+        for (int occu = 0; occu <= MAX_OCCU; occu++) {
+            final Map.Entry<Integer, GtfsRealtime.VehiclePosition.OccupancyStatus> level = occuToOccupancyStatus.lowerEntry(occu);
+            this.occuToOccupancyStatus[occu] = level != null ? of(level.getValue()) : Optional.empty();
+        }
+
+        this.loadRatioLevels = new double[loadRatioToOccupancyStatus.size()];
+        this.loadRatioOccupancyStatuses = new Optional[loadRatioToOccupancyStatus.size()];
+        int index = 0;
+        for (Map.Entry<Double, GtfsRealtime.VehiclePosition.OccupancyStatus> level : loadRatioToOccupancyStatus.entrySet()) {
+            loadRatioLevels[index] = level.getKey();
+            loadRatioOccupancyStatuses[index++] = of(level.getValue());
+        }
+
+        this.passengerCountEnabledVehicles = (passengerCountEnabledVehicles == null || passengerCountEnabledVehicles.isEmpty()) ? null : parseVehicles(passengerCountEnabledVehicles);
 
         if (this.passengerCountEnabledVehicles == null) {
             log.info("Occupancy status enabled for all vehicles");
@@ -40,24 +75,53 @@ public class GtfsRtOccupancyStatusHelper {
         this(occuToOccupancyStatus, loadRatioToOccupancyStatus, null);
     }
 
-    public Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> getOccupancyStatus(Hfp.Payload hfpPayload, PassengerCount.Payload passengerCountPayload) {
-        if (passengerCountEnabledVehicles == null || passengerCountEnabledVehicles.contains(hfpPayload.getOper() + "/" + hfpPayload.getVeh())) {
+    private static Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> of(GtfsRealtime.VehiclePosition.OccupancyStatus occupancyStatus) {
+        return OCCUPANCY_STATUSES.get(occupancyStatus.ordinal());
+    }
+
+    private static LongObjectMap<Boolean> parseVehicles(Collection<String> vehicles) {
+        final LongObjectMap<Boolean> vehicleKeys = new LongObjectMap<>(vehicles.size());
+
+        for (String vehicle : vehicles) {
+            final String[] parts = vehicle.split("/");
+            try {
+                if (parts.length == 2) {
+                    final int operatorId = Integer.parseInt(parts[0]);
+                    final int vehicleNumber = Integer.parseInt(parts[1]);
+
+                    //Vehicles were matched by their IDs formatted from HFP, so e.g. leading zeros never matched
+                    if (String.valueOf(operatorId).equals(parts[0]) && String.valueOf(vehicleNumber).equals(parts[1])) {
+                        vehicleKeys.put(VehicleKey.of(operatorId, vehicleNumber), Boolean.TRUE);
+                        continue;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                //Logged below
+            }
+            log.warn("Invalid vehicle {} in the list of vehicles with passenger count enabled, expected format is operator/vehicle number (e.g. 18/123)", vehicle);
+        }
+
+        return vehicleKeys;
+    }
+
+    public Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> getOccupancyStatus(Hfp.Payload hfpPayload, CachedPassengerCount passengerCount) {
+        if (passengerCountEnabledVehicles == null || passengerCountEnabledVehicles.get(VehicleKey.of(hfpPayload.getOper(), hfpPayload.getVeh())) != null) {
             //If occu field is 100, the driver has marked the vehicle as full
             if (hfpPayload.getOccu() >= 100) {
-                return Optional.of(GtfsRealtime.VehiclePosition.OccupancyStatus.FULL);
+                return FULL;
             }
 
-            if (passengerCountPayload != null) {
-                if (passengerCountPayload.getVehicleCounts().hasVehicleLoad() && passengerCountPayload.getVehicleCounts().getVehicleLoad() <= 0) {
+            if (passengerCount != null) {
+                if (passengerCount.hasVehicleLoad() && passengerCount.getVehicleLoad() <= 0) {
                     //If vehicle load is zero, vehicle load ratio is unavailable and the vehicle is empty
-                    return Optional.of(GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY);
+                    return EMPTY;
                 }
                 
-                if (passengerCountPayload.getVehicleCounts().getVehicleLoadRatio() <= 0.0) {
-                    return Optional.of(GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY);
+                if (passengerCount.getVehicleLoadRatio() <= 0.0) {
+                    return EMPTY;
                 }
                 
-                return Optional.of(loadRatioToOccupancyStatus.lowerEntry(passengerCountPayload.getVehicleCounts().getVehicleLoadRatio()).getValue());
+                return getLoadRatioOccupancyStatus(passengerCount.getVehicleLoadRatio());
             }
     
             //If passenger count from APC message is not available, but occu
@@ -72,10 +136,20 @@ public class GtfsRtOccupancyStatusHelper {
             //would rather not publish information than publish false
             //information in case of broken devices or implementation.
             if (hfpPayload.getOccu() > 0) {
-                return Optional.of(occuToOccupancyStatus.lowerEntry(hfpPayload.getOccu()).getValue());
+                return occuToOccupancyStatus[Math.min(hfpPayload.getOccu(), MAX_OCCU)];
             }
         }
 
         return Optional.empty();
     }
+
+    /**
+     * @return Status of the highest load ratio level lower than the load ratio or empty if there is no lower level
+     */
+    private Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> getLoadRatioOccupancyStatus(double vehicleLoadRatio) {
+        //Binary search orders values like Double.compareTo, which was used when the levels were in a TreeMap
+        final int index = Arrays.binarySearch(loadRatioLevels, vehicleLoadRatio);
+        final int lowerIndex = index >= 0 ? index - 1 : -index - 2;
+        return lowerIndex >= 0 ? loadRatioOccupancyStatuses[lowerIndex] : Optional.empty();
+    }
 }
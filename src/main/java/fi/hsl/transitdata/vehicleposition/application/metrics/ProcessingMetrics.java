@@ -0,0 +1,371 @@
+package fi.hsl.transitdata.vehicleposition.application.metrics;
+
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.VehiclePositionCoalescer;
+import fi.hsl.transitdata.vehicleposition.application.VehicleStateStore;
+import fi.hsl.transitdata.vehicleposition.application.utils.PartitionedTripRegistry;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of message processing: processing time of each stage, latency of vehicle positions by transport mode and
+ * amount of messages received, dropped, published and waiting for acknowledgement from the broker. Amount of stored
+ * vehicle states and removed states, and amount of vehicle positions published, coalesced and pending by rate limiting
+ * are summed over the handlers. Amount of trip registrations by
+ * bucket is included when the trip registry is partitioned.
+ *
+ * Metrics can be recorded from multiple threads without locking. Quantiles, counts and sums are cumulative, so writing
+ * the metrics does not reset them and multiple scrapers see the same values.
+ */
+public class ProcessingMetrics {
+    private static final String PREFIX = "vehicleposition_";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * Label used for messages whose protobuf schema is not handled, so that unexpected schemas cannot create an
+     * unbounded amount of time series
+     */
+    public static final String UNKNOWN_SCHEMA = "unknown";
+
+    public enum Stage {
+        FILTER,
+        PARSE,
+        TRIP_REGISTRATION,
+        VALIDATION,
+        STOP_STATUS,
+        GENERATION,
+        SEND;
+
+        private final String label = name().toLowerCase();
+    }
+
+    /**
+     * Parts of the end-to-end latency from the vehicle to the broker
+     */
+    public enum Latency {
+        //From timestamp of the vehicle to the MQTT bridge receiving the message
+        VEHICLE_TO_BRIDGE,
+        //From the MQTT bridge receiving the message to this processor receiving it
+        BRIDGE_TO_RECEIVE,
+        //From receiving the message to producing the vehicle position, includes time spent waiting for rate limiting
+        RECEIVE_TO_PRODUCE,
+        //From producing the vehicle position to the broker acknowledging it
+        PRODUCE_TO_ACK;
+
+        private final String label = name().toLowerCase();
+    }
+
+    /**
+     * Reasons for not producing a vehicle position from a message
+     */
+    public enum DropReason {
+        //Message could not be parsed as the protobuf schema it was sent with
+        PARSE_ERROR,
+        //Exception was thrown while processing the message
+        PROCESSING_ERROR,
+        //Protobuf schema of the message is not handled
+        UNKNOWN_SCHEMA,
+        NOT_JOURNEY,
+        NOT_ONGOING,
+        IRRELEVANT_EVENT_TYPE,
+        //Some other vehicle was already registered for the trip and added trips are not enabled for the transport mode
+        TRIP_ALREADY_TAKEN,
+        FUTURE_TIMESTAMP,
+        //Timestamp was older than the latest timestamp received from the vehicle
+        OLDER_TIMESTAMP,
+        DELAY_TOO_LARGE,
+        NO_LOCATION;
+
+        private final String label = name().toLowerCase();
+    }
+
+    private static final Hfp.Topic.TransportMode[] TRANSPORT_MODES = Hfp.Topic.TransportMode.values();
+
+    private final DurationMetrics[] stageMetrics = new DurationMetrics[Stage.values().length];
+    //Indexed by latency and transport mode
+    private final DurationMetrics[][] latencyMetrics = new DurationMetrics[Latency.values().length][TRANSPORT_MODES.length];
+
+    //Indexed by drop reason and transport mode
+    private final LongAdder[][] messagesDropped = new LongAdder[DropReason.values().length][TRANSPORT_MODES.length];
+    //Indexed by drop reason, for messages that are not HFP messages and therefore have no transport mode
+    private final LongAdder[] messagesDroppedWithoutTransportMode = new LongAdder[DropReason.values().length];
+
+    //Received messages by protobuf schema, unknown schemas are counted as UNKNOWN_SCHEMA
+    private final Map<String, LongAdder> messagesIn = new ConcurrentHashMap<>();
+    private final LongAdder messagesOut = new LongAdder();
+    //Messages sent to the broker but not yet acknowledged
+    private final LongAdder pendingSends = new LongAdder();
+
+    //Sizes of the trip registration buckets are exposed if the registry is partitioned
+    private volatile PartitionedTripRegistry tripRegistry;
+    //State store of each handler, e.g. one for each worker thread
+    private final List<VehicleStateStore> vehicleStateStores = new CopyOnWriteArrayList<>();
+    //Rate limiter of each handler
+    private final List<VehiclePositionCoalescer> vehiclePositionCoalescers = new CopyOnWriteArrayList<>();
+
+    public ProcessingMetrics() {
+        for (Stage stage : Stage.values()) {
+            stageMetrics[stage.ordinal()] = new DurationMetrics();
+        }
+        for (Latency latency : Latency.values()) {
+            for (Hfp.Topic.TransportMode transportMode : TRANSPORT_MODES) {
+                latencyMetrics[latency.ordinal()][transportMode.ordinal()] = new DurationMetrics();
+            }
+        }
+        for (DropReason dropReason : DropReason.values()) {
+            for (Hfp.Topic.TransportMode transportMode : TRANSPORT_MODES) {
+                messagesDropped[dropReason.ordinal()][transportMode.ordinal()] = new LongAdder();
+            }
+            messagesDroppedWithoutTransportMode[dropReason.ordinal()] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records processing time of a stage
+     * @param stage
+     * @param startTimeNanos Start time of the stage from {@link System#nanoTime()}
+     * @return Current time, which can be used as the start time of the next stage
+     */
+    public long recordStage(Stage stage, long startTimeNanos) {
+        final long now = System.nanoTime();
+        stageMetrics[stage.ordinal()].record(now - startTimeNanos);
+        return now;
+    }
+
+    /**
+     * Records latency of a vehicle position. Negative latencies caused by clock differences are recorded as zero.
+     * @param latency
+     * @param transportMode Transport mode of the vehicle
+     * @param latencyNanos
+     */
+    public void recordLatency(Latency latency, Hfp.Topic.TransportMode transportMode, long latencyNanos) {
+        latencyMetrics[latency.ordinal()][transportMode.ordinal()].record(Math.max(0, latencyNanos));
+    }
+
+    public void incrementMessagesIn(String schema) {
+        messagesIn.computeIfAbsent(schema, key -> new LongAdder()).increment();
+    }
+
+    public void incrementMessagesDropped(DropReason dropReason, Hfp.Topic.TransportMode transportMode) {
+        messagesDropped[dropReason.ordinal()][transportMode.ordinal()].increment();
+    }
+
+    /**
+     * Counts a dropped message that has no transport mode, e.g. a passenger count message or a message with unknown schema
+     * @param dropReason
+     */
+    public void incrementMessagesDropped(DropReason dropReason) {
+        messagesDroppedWithoutTransportMode[dropReason.ordinal()].increment();
+    }
+
+    public void incrementMessagesOut() {
+        messagesOut.increment();
+    }
+
+    public void incrementPendingSends() {
+        pendingSends.increment();
+    }
+
+    public void decrementPendingSends() {
+        pendingSends.decrement();
+    }
+
+    public void setTripRegistry(PartitionedTripRegistry tripRegistry) {
+        this.tripRegistry = tripRegistry;
+    }
+
+    public void addVehicleStateStore(VehicleStateStore vehicleStateStore) {
+        vehicleStateStores.add(vehicleStateStore);
+    }
+
+    public void addVehiclePositionCoalescer(VehiclePositionCoalescer vehiclePositionCoalescer) {
+        vehiclePositionCoalescers.add(vehiclePositionCoalescer);
+    }
+
+    public long getLatencyCount(Latency latency, Hfp.Topic.TransportMode transportMode) {
+        return latencyMetrics[latency.ordinal()][transportMode.ordinal()].count.sum();
+    }
+
+    public long getMessagesIn(String schema) {
+        final LongAdder counter = messagesIn.get(schema);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    public long getMessagesDropped(DropReason dropReason, Hfp.Topic.TransportMode transportMode) {
+        return messagesDropped[dropReason.ordinal()][transportMode.ordinal()].sum();
+    }
+
+    public long getMessagesDropped(DropReason dropReason) {
+        return messagesDroppedWithoutTransportMode[dropReason.ordinal()].sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getPendingSends() {
+        return pendingSends.sum();
+    }
+
+    public long getVehicleStates() {
+        return vehicleStateStores.stream().mapToLong(VehicleStateStore::size).sum();
+    }
+
+    public long getVehicleStatesExpired() {
+        return vehicleStateStores.stream().mapToLong(VehicleStateStore::getExpiredCount).sum();
+    }
+
+    public long getVehicleStatesEvicted() {
+        return vehicleStateStores.stream().mapToLong(VehicleStateStore::getEvictedCount).sum();
+    }
+
+    public long getPositionsPublishedByCoalescer() {
+        return vehiclePositionCoalescers.stream().mapToLong(VehiclePositionCoalescer::getPublishedCount).sum();
+    }
+
+    public long getPositionsCoalesced() {
+        return vehiclePositionCoalescers.stream().mapToLong(VehiclePositionCoalescer::getCoalescedCount).sum();
+    }
+
+    public long getPositionsPending() {
+        return vehiclePositionCoalescers.stream().mapToLong(VehiclePositionCoalescer::getPendingCount).sum();
+    }
+
+    public long getStageCount(Stage stage) {
+        return stageMetrics[stage.ordinal()].count.sum();
+    }
+
+    /**
+     * Writes the metrics in Prometheus text format
+     * @param output
+     */
+    public synchronized void writePrometheusText(StringBuilder output) {
+        final String stageDuration = PREFIX + "stage_duration_seconds";
+        output.append("# HELP ").append(stageDuration).append(" Processing time of each stage of message processing\n");
+        output.append("# TYPE ").append(stageDuration).append(" summary\n");
+        for (Stage stage : Stage.values()) {
+            writeSummary(output, stageDuration, "stage=\"" + stage.label + "\"", stageMetrics[stage.ordinal()]);
+        }
+
+        final String latencySeconds = PREFIX + "latency_seconds";
+        output.append("# HELP ").append(latencySeconds).append(" Latency of vehicle positions from the vehicle to the broker by transport mode\n");
+        output.append("# TYPE ").append(latencySeconds).append(" summary\n");
+        for (Latency latency : Latency.values()) {
+            for (Hfp.Topic.TransportMode transportMode : TRANSPORT_MODES) {
+                final DurationMetrics metrics = latencyMetrics[latency.ordinal()][transportMode.ordinal()];
+                //Transport modes without any messages are left out to keep the output small
+                if (metrics.count.sum() > 0) {
+                    writeSummary(output, latencySeconds, "latency=\"" + latency.label + "\",transport_mode=\"" + transportMode.name() + "\"", metrics);
+                }
+            }
+        }
+
+        final String messagesInTotal = PREFIX + "messages_in_total";
+        output.append("# HELP ").append(messagesInTotal).append(" Amount of received messages by protobuf schema\n");
+        output.append("# TYPE ").append(messagesInTotal).append(" counter\n");
+        messagesIn.forEach((schema, counter) ->
+                output.append(messagesInTotal).append("{schema=\"").append(schema).append("\"} ").append(counter.sum()).append('\n'));
+
+        final String messagesDroppedTotal = PREFIX + "messages_dropped_total";
+        output.append("# HELP ").append(messagesDroppedTotal).append(" Amount of messages that did not produce a vehicle position by reason and transport mode\n");
+        output.append("# TYPE ").append(messagesDroppedTotal).append(" counter\n");
+        for (DropReason dropReason : DropReason.values()) {
+            for (Hfp.Topic.TransportMode transportMode : TRANSPORT_MODES) {
+                output.append(messagesDroppedTotal).append("{reason=\"").append(dropReason.label).append("\",transport_mode=\"").append(transportMode.name()).append("\"} ")
+                        .append(messagesDropped[dropReason.ordinal()][transportMode.ordinal()].sum()).append('\n');
+            }
+            //Messages without transport mode are rare, so they are left out unless there are any
+            final long droppedWithoutTransportMode = messagesDroppedWithoutTransportMode[dropReason.ordinal()].sum();
+            if (droppedWithoutTransportMode > 0) {
+                output.append(messagesDroppedTotal).append("{reason=\"").append(dropReason.label).append("\",transport_mode=\"unknown\"} ")
+                        .append(droppedWithoutTransportMode).append('\n');
+            }
+        }
+
+        final String messagesOutTotal = PREFIX + "messages_out_total";
+        output.append("# HELP ").append(messagesOutTotal).append(" Amount of published vehicle positions\n");
+        output.append("# TYPE ").append(messagesOutTotal).append(" counter\n");
+        output.append(messagesOutTotal).append(' ').append(messagesOut.sum()).append('\n');
+
+        final String pendingSendsName = PREFIX + "pending_sends";
+        output.append("# HELP ").append(pendingSendsName).append(" Amount of vehicle positions waiting for acknowledgement from the broker\n");
+        output.append("# TYPE ").append(pendingSendsName).append(" gauge\n");
+        output.append(pendingSendsName).append(' ').append(pendingSends.sum()).append('\n');
+
+        final String coalescerPositionsTotal = PREFIX + "coalescer_positions_total";
+        output.append("# HELP ").append(coalescerPositionsTotal).append(" Amount of vehicle positions published or replaced by a newer position (coalesced) by rate limiting\n");
+        output.append("# TYPE ").append(coalescerPositionsTotal).append(" counter\n");
+        output.append(coalescerPositionsTotal).append("{result=\"published\"} ").append(getPositionsPublishedByCoalescer()).append('\n');
+        output.append(coalescerPositionsTotal).append("{result=\"coalesced\"} ").append(getPositionsCoalesced()).append('\n');
+
+        final String coalescerPending = PREFIX + "coalescer_pending";
+        output.append("# HELP ").append(coalescerPending).append(" Amount of vehicles with a vehicle position held back by rate limiting\n");
+        output.append("# TYPE ").append(coalescerPending).append(" gauge\n");
+        output.append(coalescerPending).append(' ').append(getPositionsPending()).append('\n');
+
+        final String vehicleStates = PREFIX + "vehicle_states";
+        output.append("# HELP ").append(vehicleStates).append(" Amount of vehicles whose state is stored\n");
+        output.append("# TYPE ").append(vehicleStates).append(" gauge\n");
+        output.append(vehicleStates).append(' ').append(getVehicleStates()).append('\n');
+
+        final String vehicleStatesRemovedTotal = PREFIX + "vehicle_states_removed_total";
+        output.append("# HELP ").append(vehicleStatesRemovedTotal).append(" Amount of vehicle states removed because they were idle (expired) or the store was full (evicted)\n");
+        output.append("# TYPE ").append(vehicleStatesRemovedTotal).append(" counter\n");
+        output.append(vehicleStatesRemovedTotal).append("{reason=\"expired\"} ").append(getVehicleStatesExpired()).append('\n');
+        output.append(vehicleStatesRemovedTotal).append("{reason=\"evicted\"} ").append(getVehicleStatesEvicted()).append('\n');
+
+        final PartitionedTripRegistry tripRegistry = this.tripRegistry;
+        if (tripRegistry != null) {
+            final String tripRegistrations = PREFIX + "trip_registrations";
+            output.append("# HELP ").append(tripRegistrations).append(" Amount of trip registrations by operating day and start hour of the trip\n");
+            output.append("# TYPE ").append(tripRegistrations).append(" gauge\n");
+            tripRegistry.forEachBucket((operatingDay, startHour, size) ->
+                    output.append(tripRegistrations).append("{operating_day=\"").append(operatingDay).append("\",start_hour=\"").append(startHour).append("\"} ").append(size).append('\n'));
+        }
+    }
+
+    private static void writeSummary(StringBuilder output, String name, String labels, DurationMetrics metrics) {
+        final Histogram histogram = metrics.getCumulativeHistogram();
+
+        for (double quantile : QUANTILES) {
+            output.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(toSeconds(histogram.getTotalCount() > 0 ? histogram.getValueAtPercentile(quantile * 100) : 0)).append('\n');
+        }
+        output.append(name).append("_sum{").append(labels).append("} ").append(toSeconds(metrics.sumNanos.sum())).append('\n');
+        output.append(name).append("_count{").append(labels).append("} ").append(metrics.count.sum()).append('\n');
+    }
+
+    private static double toSeconds(long nanos) {
+        return (double) nanos / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static class DurationMetrics {
+        //Recorder allows recording values concurrently while the interval histogram is being read
+        private final Recorder recorder = new Recorder(2);
+        //Values of all intervals, only accessed while writing the metrics
+        private final Histogram cumulativeHistogram = new Histogram(2);
+        private Histogram intervalHistogram;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private void record(long durationNanos) {
+            recorder.recordValue(durationNanos);
+            count.increment();
+            sumNanos.add(durationNanos);
+        }
+
+        private Histogram getCumulativeHistogram() {
+            //Interval histogram is recycled to avoid allocating a new one on each read
+            intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+            cumulativeHistogram.add(intervalHistogram);
+            return cumulativeHistogram;
+        }
+    }
+}
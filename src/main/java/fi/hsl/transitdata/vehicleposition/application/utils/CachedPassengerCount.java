@@ -0,0 +1,76 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
+
+import java.util.Objects;
+
+/**
+ * Fields of the latest passenger count of a vehicle that are needed for its occupancy status. The rest of the
+ * passenger count message is not kept in memory. Updated in place when a new passenger count is received from the vehicle.
+ */
+public class CachedPassengerCount {
+    //Trip that the passenger count was received for
+    private String routeId;
+    private String operatingDay;
+    private String startTime;
+    private String directionId;
+
+    private boolean hasVehicleLoad;
+    private int vehicleLoad;
+    private double vehicleLoadRatio;
+
+    private long receivedAtMs;
+
+    //Vehicle that the passenger count belongs to and neighbours in update order, maintained by PassengerCountCache
+    VehicleState vehicleState;
+    CachedPassengerCount lessRecentlyUpdated;
+    CachedPassengerCount moreRecentlyUpdated;
+
+    CachedPassengerCount() {}
+
+    public static CachedPassengerCount of(PassengerCount.Payload passengerCount, long receivedAtMs) {
+        final CachedPassengerCount cached = new CachedPassengerCount();
+        cached.update(passengerCount.getRoute(), passengerCount.getOday(), passengerCount.getStart(), passengerCount.getDir(), passengerCount, receivedAtMs);
+        return cached;
+    }
+
+    void update(String routeId, String operatingDay, String startTime, String directionId, PassengerCount.Payload passengerCount, long receivedAtMs) {
+        this.routeId = routeId;
+        this.operatingDay = operatingDay;
+        this.startTime = startTime;
+        this.directionId = directionId;
+
+        hasVehicleLoad = passengerCount.getVehicleCounts().hasVehicleLoad();
+        vehicleLoad = passengerCount.getVehicleCounts().getVehicleLoad();
+        vehicleLoadRatio = passengerCount.getVehicleCounts().getVehicleLoadRatio();
+
+        this.receivedAtMs = receivedAtMs;
+    }
+
+    /**
+     * Checks whether the passenger count was received for the given trip
+     */
+    boolean isForTrip(String routeId, String operatingDay, String startTime, String directionId) {
+        return Objects.equals(this.routeId, routeId) &&
+                Objects.equals(this.operatingDay, operatingDay) &&
+                Objects.equals(this.startTime, startTime) &&
+                Objects.equals(this.directionId, directionId);
+    }
+
+    public boolean hasVehicleLoad() {
+        return hasVehicleLoad;
+    }
+
+    public int getVehicleLoad() {
+        return vehicleLoad;
+    }
+
+    public double getVehicleLoadRatio() {
+        return vehicleLoadRatio;
+    }
+
+    public long getReceivedAtMs() {
+        return receivedAtMs;
+    }
+}
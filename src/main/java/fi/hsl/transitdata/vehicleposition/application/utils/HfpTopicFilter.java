@@ -0,0 +1,164 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import fi.hsl.common.hfp.proto.Hfp;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Filters out HFP messages that are not relevant for producing vehicle positions.
+ *
+ * The filter can be applied directly to serialized {@link Hfp.Data}, in which case only the topic fields needed for
+ * the checks are decoded and the rest of the message is skipped. Messages that are filtered out are therefore not
+ * validated: a message with a decodable topic is classified by the topic even if the rest of it is malformed or
+ * misses required fields, and such a message is counted by the filter result instead of as a parse error.
+ */
+public class HfpTopicFilter {
+    //Events that are relevant for calculating stop status
+    private static final Set<Hfp.Topic.EventType> RELEVANT_EVENT_TYPES = EnumSet.of(
+            Hfp.Topic.EventType.VP,
+            Hfp.Topic.EventType.DUE,
+            Hfp.Topic.EventType.PAS,
+            Hfp.Topic.EventType.ARS,
+            Hfp.Topic.EventType.PDE
+    );
+
+    private static final Hfp.Topic DEFAULT_TOPIC = Hfp.Topic.getDefaultInstance();
+
+    private static final int TOPIC_TAG = tag(Hfp.Data.TOPIC_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int JOURNEY_TYPE_TAG = tag(Hfp.Topic.JOURNEY_TYPE_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int TEMPORAL_TYPE_TAG = tag(Hfp.Topic.TEMPORAL_TYPE_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int EVENT_TYPE_TAG = tag(Hfp.Topic.EVENT_TYPE_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int TRANSPORT_MODE_TAG = tag(Hfp.Topic.TRANSPORT_MODE_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+
+    public enum Result {
+        RELEVANT,
+        //Not sent from a vehicle on a journey
+        NOT_JOURNEY,
+        //Not sent from a vehicle on an ongoing journey
+        NOT_ONGOING,
+        //Event is not relevant for calculating stop status
+        IRRELEVANT_EVENT_TYPE
+    }
+
+    private HfpTopicFilter() {}
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    public static Result check(Hfp.Topic topic) {
+        return check(topic.getJourneyType(), topic.getTemporalType(), topic.getEventType());
+    }
+
+    /**
+     * Checks serialized HFP data without parsing the whole message. Field values are resolved the same way as when
+     * parsing the message, i.e. missing fields and unknown enum values result in default values.
+     * @param hfpData Serialized {@link Hfp.Data}
+     * @return Result of the check. If the topic cannot be decoded, {@link Result#RELEVANT} is returned so that
+     *         the error is reported when the message is parsed. Other fields are skipped without validating them.
+     */
+    public static Result check(byte[] hfpData) {
+        Hfp.Topic.JourneyType journeyType = DEFAULT_TOPIC.getJourneyType();
+        Hfp.Topic.TemporalType temporalType = DEFAULT_TOPIC.getTemporalType();
+        Hfp.Topic.EventType eventType = DEFAULT_TOPIC.getEventType();
+
+        try {
+            final CodedInputStream input = CodedInputStream.newInstance(hfpData);
+
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag != TOPIC_TAG) {
+                    if (!input.skipField(tag)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                //Topic can occur more than once, in which case the occurrences are merged
+                final int oldLimit = input.pushLimit(input.readRawVarint32());
+
+                int topicTag;
+                while ((topicTag = input.readTag()) != 0) {
+                    if (topicTag == JOURNEY_TYPE_TAG) {
+                        journeyType = valueOrDefault(Hfp.Topic.JourneyType.forNumber(input.readEnum()), journeyType);
+                    } else if (topicTag == TEMPORAL_TYPE_TAG) {
+                        temporalType = valueOrDefault(Hfp.Topic.TemporalType.forNumber(input.readEnum()), temporalType);
+                    } else if (topicTag == EVENT_TYPE_TAG) {
+                        eventType = valueOrDefault(Hfp.Topic.EventType.forNumber(input.readEnum()), eventType);
+                    } else if (!input.skipField(topicTag)) {
+                        break;
+                    }
+                }
+
+                input.popLimit(oldLimit);
+            }
+        } catch (IOException e) {
+            return Result.RELEVANT;
+        }
+
+        return check(journeyType, temporalType, eventType);
+    }
+
+    /**
+     * Reads the transport mode from serialized HFP data without parsing the whole message. Used for classifying
+     * messages that were filtered out, so the rest of the message is skipped after the first topic.
+     * @param hfpData Serialized {@link Hfp.Data}
+     * @return Transport mode of the vehicle, or the default value if the data cannot be decoded
+     */
+    public static Hfp.Topic.TransportMode getTransportMode(byte[] hfpData) {
+        Hfp.Topic.TransportMode transportMode = DEFAULT_TOPIC.getTransportMode();
+
+        try {
+            final CodedInputStream input = CodedInputStream.newInstance(hfpData);
+
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag != TOPIC_TAG) {
+                    if (!input.skipField(tag)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                input.pushLimit(input.readRawVarint32());
+
+                int topicTag;
+                while ((topicTag = input.readTag()) != 0) {
+                    if (topicTag == TRANSPORT_MODE_TAG) {
+                        transportMode = valueOrDefault(Hfp.Topic.TransportMode.forNumber(input.readEnum()), transportMode);
+                    } else if (!input.skipField(topicTag)) {
+                        break;
+                    }
+                }
+                //Topic occurs more than once only in exceptional cases, which are not worth decoding for statistics
+                break;
+            }
+        } catch (IOException e) {
+            //Invalid data is reported when the message is parsed
+        }
+
+        return transportMode;
+    }
+
+    private static <E extends Enum<E>> E valueOrDefault(E value, E defaultValue) {
+        //Unknown enum values are stored as unknown fields when parsing, i.e. the previous value is kept
+        return value != null ? value : defaultValue;
+    }
+
+    private static Result check(Hfp.Topic.JourneyType journeyType, Hfp.Topic.TemporalType temporalType, Hfp.Topic.EventType eventType) {
+        if (journeyType != Hfp.Topic.JourneyType.journey) {
+            return Result.NOT_JOURNEY;
+        }
+        if (temporalType != Hfp.Topic.TemporalType.ongoing) {
+            return Result.NOT_ONGOING;
+        }
+        if (!RELEVANT_EVENT_TYPES.contains(eventType)) {
+            return Result.IRRELEVANT_EVENT_TYPE;
+        }
+        return Result.RELEVANT;
+    }
+}
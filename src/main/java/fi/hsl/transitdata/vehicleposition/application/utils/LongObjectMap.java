@@ -0,0 +1,181 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Hash map with primitive long keys using open addressing with linear probing. Keys are not boxed, so lookups
+ * do not allocate. Null values are not allowed. Not thread-safe.
+ * @param <V> Value type
+ */
+public class LongObjectMap<V> {
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] keys;
+    //Slot is free if its value is null
+    private Object[] values;
+    private int mask;
+    private int resizeThreshold;
+    private int size;
+
+    /**
+     * @param expectedSize Amount of entries that can be stored without resizing
+     */
+    public LongObjectMap(int expectedSize) {
+        //Load factor is kept at most 0.5 to keep probe sequences short
+        allocate(tableSizeFor(Math.max(4, expectedSize * 2)));
+    }
+
+    private static int tableSizeFor(int capacity) {
+        return capacity >= MAX_CAPACITY ? MAX_CAPACITY : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = capacity / 2;
+    }
+
+    private int index(long key) {
+        //Vehicle keys differ mostly in low bits, spread them to the whole table
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = index(key);
+
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                return (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Previous value of the key or null if there was no value
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        Objects.requireNonNull(value, "value must not be null");
+
+        int index = index(key);
+
+        Object existing;
+        while ((existing = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return (V) existing;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+
+        if (++size > resizeThreshold) {
+            resize();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Removed value or null if there was no value for the key
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = index(key);
+
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = null;
+                size--;
+                closeGap(index);
+                return (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return Copy of the values in the map
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        final List<V> list = new ArrayList<>(size);
+        for (Object value : values) {
+            if (value != null) {
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+
+    //Moves entries following the removed entry back so that their probe sequences are not broken
+    private void closeGap(int gap) {
+        int index = (gap + 1) & mask;
+
+        Object value;
+        while ((value = values[index]) != null) {
+            final int distanceFromIdeal = (index - index(keys[index])) & mask;
+            final int distanceFromGap = (index - gap) & mask;
+
+            if (distanceFromIdeal >= distanceFromGap) {
+                keys[gap] = keys[index];
+                values[gap] = value;
+                values[index] = null;
+                gap = index;
+            }
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        if (values.length == MAX_CAPACITY) {
+            throw new IllegalStateException("Map is full");
+        }
+
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+
+        allocate(values.length * 2);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            final Object value = oldValues[i];
+            if (value != null) {
+                int index = index(oldKeys[i]);
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = value;
+            }
+        }
+    }
+}
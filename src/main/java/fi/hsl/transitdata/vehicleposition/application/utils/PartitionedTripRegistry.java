@@ -0,0 +1,223 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trip registrations partitioned into buckets by operating day and start hour of the trip. Registrations of trips
+ * starting in the same hour expire at about the same time, so whole buckets are dropped when they expire instead of
+ * removing each registration with its own timer.
+ *
+ * Each registration expires {@link #MAX_AGE} after it was added as in {@link TripVehicleCache}, after which another
+ * vehicle can be registered for the trip. A bucket expires when the latest registration added to it expires. Expired
+ * buckets are dropped when registering vehicles, at most once per minute.
+ */
+public class PartitionedTripRegistry implements TripRegistry {
+    private static final long EXPIRY_CHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final long maxAgeMs;
+    private final Clock clock;
+
+    private final ConcurrentMap<BucketKey, Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile long nextExpiryCheckMs = Long.MIN_VALUE;
+
+    public PartitionedTripRegistry() {
+        this(MAX_AGE, Clock.systemUTC());
+    }
+
+    /**
+     * @param maxAge Time to keep registrations after registering
+     * @param clock
+     */
+    public PartitionedTripRegistry(Duration maxAge, Clock clock) {
+        this.maxAgeMs = maxAge.toMillis();
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean registerVehicleForTrip(String vehicleId, TripDescriptor trip) {
+        final long now = clock.millis();
+        return vehicleId.equals(register(vehicleId, trip, now, now + maxAgeMs).registeredVehicleId);
+    }
+
+    @Override
+    public boolean registerVehicleForTrip(VehicleState vehicleState, String vehicleId, String routeId, String operatingDay, String startTime, String directionId) {
+        final long now = clock.millis();
+
+        final TripDescriptor previousTrip = vehicleState.getTrip();
+        if (previousTrip != null && vehicleState.isTripRegistrationValid(now) && previousTrip.matches(routeId, operatingDay, startTime, directionId)) {
+            return vehicleState.isRegisteredForTrip();
+        }
+
+        final TripDescriptor trip = new TripDescriptor(routeId, operatingDay, startTime, directionId);
+        final Registration registration = register(vehicleId, trip, now, now + maxAgeMs);
+        final boolean registered = vehicleId.equals(registration.registeredVehicleId);
+
+        //Registration is not replaced before it expires, so it cannot change before that
+        vehicleState.setTrip(trip, registered, registration.expiresAtMs);
+
+        return registered;
+    }
+
+    @Override
+    public void restoreRegistration(String vehicleId, TripDescriptor trip, Duration expiresAfter) {
+        if (expiresAfter.isNegative() || expiresAfter.isZero()) {
+            return;
+        }
+
+        final long now = clock.millis();
+        register(vehicleId, trip, now, now + expiresAfter.toMillis());
+    }
+
+    private Registration register(String vehicleId, TripDescriptor trip, long now, long expiresAtMs) {
+        dropExpiredBuckets(now);
+
+        final BucketKey key = BucketKey.of(trip);
+        while (true) {
+            final Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket(expiresAtMs));
+            final Registration registration = bucket.register(vehicleId, trip, now, expiresAtMs);
+            if (registration != null) {
+                return registration;
+            }
+            //Bucket has expired, a new bucket is created for the trip
+            buckets.remove(key, bucket);
+        }
+    }
+
+    private void dropExpiredBuckets(long now) {
+        if (now < nextExpiryCheckMs) {
+            return;
+        }
+        nextExpiryCheckMs = now + EXPIRY_CHECK_INTERVAL_MS;
+
+        buckets.forEach((key, bucket) -> {
+            if (bucket.dropIfExpired(now)) {
+                buckets.remove(key, bucket);
+            }
+        });
+    }
+
+    @Override
+    public void forEachRegistration(RegistrationVisitor visitor) {
+        final long now = clock.millis();
+        buckets.values().forEach(bucket -> bucket.forEachRegistration(now, visitor));
+    }
+
+    /**
+     * Calls the visitor for each bucket that has not been dropped, e.g. for exposing the sizes as metrics
+     * @param visitor
+     */
+    public void forEachBucket(BucketVisitor visitor) {
+        buckets.forEach((key, bucket) -> visitor.visit(key.operatingDay, key.startHour, bucket.size()));
+    }
+
+    public interface BucketVisitor {
+        /**
+         * @param operatingDay
+         * @param startHour Start hour of the trips in the bucket as in the start time, -1 if the start time is not valid
+         * @param size Amount of registrations in the bucket, including expired registrations that have not been replaced
+         */
+        void visit(String operatingDay, int startHour, int size);
+    }
+
+    private static class BucketKey {
+        final String operatingDay;
+        final int startHour;
+
+        BucketKey(String operatingDay, int startHour) {
+            this.operatingDay = operatingDay;
+            this.startHour = startHour;
+        }
+
+        static BucketKey of(TripDescriptor trip) {
+            final String startTime = trip.startTime;
+            final int startHour = startTime != null && startTime.length() >= 2 && Character.isDigit(startTime.charAt(0)) && Character.isDigit(startTime.charAt(1)) ?
+                    (startTime.charAt(0) - '0') * 10 + (startTime.charAt(1) - '0') :
+                    -1;
+            return new BucketKey(Objects.toString(trip.operatingDay, ""), startHour);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BucketKey that = (BucketKey) o;
+            return startHour == that.startHour && operatingDay.equals(that.operatingDay);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * operatingDay.hashCode() + startHour;
+        }
+    }
+
+    private static class Registration {
+        final String registeredVehicleId;
+        final long expiresAtMs;
+
+        Registration(String registeredVehicleId, long expiresAtMs) {
+            this.registeredVehicleId = registeredVehicleId;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private static class Bucket {
+        private final Map<TripDescriptor, Registration> registrations = new HashMap<>();
+        //Only grows, so that registrations are never dropped before they expire
+        private long expiresAtMs;
+        private boolean dropped = false;
+
+        Bucket(long expiresAtMs) {
+            this.expiresAtMs = expiresAtMs;
+        }
+
+        /**
+         * @return Registration for the trip or null if the bucket has expired
+         */
+        synchronized Registration register(String vehicleId, TripDescriptor trip, long now, long registrationExpiresAtMs) {
+            if (dropIfExpired(now)) {
+                return null;
+            }
+
+            Registration registration = registrations.get(trip);
+            if (registration == null || now >= registration.expiresAtMs) {
+                registration = new Registration(vehicleId, registrationExpiresAtMs);
+                registrations.put(trip, registration);
+                expiresAtMs = Math.max(expiresAtMs, registrationExpiresAtMs);
+            }
+            return registration;
+        }
+
+        synchronized boolean dropIfExpired(long now) {
+            if (now >= expiresAtMs) {
+                //Registrations are released with the bucket when it is removed from the registry
+                dropped = true;
+            }
+            return dropped;
+        }
+
+        synchronized void forEachRegistration(long now, RegistrationVisitor visitor) {
+            if (dropped || now >= expiresAtMs) {
+                return;
+            }
+
+            registrations.forEach((trip, registration) -> {
+                if (now < registration.expiresAtMs) {
+                    visitor.visit(registration.registeredVehicleId, trip, Duration.ofMillis(registration.expiresAtMs - now));
+                }
+            });
+        }
+
+        synchronized int size() {
+            return registrations.size();
+        }
+    }
+}
@@ -1,57 +1,159 @@
 package fi.hsl.transitdata.vehicleposition.application.utils;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.Scheduler;
 import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 
+import java.time.Clock;
 import java.time.Duration;
-import java.util.Objects;
 
+/**
+ * Keeps track of the latest passenger count received for the trip. Passenger count is stored in the vehicle state,
+ * only the fields needed for the occupancy status are kept. Only one passenger count is kept for each vehicle, so a
+ * passenger count received late for another trip does not replace the passenger count of the current trip of the vehicle.
+ *
+ * Amount of vehicles with a passenger count can be limited. When the limit is reached, passenger count is removed
+ * from the vehicle whose passenger count was updated the longest time ago, so expired passenger counts are removed
+ * before the passenger counts of vehicles that are still sending them. Passenger count of a vehicle whose state is
+ * removed must be removed with {@link #remove(VehicleState)}. Not thread-safe.
+ */
 public class PassengerCountCache {
-    //Remove old data after 5 minutes (passenger count data that is too old is not relevant, because we are interested in the current load of the vehicle)
-    //TODO: this should be configurable
-    private static final Duration MAX_AGE = Duration.ofMinutes(5);
+    //Passenger count data that is too old is not relevant, because we are interested in the current load of the vehicle
+    private static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(5);
 
-    private final Cache<VehicleIdAndTrip, PassengerCount.Payload> passengerCountCache = Caffeine.newBuilder()
-            .expireAfterWrite(MAX_AGE)
-            .scheduler(Scheduler.systemScheduler())
-            .build();
+    private final long maxAgeMs;
+    private final int maxSize;
+    private final Clock clock;
 
-    public void updatePassengerCount(String uniqueVehicleId, String routeId, String operatingDay, String startTime, String directionId, PassengerCount.Payload passengerCount) {
-        passengerCountCache.put(new VehicleIdAndTrip(uniqueVehicleId, routeId, operatingDay, startTime, directionId), passengerCount);
+    //Passenger counts are linked in the order they were updated, only if the amount of vehicles is limited
+    private CachedPassengerCount leastRecentlyUpdated;
+    private CachedPassengerCount mostRecentlyUpdated;
+    private int size = 0;
+
+    public PassengerCountCache() {
+        this(DEFAULT_MAX_AGE, 0, Clock.systemUTC());
+    }
+
+    /**
+     * @param maxAge Passenger counts older than this are not used. 0 disables expiration.
+     * @param maxSize Maximum amount of vehicles to keep passenger count for. 0 means no limit.
+     * @param clock
+     */
+    public PassengerCountCache(Duration maxAge, int maxSize, Clock clock) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Maximum size cannot be negative");
+        }
+
+        this.maxAgeMs = maxAge.toMillis();
+        this.maxSize = maxSize;
+        this.clock = clock;
+    }
+
+    public void updatePassengerCount(VehicleState vehicleState, String routeId, String operatingDay, String startTime, String directionId, PassengerCount.Payload passengerCount) {
+        CachedPassengerCount cached = vehicleState.getPassengerCount();
+        if (cached != null && isLateForAnotherTrip(vehicleState, cached, routeId, operatingDay, startTime, directionId)) {
+            return;
+        }
+
+        if (cached == null) {
+            if (maxSize > 0 && size >= maxSize) {
+                remove(leastRecentlyUpdated.vehicleState);
+            }
+
+            cached = new CachedPassengerCount();
+            cached.vehicleState = vehicleState;
+            vehicleState.setPassengerCount(cached);
+            if (maxSize > 0) {
+                size++;
+                linkAsMostRecentlyUpdated(cached);
+            }
+        } else if (maxSize > 0) {
+            unlink(cached);
+            linkAsMostRecentlyUpdated(cached);
+        }
+
+        cached.update(routeId, operatingDay, startTime, directionId, passengerCount, clock.millis());
+    }
+
+    /**
+     * @return true if the cached passenger count is for the current trip of the vehicle and the new one is not, e.g.
+     * when a passenger count of the previous trip is received after the vehicle has started the next trip
+     */
+    private static boolean isLateForAnotherTrip(VehicleState vehicleState, CachedPassengerCount cached, String routeId, String operatingDay, String startTime, String directionId) {
+        final TripDescriptor currentTrip = vehicleState.getTrip();
+        return currentTrip != null &&
+                cached.isForTrip(currentTrip.routeId, currentTrip.operatingDay, currentTrip.startTime, currentTrip.directionId) &&
+                !currentTrip.matches(routeId, operatingDay, startTime, directionId);
     }
 
-    public PassengerCount.Payload getPassengerCount(String uniqueVehicleId, String routeId, String operatingDay, String startTime, String directionId) {
-        return passengerCountCache.getIfPresent(new VehicleIdAndTrip(uniqueVehicleId, routeId, operatingDay, startTime, directionId));
+    /**
+     * Removes passenger count of the vehicle, e.g. when the state of the vehicle is removed
+     * @param vehicleState
+     */
+    public void remove(VehicleState vehicleState) {
+        final CachedPassengerCount cached = vehicleState.getPassengerCount();
+        if (cached == null) {
+            return;
+        }
+
+        vehicleState.clearPassengerCount();
+        if (maxSize > 0) {
+            unlink(cached);
+            size--;
+        }
+    }
+
+    /**
+     * @return Amount of vehicles with a passenger count if the amount is limited, otherwise 0
+     */
+    public int size() {
+        return size;
+    }
+
+    private void unlink(CachedPassengerCount cached) {
+        if (cached.lessRecentlyUpdated != null) {
+            cached.lessRecentlyUpdated.moreRecentlyUpdated = cached.moreRecentlyUpdated;
+        } else {
+            leastRecentlyUpdated = cached.moreRecentlyUpdated;
+        }
+
+        if (cached.moreRecentlyUpdated != null) {
+            cached.moreRecentlyUpdated.lessRecentlyUpdated = cached.lessRecentlyUpdated;
+        } else {
+            mostRecentlyUpdated = cached.lessRecentlyUpdated;
+        }
+
+        cached.lessRecentlyUpdated = null;
+        cached.moreRecentlyUpdated = null;
     }
 
-    private static class VehicleIdAndTrip {
-        public final String uniqueVehicleId;
-        public final String routeId;
-        public final String operatingDay;
-        public final String startTime;
-        public final String directionId;
+    private void linkAsMostRecentlyUpdated(CachedPassengerCount cached) {
+        cached.lessRecentlyUpdated = mostRecentlyUpdated;
+        if (mostRecentlyUpdated != null) {
+            mostRecentlyUpdated.moreRecentlyUpdated = cached;
+        } else {
+            leastRecentlyUpdated = cached;
+        }
+        mostRecentlyUpdated = cached;
+    }
 
-        private VehicleIdAndTrip(String uniqueVehicleId, String routeId, String operatingDay, String startTime, String directionId) {
-            this.uniqueVehicleId = uniqueVehicleId;
-            this.routeId = routeId;
-            this.operatingDay = operatingDay;
-            this.startTime = startTime;
-            this.directionId = directionId;
+    /**
+     * @return Latest passenger count received from the vehicle for the trip or null if there is no recent passenger count for the trip
+     */
+    public CachedPassengerCount getPassengerCount(VehicleState vehicleState, String routeId, String operatingDay, String startTime, String directionId) {
+        final CachedPassengerCount cached = vehicleState.getPassengerCount();
+        if (cached == null) {
+            return null;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            VehicleIdAndTrip that = (VehicleIdAndTrip) o;
-            return Objects.equals(uniqueVehicleId, that.uniqueVehicleId) && Objects.equals(routeId, that.routeId) && Objects.equals(operatingDay, that.operatingDay) && Objects.equals(startTime, that.startTime) && Objects.equals(directionId, that.directionId);
+        //Expired passenger count is kept so that it can be updated in place when the vehicle sends a new one
+        if (maxAgeMs > 0 && clock.millis() - cached.getReceivedAtMs() >= maxAgeMs) {
+            return null;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(uniqueVehicleId, routeId, operatingDay, startTime, directionId);
+        if (!cached.isForTrip(routeId, operatingDay, startTime, directionId)) {
+            return null;
         }
+
+        return cached;
     }
 }
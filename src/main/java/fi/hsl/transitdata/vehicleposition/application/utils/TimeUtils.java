@@ -3,39 +3,55 @@ package fi.hsl.transitdata.vehicleposition.application.utils;
 import fi.hsl.common.hfp.proto.Hfp;
 
 import java.time.*;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TimeUtils {
     private static final ZoneId TZ = ZoneId.of("Europe/Helsinki");
 
+    private static final int SECONDS_PER_DAY = 86400;
+    //If start time would be more than 12 hours in the past, assume that the trip begins on the following day
+    //(i.e. whole minutes elapsed since the start time must be at most 12 * 60)
+    private static final long MAX_SECONDS_SINCE_START = (12 * 60 + 1) * 60;
+
+    //Formatted times are cached for whole minutes from 00:00 to 123:59, which covers all times produced from HH:mm start times
+    private static final String[] FORMATTED_TIMES = new String[124 * 60];
+
+    //Operating days are only cached for a few days at a time, as only the current and the previous day are in use
+    private static final int MAX_CACHED_OPERATING_DAYS = 16;
+    private static final Map<String, OperatingDay> OPERATING_DAYS = new ConcurrentHashMap<>();
+
+    //UTC offset of the time zone changes only twice a year
+    private static volatile OffsetPeriod offsetPeriod = OffsetPeriod.of(Instant.now().getEpochSecond());
+
     public static String getStartTime(Hfp.Data data) {
         //Implementation based on https://digitransit.fi/en/developers/apis/1-routing-api/routes/#a-namefuzzytripaquery-a-trip-without-its-id
-        final ZonedDateTime timeZonedTst = ZonedDateTime.ofInstant(Instant.ofEpochSecond(data.getPayload().getTsi()), ZoneOffset.UTC).withZoneSameInstant(TZ);
-        final String formattedTimeZonedTst = timeZonedTst.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+        final long tsi = data.getPayload().getTsi();
+        final long localTst = tsi + getOffsetSeconds(tsi);
 
         final String oday = data.getPayload().getOday();
-        final String tstDay = formattedTimeZonedTst.substring(0, 10);
+        final OperatingDay operatingDay = getOperatingDay(oday);
 
-        final ZonedDateTime startTimeOday = LocalDate.parse(oday).atStartOfDay(TZ).plus(hhMmToSeconds(data.getPayload().getStart()), ChronoUnit.SECONDS);
+        final int startTime = hhMmToSeconds(data.getPayload().getStart());
 
-        if (oday.equals(tstDay) &&
-                //If start time would be more than 12 hours in the past, assume that the trip begins on the following day
-                startTimeOday.until(timeZonedTst, ChronoUnit.MINUTES) <= 12 * 60) {
-            return data.getPayload().getStart()+":00";
+        if (operatingDay.epochDay == Math.floorDiv(localTst, SECONDS_PER_DAY) &&
+                tsi - (operatingDay.startOfDayEpochSecond + startTime) < MAX_SECONDS_SINCE_START) {
+            return isCanonicalHhMm(data.getPayload().getStart()) ? formatTimeCached(startTime) : data.getPayload().getStart()+":00";
         } else {
-            int tstTime = hhMmToSeconds(formattedTimeZonedTst.substring(11, 16));
-            int startTime = hhMmToSeconds(data.getPayload().getStart());
-
-            if (startTime <= tstTime) {
-                startTime += 86400;
-            }
+            //Seconds of the timestamp are ignored
+            final int tstTime = (int) Math.floorMod(localTst, SECONDS_PER_DAY) / 60 * 60;
 
-            return formatTime(startTime);
+            return formatTimeCached(startTime <= tstTime ? startTime + SECONDS_PER_DAY : startTime);
         }
     }
 
     public static int hhMmToSeconds(String hhMm) {
+        if (hhMm.length() >= 5 && isDigit(hhMm.charAt(0)) && isDigit(hhMm.charAt(1)) && isDigit(hhMm.charAt(3)) && isDigit(hhMm.charAt(4))) {
+            return twoDigits(hhMm, 0) * 60 * 60 + twoDigits(hhMm, 3) * 60;
+        }
+
         return Integer.parseInt(hhMm.substring(0, 2)) * 60 * 60 + Integer.parseInt(hhMm.substring(3, 5)) * 60;
     }
 
@@ -52,4 +68,92 @@ public class TimeUtils {
 
         return String.join(":", hours, minutes, "00");
     }
+
+    private static String formatTimeCached(int time) {
+        if (time < 0 || time % 60 != 0 || time / 60 >= FORMATTED_TIMES.length) {
+            return formatTime(time);
+        }
+
+        //Concurrent initialization is harmless, the same value is computed by all threads
+        String formattedTime = FORMATTED_TIMES[time / 60];
+        if (formattedTime == null) {
+            formattedTime = formatTime(time);
+            FORMATTED_TIMES[time / 60] = formattedTime;
+        }
+        return formattedTime;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int twoDigits(String string, int index) {
+        return (string.charAt(index) - '0') * 10 + (string.charAt(index + 1) - '0');
+    }
+
+    //i.e. HH:mm with valid minutes, for which appending seconds produces the same string as formatting the time
+    private static boolean isCanonicalHhMm(String hhMm) {
+        return hhMm.length() == 5 && hhMm.charAt(2) == ':' &&
+                isDigit(hhMm.charAt(0)) && isDigit(hhMm.charAt(1)) &&
+                isDigit(hhMm.charAt(3)) && isDigit(hhMm.charAt(4)) && hhMm.charAt(3) <= '5';
+    }
+
+    private static int getOffsetSeconds(long epochSecond) {
+        OffsetPeriod period = offsetPeriod;
+        if (epochSecond < period.fromEpochSecond || epochSecond >= period.untilEpochSecond) {
+            period = OffsetPeriod.of(epochSecond);
+            offsetPeriod = period;
+        }
+        return period.offsetSeconds;
+    }
+
+    private static OperatingDay getOperatingDay(String oday) {
+        OperatingDay operatingDay = OPERATING_DAYS.get(oday);
+        if (operatingDay == null) {
+            final LocalDate date = LocalDate.parse(oday);
+            operatingDay = new OperatingDay(date.toEpochDay(), date.atStartOfDay(TZ).toEpochSecond());
+
+            if (OPERATING_DAYS.size() >= MAX_CACHED_OPERATING_DAYS) {
+                OPERATING_DAYS.clear();
+            }
+            OPERATING_DAYS.put(oday, operatingDay);
+        }
+        return operatingDay;
+    }
+
+    private static class OperatingDay {
+        final long epochDay;
+        final long startOfDayEpochSecond;
+
+        OperatingDay(long epochDay, long startOfDayEpochSecond) {
+            this.epochDay = epochDay;
+            this.startOfDayEpochSecond = startOfDayEpochSecond;
+        }
+    }
+
+    //Period between two offset transitions of the time zone
+    private static class OffsetPeriod {
+        final long fromEpochSecond;
+        final long untilEpochSecond;
+        final int offsetSeconds;
+
+        OffsetPeriod(long fromEpochSecond, long untilEpochSecond, int offsetSeconds) {
+            this.fromEpochSecond = fromEpochSecond;
+            this.untilEpochSecond = untilEpochSecond;
+            this.offsetSeconds = offsetSeconds;
+        }
+
+        static OffsetPeriod of(long epochSecond) {
+            final ZoneRules rules = TZ.getRules();
+
+            //Transition at or before the given time and transition after it
+            final ZoneOffsetTransition previous = rules.previousTransition(Instant.ofEpochSecond(epochSecond + 1));
+            final ZoneOffsetTransition next = rules.nextTransition(Instant.ofEpochSecond(epochSecond));
+
+            return new OffsetPeriod(
+                    previous != null ? previous.toEpochSecond() : Long.MIN_VALUE,
+                    next != null ? next.toEpochSecond() : Long.MAX_VALUE,
+                    rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds());
+        }
+    }
 }
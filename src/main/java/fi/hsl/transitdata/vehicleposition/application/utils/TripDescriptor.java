@@ -0,0 +1,48 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import java.util.Objects;
+
+/**
+ * Identifies a trip by route, operating day, start time and direction as they are in HFP and APC messages
+ */
+public class TripDescriptor {
+    public final String routeId;
+    public final String operatingDay;
+    public final String startTime;
+    public final String directionId;
+
+    public TripDescriptor(String routeId, String operatingDay, String startTime, String directionId) {
+        this.routeId = routeId;
+        this.operatingDay = operatingDay;
+        this.startTime = startTime;
+        this.directionId = directionId;
+    }
+
+    /**
+     * Checks whether this trip is the given trip without creating a new descriptor
+     */
+    public boolean matches(String routeId, String operatingDay, String startTime, String directionId) {
+        return Objects.equals(this.routeId, routeId) &&
+                Objects.equals(this.operatingDay, operatingDay) &&
+                Objects.equals(this.startTime, startTime) &&
+                Objects.equals(this.directionId, directionId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TripDescriptor that = (TripDescriptor) o;
+        return matches(that.routeId, that.operatingDay, that.startTime, that.directionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(routeId, operatingDay, startTime, directionId);
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" / ", routeId, operatingDay, startTime, directionId);
+    }
+}
@@ -0,0 +1,69 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
+
+import java.time.Duration;
+
+/**
+ * Keeps track of which vehicle is registered for each trip. Only one vehicle can be registered for a single trip.
+ * Implementations are thread-safe so that a single registry can be shared by handlers processing different vehicles.
+ */
+public interface TripRegistry {
+    //Remove trip registrations older than this (i.e. after this time another vehicle could take the same trip)
+    Duration MAX_AGE = Duration.ofHours(3);
+
+    /**
+     * Registers the vehicle for a trip. Only one vehicle can be registered for a single trip.
+     * @param vehicleId
+     * @param routeId
+     * @param operatingDay
+     * @param startTime
+     * @param directionId
+     * @return true if the vehicle was registered for the trip. false if some other vehicle was already registered.
+     */
+    default boolean registerVehicleForTrip(String vehicleId, String routeId, String operatingDay, String startTime, String directionId) {
+        return registerVehicleForTrip(vehicleId, new TripDescriptor(routeId, operatingDay, startTime, directionId));
+    }
+
+    /**
+     * Registers the vehicle for a trip. Only one vehicle can be registered for a single trip.
+     * @param vehicleId
+     * @param trip
+     * @return true if the vehicle was registered for the trip. false if some other vehicle was already registered.
+     */
+    boolean registerVehicleForTrip(String vehicleId, TripDescriptor trip);
+
+    /**
+     * Registers the vehicle for a trip and stores the trip and the result in the vehicle state. Only one vehicle can be
+     * registered for a single trip.
+     *
+     * The registration that decided the result can only change when it expires, so until then the result stored in the
+     * vehicle state is returned for the same trip without creating a new descriptor or accessing the shared registry.
+     * @param vehicleState State of the vehicle
+     * @param vehicleId
+     * @param routeId
+     * @param operatingDay
+     * @param startTime
+     * @param directionId
+     * @return true if the vehicle was registered for the trip. false if some other vehicle was already registered.
+     */
+    boolean registerVehicleForTrip(VehicleState vehicleState, String vehicleId, String routeId, String operatingDay, String startTime, String directionId);
+
+    /**
+     * Restores a registration from a snapshot. Existing registration of the trip is kept.
+     * @param vehicleId
+     * @param trip
+     * @param expiresAfter Remaining time until the registration expires
+     */
+    void restoreRegistration(String vehicleId, TripDescriptor trip, Duration expiresAfter);
+
+    /**
+     * Calls the visitor for each registration that has not expired
+     * @param visitor
+     */
+    void forEachRegistration(RegistrationVisitor visitor);
+
+    interface RegistrationVisitor {
+        void visit(String vehicleId, TripDescriptor trip, Duration expiresAfter);
+    }
+}
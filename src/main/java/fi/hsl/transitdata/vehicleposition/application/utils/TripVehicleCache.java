@@ -2,61 +2,94 @@ package fi.hsl.transitdata.vehicleposition.application.utils;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy;
 import com.github.benmanes.caffeine.cache.Scheduler;
+import com.github.benmanes.caffeine.cache.Ticker;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 
 import java.time.Duration;
-import java.util.Objects;
+import java.util.Optional;
 
-public class TripVehicleCache {
-    //Remove trip registrations older than this (i.e. after this time another vehicle could take the same trip)
-    private static final Duration MAX_AGE = Duration.ofHours(3);
+/**
+ * Trip registrations in a Caffeine cache, each registration expires separately {@link #MAX_AGE} after it was created
+ */
+public class TripVehicleCache implements TripRegistry {
+    private final Ticker ticker;
+    private final Cache<TripDescriptor, String> tripRegistrationCache;
+    private final Policy.VarExpiration<TripDescriptor, String> expiration;
 
-    private final Cache<TripDescriptor, String> tripRegistrationCache = Caffeine.newBuilder()
-            .expireAfterWrite(MAX_AGE)
-            .scheduler(Scheduler.systemScheduler())
-            .build();
+    public TripVehicleCache() {
+        this(Ticker.systemTicker());
+    }
 
     /**
-     * Registers the vehicle for a trip. Only one vehicle can be registered for a single trip.
-     * @param vehicleId
-     * @param routeId
-     * @param operatingDay
-     * @param startTime
-     * @param directionId
-     * @return true if the vehicle was registered for the trip. false if some other vehicle was already registered.
+     * @param ticker Time source used for expiring registrations
      */
-    public boolean registerVehicleForTrip(String vehicleId, String routeId, String operatingDay, String startTime, String directionId) {
-        String registeredVehicleId = tripRegistrationCache.asMap().putIfAbsent(new TripDescriptor(routeId, operatingDay, startTime, directionId), vehicleId);
+    public TripVehicleCache(Ticker ticker) {
+        this.ticker = ticker;
+        this.tripRegistrationCache = Caffeine.newBuilder()
+            .ticker(ticker)
+            //Registrations expire MAX_AGE after they were created, variable expiration allows restoring registrations with their remaining time
+            .expireAfter(new Expiry<TripDescriptor, String>() {
+                @Override
+                public long expireAfterCreate(TripDescriptor trip, String vehicleId, long currentTime) {
+                    return MAX_AGE.toNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(TripDescriptor trip, String vehicleId, long currentTime, long currentDuration) {
+                    return MAX_AGE.toNanos();
+                }
+
+                @Override
+                public long expireAfterRead(TripDescriptor trip, String vehicleId, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .scheduler(Scheduler.systemScheduler())
+            .build();
+        this.expiration = tripRegistrationCache.policy().expireVariably().orElseThrow();
+    }
+
+    @Override
+    public boolean registerVehicleForTrip(String vehicleId, TripDescriptor trip) {
+        String registeredVehicleId = tripRegistrationCache.asMap().putIfAbsent(trip, vehicleId);
         return registeredVehicleId == null || vehicleId.equals(registeredVehicleId);
     }
 
-    private static class TripDescriptor {
-        public final String routeId;
-        public final String operatingDay;
-        public final String startTime;
-        public final String directionId;
-
-        public TripDescriptor(String routeId, String operatingDay, String startTime, String directionId) {
-            this.routeId = routeId;
-            this.operatingDay = operatingDay;
-            this.startTime = startTime;
-            this.directionId = directionId;
-        }
+    @Override
+    public boolean registerVehicleForTrip(VehicleState vehicleState, String vehicleId, String routeId, String operatingDay, String startTime, String directionId) {
+        final long now = ticker.read();
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            TripDescriptor that = (TripDescriptor) o;
-            return Objects.equals(routeId, that.routeId) &&
-                    Objects.equals(operatingDay, that.operatingDay) &&
-                    Objects.equals(startTime, that.startTime) &&
-                    Objects.equals(directionId, that.directionId);
+        final TripDescriptor previousTrip = vehicleState.getTrip();
+        if (previousTrip != null && vehicleState.isTripRegistrationValid(now) && previousTrip.matches(routeId, operatingDay, startTime, directionId)) {
+            return vehicleState.isRegisteredForTrip();
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(routeId, operatingDay, startTime, directionId);
-        }
+        final TripDescriptor trip = new TripDescriptor(routeId, operatingDay, startTime, directionId);
+        final String registeredVehicleId = tripRegistrationCache.asMap().putIfAbsent(trip, vehicleId);
+        final String owner = registeredVehicleId != null ? registeredVehicleId : vehicleId;
+        final boolean registered = vehicleId.equals(owner);
+
+        //Expiration time is not read atomically with the registration, so the result is only stored if the registration
+        //is still owned by the same vehicle after reading it. If the registration has expired or was replaced in between,
+        //the result is not stored and the cache is checked again for the next message
+        final Optional<Duration> expiresAfter = expiration.getExpiresAfter(trip);
+        final boolean unchanged = owner.equals(tripRegistrationCache.getIfPresent(trip));
+        vehicleState.setTrip(trip, registered, now + (unchanged ? expiresAfter.map(Duration::toNanos).orElse(0L) : 0L));
+
+        return registered;
+    }
+
+    @Override
+    public void restoreRegistration(String vehicleId, TripDescriptor trip, Duration expiresAfter) {
+        expiration.putIfAbsent(trip, vehicleId, expiresAfter);
+    }
+
+    @Override
+    public void forEachRegistration(RegistrationVisitor visitor) {
+        tripRegistrationCache.asMap().forEach((trip, vehicleId) ->
+                expiration.getExpiresAfter(trip).ifPresent(expiresAfter -> visitor.visit(vehicleId, trip, expiresAfter)));
     }
 }
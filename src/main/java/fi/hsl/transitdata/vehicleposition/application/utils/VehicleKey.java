@@ -0,0 +1,96 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.common.passengercount.proto.PassengerCount;
+
+import java.io.IOException;
+
+/**
+ * Identifies a vehicle by operator ID and vehicle number packed into a single long
+ */
+public class VehicleKey {
+    //Returned when the vehicle could not be read from the data
+    public static final long UNKNOWN = Long.MIN_VALUE;
+
+    private static final int HFP_TOPIC_TAG = tag(Hfp.Data.TOPIC_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int HFP_OPERATOR_ID_TAG = tag(Hfp.Topic.OPERATOR_ID_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int HFP_VEHICLE_NUMBER_TAG = tag(Hfp.Topic.VEHICLE_NUMBER_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+
+    private static final int PASSENGER_COUNT_PAYLOAD_TAG = tag(PassengerCount.Data.PAYLOAD_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int PASSENGER_COUNT_OPER_TAG = tag(PassengerCount.Payload.OPER_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int PASSENGER_COUNT_VEH_TAG = tag(PassengerCount.Payload.VEH_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+
+    private VehicleKey() {}
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    public static long of(int operatorId, int vehicleNumber) {
+        return ((long) operatorId << 32) | (vehicleNumber & 0xffffffffL);
+    }
+
+    public static int getOperatorId(long vehicleKey) {
+        return (int) (vehicleKey >>> 32);
+    }
+
+    public static int getVehicleNumber(long vehicleKey) {
+        return (int) vehicleKey;
+    }
+
+    /**
+     * Reads operator ID and vehicle number from the topic of serialized {@link Hfp.Data} without parsing the whole message
+     * @return Vehicle key or {@link #UNKNOWN} if the data could not be decoded
+     */
+    public static long fromHfpData(byte[] hfpData) {
+        return read(hfpData, HFP_TOPIC_TAG, HFP_OPERATOR_ID_TAG, HFP_VEHICLE_NUMBER_TAG);
+    }
+
+    /**
+     * Reads operator ID and vehicle number from the payload of serialized {@link PassengerCount.Data} without parsing the whole message
+     * @return Vehicle key or {@link #UNKNOWN} if the data could not be decoded
+     */
+    public static long fromPassengerCountData(byte[] passengerCountData) {
+        return read(passengerCountData, PASSENGER_COUNT_PAYLOAD_TAG, PASSENGER_COUNT_OPER_TAG, PASSENGER_COUNT_VEH_TAG);
+    }
+
+    private static long read(byte[] data, int messageTag, int operatorIdTag, int vehicleNumberTag) {
+        int operatorId = 0;
+        int vehicleNumber = 0;
+
+        try {
+            final CodedInputStream input = CodedInputStream.newInstance(data);
+
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag != messageTag) {
+                    if (!input.skipField(tag)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                final int oldLimit = input.pushLimit(input.readRawVarint32());
+
+                int messageFieldTag;
+                while ((messageFieldTag = input.readTag()) != 0) {
+                    if (messageFieldTag == operatorIdTag) {
+                        operatorId = input.readInt32();
+                    } else if (messageFieldTag == vehicleNumberTag) {
+                        vehicleNumber = input.readInt32();
+                    } else if (!input.skipField(messageFieldTag)) {
+                        break;
+                    }
+                }
+
+                input.popLimit(oldLimit);
+            }
+        } catch (IOException e) {
+            return UNKNOWN;
+        }
+
+        return of(operatorId, vehicleNumber);
+    }
+}
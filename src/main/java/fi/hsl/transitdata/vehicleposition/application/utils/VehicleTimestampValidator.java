@@ -1,41 +1,58 @@
 package fi.hsl.transitdata.vehicleposition.application.utils;
 
 import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class VehicleTimestampValidator {
     private static final Logger log = LoggerFactory.getLogger(VehicleTimestampValidator.class);
 
-    //Cache for storing latest timestamp received from the vehicle
-    //This is used to only publish the vehicle position with latest timestamp
-    private Map<String, Long> vehicleTimestamps = new HashMap<>(1000);
-
     private final long maxTimeDifferenceSeconds;
 
+    public enum Result {
+        VALID,
+        //Timestamp is too much in the future
+        FUTURE_TIMESTAMP,
+        //Timestamp is older than the latest timestamp received from the vehicle
+        OLDER_TIMESTAMP
+    }
+
     public VehicleTimestampValidator(long maxTimeDifference) {
         this.maxTimeDifferenceSeconds = maxTimeDifference;
     }
 
-    public boolean validateTimestamp(Hfp.Data hfpData, long pulsarEventTimeMs) {
+    /**
+     * Validates the timestamp of the message and updates the latest timestamp of the vehicle
+     * @param vehicleState State of the vehicle that sent the message
+     * @param hfpData
+     * @param pulsarEventTimeMs
+     * @return true if the timestamp is valid and the latest timestamp received from the vehicle
+     */
+    public boolean validateTimestamp(VehicleState vehicleState, Hfp.Data hfpData, long pulsarEventTimeMs) {
+        return checkTimestamp(vehicleState, hfpData, pulsarEventTimeMs) == Result.VALID;
+    }
+
+    /**
+     * Same as {@link #validateTimestamp(VehicleState, Hfp.Data, long)}, but returns the reason why the timestamp was not valid
+     * @param vehicleState State of the vehicle that sent the message
+     * @param hfpData
+     * @param pulsarEventTimeMs
+     * @return Result of the validation
+     */
+    public Result checkTimestamp(VehicleState vehicleState, Hfp.Data hfpData, long pulsarEventTimeMs) {
         long timeDifferenceSeconds = hfpData.getPayload().getTsi() - pulsarEventTimeMs / 1000;
 
         if (timeDifferenceSeconds <= maxTimeDifferenceSeconds) {
             //Only publish vehicle position with latest timestamp
-            return vehicleTimestamps.compute(hfpData.getTopic().getUniqueVehicleId(), (key, value) -> {
-                if (value == null || value < hfpData.getPayload().getTsi()) {
-                    return hfpData.getPayload().getTsi();
-                } else {
-                    return value;
-                }
-            }) == hfpData.getPayload().getTsi();
+            if (vehicleState.getLatestTimestamp() < hfpData.getPayload().getTsi()) {
+                vehicleState.setLatestTimestamp(hfpData.getPayload().getTsi());
+            }
+            return vehicleState.getLatestTimestamp() == hfpData.getPayload().getTsi() ? Result.VALID : Result.OLDER_TIMESTAMP;
         } else {
             //Discard vehicle positions if timestamp is too much in the future
             log.warn("Vehicle {} had timestamp {} seconds in future (vehicle: {}, current time: {})", hfpData.getTopic().getUniqueVehicleId(), timeDifferenceSeconds, hfpData.getPayload().getTsi(), pulsarEventTimeMs / 1000);
-            return false;
+            return Result.FUTURE_TIMESTAMP;
         }
     }
 }
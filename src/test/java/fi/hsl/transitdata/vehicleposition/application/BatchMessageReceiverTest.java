@@ -0,0 +1,46 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class BatchMessageReceiverTest {
+    @Test
+    public void testBatchEndsWhenNoMoreMessagesAreReceived() throws PulsarClientException {
+        final Message<byte[]> message1 = mock(Message.class);
+        final Message<byte[]> message2 = mock(Message.class);
+
+        final Consumer<byte[]> consumer = mock(Consumer.class);
+        when(consumer.receive()).thenReturn(message1);
+        when(consumer.receive(anyInt(), any(TimeUnit.class))).thenReturn(message2, (Message<byte[]>) null);
+
+        final List<Message<byte[]>> batch = new BatchMessageReceiver(consumer, mock(VehiclePositionHandler.class), 10, Duration.ofSeconds(10)).receiveBatch();
+
+        assertEquals(2, batch.size());
+        assertSame(message1, batch.get(0));
+        assertSame(message2, batch.get(1));
+    }
+
+    @Test
+    public void testBatchIsLimitedToMaxMessages() throws PulsarClientException {
+        final Consumer<byte[]> consumer = mock(Consumer.class);
+        when(consumer.receive()).thenReturn(mock(Message.class));
+        when(consumer.receive(anyInt(), any(TimeUnit.class))).thenReturn(mock(Message.class));
+
+        final List<Message<byte[]>> batch = new BatchMessageReceiver(consumer, mock(VehiclePositionHandler.class), 3, Duration.ofSeconds(10)).receiveBatch();
+
+        assertEquals(3, batch.size());
+        verify(consumer, times(2)).receive(anyInt(), any(TimeUnit.class));
+    }
+}
@@ -0,0 +1,352 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.common.transitdata.TransitdataProperties;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates HFP and APC messages resembling the HSL fleet at rush hour. Every vehicle sends a VP message each second
+ * of simulated time, vehicles of transport modes that produce stop events send DUE, ARS, DOO, DOC and PDE or PAS
+ * when passing stops, and vehicles change to a new trip after some stops. A small share of vehicles is on a trip
+ * that another vehicle has already taken, and a small share of messages has an older or a future timestamp.
+ * Vehicles with passenger counters send APC messages every now and then.
+ *
+ * The output depends only on the parameters, so the same seed and start time always produce the same messages.
+ * Not thread-safe.
+ */
+class FleetSimulator {
+    private static final ZoneId TZ = ZoneId.of("Europe/Helsinki");
+    private static final DateTimeFormatter HH_MM = DateTimeFormatter.ofPattern("HH:mm");
+    private static final int[] OPERATORS = { 6, 12, 17, 18, 22, 30, 40, 47, 130 };
+
+    //Share of vehicles by transport mode, remaining modes share what is left
+    private static final Hfp.Topic.TransportMode[] MODES = { Hfp.Topic.TransportMode.bus, Hfp.Topic.TransportMode.tram, Hfp.Topic.TransportMode.train, Hfp.Topic.TransportMode.metro, Hfp.Topic.TransportMode.ferry, Hfp.Topic.TransportMode.ubus };
+    private static final double[] MODE_SHARES = { 0.70, 0.12, 0.06, 0.05, 0.02, 0.03 };
+    //Same as in StopStatusProcessor
+    private static final List<Hfp.Topic.TransportMode> MODES_WITHOUT_EVENTS = Arrays.asList(Hfp.Topic.TransportMode.metro, Hfp.Topic.TransportMode.ferry, Hfp.Topic.TransportMode.ubus, Hfp.Topic.TransportMode.robot);
+
+    private static final double DEADRUN_SHARE = 0.05;
+    private static final double UPCOMING_SHARE = 0.03;
+    private static final double DUPLICATE_TRIP_SHARE = 0.01;
+    private static final double PASSENGER_COUNTER_SHARE = 0.3;
+
+    private static final double OLDER_TIMESTAMP_PROBABILITY = 0.005;
+    private static final double FUTURE_TIMESTAMP_PROBABILITY = 0.001;
+    //Per second for vehicles with passenger counters
+    private static final double PASSENGER_COUNT_PROBABILITY = 0.05;
+
+    //Delays from the vehicle to the MQTT bridge and from the bridge to the processor
+    private static final long BRIDGE_DELAY_MS = 200;
+    private static final long RECEIVE_DELAY_MS = 100;
+
+    private final Random random;
+    private final List<SimulatedVehicle> fleet;
+
+    private long currentTimeSeconds;
+
+    /**
+     * @param vehicleCount Amount of vehicles
+     * @param seed Seed for random values
+     * @param startTime Time of the first messages, with second precision
+     */
+    FleetSimulator(int vehicleCount, long seed, Instant startTime) {
+        random = new Random(seed);
+        currentTimeSeconds = startTime.getEpochSecond();
+
+        fleet = new ArrayList<>(vehicleCount);
+        for (int i = 0; i < vehicleCount; i++) {
+            final SimulatedVehicle vehicle = new SimulatedVehicle(i);
+            if (i > 0 && random.nextDouble() < DUPLICATE_TRIP_SHARE) {
+                vehicle.copyTrip(fleet.get(i - 1));
+            }
+            fleet.add(vehicle);
+        }
+    }
+
+    interface MessageSink {
+        void accept(TransitdataProperties.ProtobufSchema protobufSchema, byte[] data, long eventTimeMs);
+    }
+
+    static class SimulatedMessage {
+        final TransitdataProperties.ProtobufSchema protobufSchema;
+        final byte[] data;
+        final long eventTimeMs;
+
+        private SimulatedMessage(TransitdataProperties.ProtobufSchema protobufSchema, byte[] data, long eventTimeMs) {
+            this.protobufSchema = protobufSchema;
+            this.data = data;
+            this.eventTimeMs = eventTimeMs;
+        }
+    }
+
+    /**
+     * Generates messages for one second of simulated time
+     * @param sink
+     */
+    void step(MessageSink sink) {
+        for (SimulatedVehicle vehicle : fleet) {
+            vehicle.step(sink);
+        }
+        currentTimeSeconds++;
+    }
+
+    /**
+     * Generates at least the given amount of messages, ending at a full second of simulated time
+     * @param count
+     * @return Generated messages in the order they were generated
+     */
+    List<SimulatedMessage> generate(int count) {
+        final List<SimulatedMessage> messages = new ArrayList<>(count);
+        while (messages.size() < count) {
+            step((protobufSchema, data, eventTimeMs) -> messages.add(new SimulatedMessage(protobufSchema, data, eventTimeMs)));
+        }
+        return messages;
+    }
+
+    /**
+     * Generates messages to the sink at the given rate until the duration has passed. Simulated time advances as
+     * fast as needed for the rate, i.e. faster than real time if the rate is higher than the size of the fleet.
+     * @param sink
+     * @param duration
+     * @param messagesPerSecond
+     * @return Amount of generated messages
+     */
+    long emit(MessageSink sink, Duration duration, double messagesPerSecond) {
+        final long nanosPerMessage = (long) (1_000_000_000 / messagesPerSecond);
+        final long startTime = System.nanoTime();
+        final long endTime = startTime + duration.toNanos();
+
+        final long[] count = { 0 };
+        while (System.nanoTime() < endTime) {
+            step((protobufSchema, data, eventTimeMs) -> {
+                final long delay = startTime + count[0] * nanosPerMessage - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                sink.accept(protobufSchema, data, eventTimeMs);
+                count[0]++;
+            });
+        }
+        return count[0];
+    }
+
+    /**
+     * @return Time of the next generated messages
+     */
+    Instant getCurrentTime() {
+        return Instant.ofEpochSecond(currentTimeSeconds);
+    }
+
+    int getVehicleCount() {
+        return fleet.size();
+    }
+
+    private Hfp.Topic.TransportMode randomTransportMode() {
+        double mode = random.nextDouble();
+        for (int i = 0; i < MODES.length; i++) {
+            if (mode < MODE_SHARES[i]) {
+                return MODES[i];
+            }
+            mode -= MODE_SHARES[i];
+        }
+
+        //Rest of the transport modes, e.g. robot buses
+        final List<Hfp.Topic.TransportMode> others = new ArrayList<>(Arrays.asList(Hfp.Topic.TransportMode.values()));
+        others.removeAll(Arrays.asList(MODES));
+        return others.get(random.nextInt(others.size()));
+    }
+
+    private class SimulatedVehicle {
+        private final int oper;
+        private final int veh;
+        private final Hfp.Topic.TransportMode transportMode;
+        private final Hfp.Topic.JourneyType journeyType;
+        private final Hfp.Topic.TemporalType temporalType;
+        private final boolean hasPassengerCounter;
+
+        private String route;
+        private int dir;
+        private String start;
+        private LocalDate oday;
+        private int stopsLeft;
+
+        private double lat;
+        private double lon;
+        private int odo;
+        private int stop;
+        private int secondsToStop;
+
+        private SimulatedVehicle(int index) {
+            oper = OPERATORS[index % OPERATORS.length];
+            veh = 100 + index;
+            transportMode = randomTransportMode();
+
+            final double journey = random.nextDouble();
+            journeyType = journey < DEADRUN_SHARE ? Hfp.Topic.JourneyType.deadrun : Hfp.Topic.JourneyType.journey;
+            temporalType = journey > 1 - UPCOMING_SHARE ? Hfp.Topic.TemporalType.upcoming : Hfp.Topic.TemporalType.ongoing;
+            hasPassengerCounter = random.nextDouble() < PASSENGER_COUNTER_SHARE;
+
+            startTrip(currentTimeSeconds - random.nextInt(3600));
+
+            lat = 60.1 + random.nextDouble() * 0.2;
+            lon = 24.8 + random.nextDouble() * 0.4;
+            stop = 1_000_000 + random.nextInt(1_000_000);
+            secondsToStop = random.nextInt(60);
+        }
+
+        private void startTrip(long startTimeSeconds) {
+            route = String.valueOf(1000 + random.nextInt(9000));
+            dir = 1 + random.nextInt(2);
+
+            final Instant startTime = Instant.ofEpochSecond(startTimeSeconds);
+            start = HH_MM.format(startTime.atZone(TZ));
+            oday = startTime.atZone(TZ).toLocalDate();
+            stopsLeft = 20 + random.nextInt(20);
+        }
+
+        private void copyTrip(SimulatedVehicle other) {
+            route = other.route;
+            dir = other.dir;
+            start = other.start;
+            oday = other.oday;
+        }
+
+        private boolean hasEvents() {
+            return !MODES_WITHOUT_EVENTS.contains(transportMode);
+        }
+
+        private void step(MessageSink sink) {
+            final long tsi = currentTimeSeconds;
+
+            secondsToStop--;
+            lat += 0.0001;
+            lon += 0.0001;
+            odo += 10;
+
+            final boolean atStop = secondsToStop <= 0 && secondsToStop > -10;
+
+            //Clock of the vehicle can be wrong, but the message is still received at the correct time
+            final double timestampError = random.nextDouble();
+            final long vehicleTsi;
+            if (timestampError < OLDER_TIMESTAMP_PROBABILITY) {
+                vehicleTsi = tsi - 1 - random.nextInt(5);
+            } else if (timestampError < OLDER_TIMESTAMP_PROBABILITY + FUTURE_TIMESTAMP_PROBABILITY) {
+                vehicleTsi = tsi + 60 + random.nextInt(600);
+            } else {
+                vehicleTsi = tsi;
+            }
+            sink.accept(TransitdataProperties.ProtobufSchema.HfpData, hfpData(Hfp.Topic.EventType.VP, vehicleTsi, tsi, atStop), eventTime(tsi));
+
+            if (hasEvents()) {
+                if (secondsToStop == 10) {
+                    sink.accept(TransitdataProperties.ProtobufSchema.HfpData, hfpData(Hfp.Topic.EventType.DUE, tsi, tsi, false), eventTime(tsi));
+                } else if (secondsToStop == 0) {
+                    sink.accept(TransitdataProperties.ProtobufSchema.HfpData, hfpData(Hfp.Topic.EventType.ARS, tsi, tsi, true), eventTime(tsi));
+                    sink.accept(TransitdataProperties.ProtobufSchema.HfpData, hfpData(Hfp.Topic.EventType.DOO, tsi, tsi, true), eventTime(tsi));
+                } else if (secondsToStop == -8) {
+                    sink.accept(TransitdataProperties.ProtobufSchema.HfpData, hfpData(Hfp.Topic.EventType.DOC, tsi, tsi, true), eventTime(tsi));
+                }
+            }
+
+            if (secondsToStop == -10) {
+                if (hasEvents()) {
+                    sink.accept(TransitdataProperties.ProtobufSchema.HfpData, hfpData(random.nextInt(4) == 0 ? Hfp.Topic.EventType.PAS : Hfp.Topic.EventType.PDE, tsi, tsi, true), eventTime(tsi));
+                }
+                stop++;
+                secondsToStop = 30 + random.nextInt(60);
+
+                if (--stopsLeft == 0) {
+                    startTrip(tsi);
+                }
+            }
+
+            if (hasPassengerCounter && random.nextDouble() < PASSENGER_COUNT_PROBABILITY) {
+                sink.accept(TransitdataProperties.ProtobufSchema.PassengerCount, passengerCountData(tsi), eventTime(tsi));
+            }
+        }
+
+        private long eventTime(long tsi) {
+            return tsi * 1000 + BRIDGE_DELAY_MS + RECEIVE_DELAY_MS;
+        }
+
+        private byte[] hfpData(Hfp.Topic.EventType eventType, long vehicleTsi, long tsi, boolean atStop) {
+            final Hfp.Topic topic = Hfp.Topic.newBuilder()
+                    .setSchemaVersion(1)
+                    .setReceivedAt(tsi * 1000 + BRIDGE_DELAY_MS)
+                    .setTopicPrefix("/hfp/")
+                    .setTopicVersion("v2")
+                    .setJourneyType(journeyType)
+                    .setTemporalType(temporalType)
+                    .setEventType(eventType)
+                    .setTransportMode(transportMode)
+                    .setOperatorId(oper)
+                    .setVehicleNumber(veh)
+                    .setUniqueVehicleId(oper + "/" + veh)
+                    .setRouteId(route)
+                    .setDirectionId(dir)
+                    .setStartTime(start)
+                    .setNextStop(String.valueOf(stop))
+                    .build();
+
+            final Hfp.Payload.Builder payload = Hfp.Payload.newBuilder()
+                    .setSchemaVersion(1)
+                    .setTst(Instant.ofEpochSecond(vehicleTsi).toString())
+                    .setTsi(vehicleTsi)
+                    .setOper(oper)
+                    .setVeh(veh)
+                    .setDir(String.valueOf(dir))
+                    .setRoute(route)
+                    .setOday(oday.toString())
+                    .setStart(start)
+                    .setLat(lat)
+                    .setLong(lon)
+                    .setSpd(atStop ? 0.0 : 8.5)
+                    .setHdg(90)
+                    .setOdo(odo)
+                    .setDl(random.nextInt(120))
+                    .setOccu(0);
+            if (atStop) {
+                payload.setStop(stop);
+            }
+
+            return Hfp.Data.newBuilder()
+                    .setSchemaVersion(1)
+                    .setTopic(topic)
+                    .setPayload(payload)
+                    .build()
+                    .toByteArray();
+        }
+
+        private byte[] passengerCountData(long tsi) {
+            final int vehicleLoad = random.nextInt(80);
+
+            return PassengerCount.Data.newBuilder()
+                    .setSchemaVersion(1)
+                    .setPayload(PassengerCount.Payload.newBuilder()
+                            .setOper(oper)
+                            .setVeh(veh)
+                            .setRoute(route)
+                            .setDir(String.valueOf(dir))
+                            .setOday(oday.toString())
+                            .setStart(start)
+                            .setTsi(tsi)
+                            .setVehicleCounts(PassengerCount.VehicleCounts.newBuilder()
+                                    .setCountQuality("regular")
+                                    .setVehicleLoad(vehicleLoad)
+                                    .setVehicleLoadRatio(vehicleLoad / 80.0)))
+                    .build()
+                    .toByteArray();
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.typesafe.config.Config;
+import fi.hsl.common.pulsar.IMessageHandler;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * In-process stand-in for {@link PulsarApplicationContext} that does not need a broker. Input messages are queued
+ * in a consumer that tracks acknowledgements, and sent messages are recorded by a producer that completes sends
+ * asynchronously after a configurable latency.
+ *
+ * Consumer, producer and messages are Mockito mocks delegating to the in-memory implementations below, so only
+ * the methods used by the processor are supported. Mocks are stub-only, so they do not record invocations and
+ * can be used for long-running tests.
+ */
+class InMemoryPulsarContext implements AutoCloseable {
+    private final AtomicLong messageIdSequence = new AtomicLong();
+
+    private final InMemoryConsumer consumer = new InMemoryConsumer();
+    private final RecordingProducer producer;
+
+    private final PulsarApplicationContext context;
+
+    /**
+     * @param config
+     * @param sendLatency Time after which sends are acknowledged by the "broker"
+     * @param retainSentMessages Whether sent messages are kept in memory, otherwise they are only counted
+     */
+    InMemoryPulsarContext(Config config, Duration sendLatency, boolean retainSentMessages) {
+        producer = new RecordingProducer(sendLatency, retainSentMessages);
+
+        context = mock(PulsarApplicationContext.class);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getConsumer()).thenReturn(mock(Consumer.class, withSettings().stubOnly().defaultAnswer(delegatesTo(consumer))));
+        when(context.getSingleProducer()).thenReturn(mock(Producer.class, withSettings().stubOnly().defaultAnswer(delegatesTo(producer))));
+    }
+
+    PulsarApplicationContext getContext() {
+        return context;
+    }
+
+    InMemoryConsumer getConsumer() {
+        return consumer;
+    }
+
+    RecordingProducer getProducer() {
+        return producer;
+    }
+
+    /**
+     * Adds a message to the input queue
+     * @param protobufSchema
+     * @param data
+     * @param eventTimeMs
+     */
+    void enqueue(TransitdataProperties.ProtobufSchema protobufSchema, byte[] data, long eventTimeMs) {
+        final InMemoryMessage message = new InMemoryMessage(new InMemoryMessageId(messageIdSequence.incrementAndGet()), protobufSchema.toString(), data, eventTimeMs);
+        consumer.queue.add(mock(Message.class, withSettings().stubOnly().defaultAnswer(delegatesTo(message))));
+    }
+
+    /**
+     * Passes all queued messages to the handler, like {@link fi.hsl.common.pulsar.PulsarApplication} does
+     * @param handler
+     * @return Amount of messages handled
+     */
+    int deliverQueued(IMessageHandler handler) throws Exception {
+        int delivered = 0;
+        Message<byte[]> message;
+        while ((message = consumer.receive(0, TimeUnit.MILLISECONDS)) != null) {
+            handler.handleMessage(message);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    /**
+     * Waits until all received messages have been acknowledged
+     * @param timeout
+     * @return true if all messages were acknowledged before the timeout
+     */
+    boolean awaitAcknowledged(Duration timeout) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        while (consumer.getUnacknowledgedCount() > 0 || !consumer.queue.isEmpty()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        producer.executor.shutdownNow();
+    }
+
+    /**
+     * Consumer with an in-memory queue. Received messages are unacknowledged until acknowledged,
+     * negatively acknowledged messages are redelivered immediately.
+     */
+    static class InMemoryConsumer {
+        private final BlockingQueue<Message<byte[]>> queue = new LinkedBlockingQueue<>();
+        private final Map<MessageId, Message<byte[]>> unacknowledged = new ConcurrentHashMap<>();
+
+        private final LongAdder received = new LongAdder();
+        private final LongAdder acknowledged = new LongAdder();
+        private final LongAdder negativelyAcknowledged = new LongAdder();
+        //Acknowledgements of messages that were not waiting for acknowledgement, e.g. acknowledged twice
+        private final LongAdder unexpectedAcknowledgements = new LongAdder();
+
+        public Message<byte[]> receive() throws PulsarClientException {
+            try {
+                return onReceived(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PulsarClientException(e);
+            }
+        }
+
+        public Message<byte[]> receive(int timeout, TimeUnit unit) throws PulsarClientException {
+            try {
+                return onReceived(queue.poll(timeout, unit));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PulsarClientException(e);
+            }
+        }
+
+        private Message<byte[]> onReceived(Message<byte[]> message) {
+            if (message != null) {
+                received.increment();
+                unacknowledged.put(message.getMessageId(), message);
+            }
+            return message;
+        }
+
+        public void acknowledge(MessageId messageId) {
+            if (unacknowledged.remove(messageId) != null) {
+                acknowledged.increment();
+            } else {
+                unexpectedAcknowledgements.increment();
+            }
+        }
+
+        public CompletableFuture<Void> acknowledgeAsync(MessageId messageId) {
+            acknowledge(messageId);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        public CompletableFuture<Void> acknowledgeAsync(List<MessageId> messageIds) {
+            messageIds.forEach(this::acknowledge);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        public void negativeAcknowledge(MessageId messageId) {
+            final Message<byte[]> message = unacknowledged.remove(messageId);
+            if (message != null) {
+                negativelyAcknowledged.increment();
+                queue.add(message);
+            } else {
+                unexpectedAcknowledgements.increment();
+            }
+        }
+
+        long getReceivedCount() {
+            return received.sum();
+        }
+
+        long getAcknowledgedCount() {
+            return acknowledged.sum();
+        }
+
+        long getNegativelyAcknowledgedCount() {
+            return negativelyAcknowledged.sum();
+        }
+
+        long getUnexpectedAcknowledgementCount() {
+            return unexpectedAcknowledgements.sum();
+        }
+
+        int getUnacknowledgedCount() {
+            return unacknowledged.size();
+        }
+    }
+
+    /**
+     * Producer that records sent messages. Sends are completed on a separate thread after the send latency,
+     * like acknowledgements from the broker.
+     */
+    static class RecordingProducer {
+        private final long sendLatencyNanos;
+        private final boolean retainSentMessages;
+
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "in-memory-broker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicLong messageIdSequence = new AtomicLong();
+
+        //Messages are built on the thread that sends them, so one builder per thread is enough
+        private final ThreadLocal<RecordingMessageBuilder> messageBuilder = ThreadLocal.withInitial(() -> {
+            final RecordingMessageBuilder builder = new RecordingMessageBuilder(this);
+            builder.self = mock(TypedMessageBuilder.class, withSettings().stubOnly().defaultAnswer(delegatesTo(builder)));
+            return builder;
+        });
+
+        private final ConcurrentLinkedQueue<SentMessage> sentMessages = new ConcurrentLinkedQueue<>();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+
+        private RecordingProducer(Duration sendLatency, boolean retainSentMessages) {
+            this.sendLatencyNanos = sendLatency.toNanos();
+            this.retainSentMessages = retainSentMessages;
+        }
+
+        public TypedMessageBuilder<byte[]> newMessage() {
+            final RecordingMessageBuilder builder = messageBuilder.get();
+            //Builder is reset here instead of after sending so that a failed send does not leave stale values behind
+            builder.reset();
+            return builder.self;
+        }
+
+        private CompletableFuture<MessageId> send(SentMessage message) {
+            sent.increment();
+            if (retainSentMessages) {
+                sentMessages.add(message);
+            }
+
+            final CompletableFuture<MessageId> future = new CompletableFuture<>();
+            final Runnable complete = () -> {
+                completed.increment();
+                future.complete(message.messageId);
+            };
+            if (sendLatencyNanos > 0) {
+                executor.schedule(complete, sendLatencyNanos, TimeUnit.NANOSECONDS);
+            } else {
+                executor.execute(complete);
+            }
+            return future;
+        }
+
+        /**
+         * @return Sent messages in the order they were sent. Empty if sent messages are not retained.
+         */
+        List<SentMessage> getSentMessages() {
+            return new ArrayList<>(sentMessages);
+        }
+
+        long getSentCount() {
+            return sent.sum();
+        }
+
+        /**
+         * @return Amount of sends that have been acknowledged by the "broker"
+         */
+        long getCompletedCount() {
+            return completed.sum();
+        }
+    }
+
+    static class SentMessage {
+        final MessageId messageId;
+        final String key;
+        final byte[] value;
+        final long eventTimeMs;
+        final Map<String, String> properties;
+
+        private SentMessage(MessageId messageId, String key, byte[] value, long eventTimeMs, Map<String, String> properties) {
+            this.messageId = messageId;
+            this.key = key;
+            this.value = value;
+            this.eventTimeMs = eventTimeMs;
+            this.properties = properties;
+        }
+    }
+
+    private static class RecordingMessageBuilder {
+        private final RecordingProducer producer;
+        private TypedMessageBuilder<byte[]> self;
+
+        private String key;
+        private byte[] value;
+        private long eventTimeMs;
+        private Map<String, String> properties = new HashMap<>();
+
+        private RecordingMessageBuilder(RecordingProducer producer) {
+            this.producer = producer;
+        }
+
+        private void reset() {
+            key = null;
+            value = null;
+            eventTimeMs = 0;
+            properties = new HashMap<>();
+        }
+
+        public TypedMessageBuilder<byte[]> key(String key) {
+            this.key = key;
+            return self;
+        }
+
+        public TypedMessageBuilder<byte[]> value(byte[] value) {
+            this.value = value;
+            return self;
+        }
+
+        public TypedMessageBuilder<byte[]> eventTime(long timestamp) {
+            this.eventTimeMs = timestamp;
+            return self;
+        }
+
+        public TypedMessageBuilder<byte[]> property(String name, String value) {
+            properties.put(name, value);
+            return self;
+        }
+
+        public CompletableFuture<MessageId> sendAsync() {
+            return producer.send(new SentMessage(new InMemoryMessageId(producer.messageIdSequence.incrementAndGet()), key, value, eventTimeMs, Collections.unmodifiableMap(properties)));
+        }
+    }
+
+    private static class InMemoryMessage {
+        private final MessageId messageId;
+        private final Map<String, String> properties;
+        private final byte[] data;
+        private final long eventTimeMs;
+
+        private InMemoryMessage(MessageId messageId, String protobufSchema, byte[] data, long eventTimeMs) {
+            this.messageId = messageId;
+            this.properties = Collections.singletonMap(TransitdataProperties.KEY_PROTOBUF_SCHEMA, protobufSchema);
+            this.data = data;
+            this.eventTimeMs = eventTimeMs;
+        }
+
+        public MessageId getMessageId() {
+            return messageId;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public byte[] getValue() {
+            return data;
+        }
+
+        public long getEventTime() {
+            return eventTimeMs;
+        }
+
+        public String getProperty(String name) {
+            return properties.get(name);
+        }
+
+        public boolean hasProperty(String name) {
+            return properties.containsKey(name);
+        }
+
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+    }
+
+    private static class InMemoryMessageId implements MessageId {
+        private final long sequence;
+
+        private InMemoryMessageId(long sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public byte[] toByteArray() {
+            return ByteBuffer.allocate(Long.BYTES).putLong(sequence).array();
+        }
+
+        @Override
+        public int compareTo(MessageId other) {
+            return Long.compare(sequence, ((InMemoryMessageId) other).sequence);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof InMemoryMessageId && ((InMemoryMessageId) other).sequence == sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(sequence);
+        }
+
+        @Override
+        public String toString() {
+            return "InMemoryMessageId(" + sequence + ")";
+        }
+    }
+}
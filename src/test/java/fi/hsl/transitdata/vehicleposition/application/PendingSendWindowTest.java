@@ -0,0 +1,96 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PendingSendWindowTest {
+    private ProcessingMetrics metrics;
+
+    @Before
+    public void setup() {
+        metrics = new ProcessingMetrics();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TypedMessageBuilder<byte[]> mockMessage(CompletableFuture<MessageId> sendResult) {
+        final TypedMessageBuilder<byte[]> message = mock(TypedMessageBuilder.class);
+        when(message.sendAsync()).thenReturn(sendResult);
+        return message;
+    }
+
+    @Test
+    public void testPermitIsReleasedWhenSendCompletes() {
+        final PendingSendWindow window = new PendingSendWindow(2, metrics);
+
+        final CompletableFuture<MessageId> sendResult = new CompletableFuture<>();
+        final CompletableFuture<MessageId> sent = window.send(mockMessage(sendResult));
+
+        assertEquals(1, window.getAvailablePermits());
+        assertEquals(1, metrics.getPendingSends());
+
+        sendResult.complete(MessageId.latest);
+
+        assertTrue(sent.isDone());
+        assertEquals(2, window.getAvailablePermits());
+        assertEquals(0, metrics.getPendingSends());
+    }
+
+    @Test
+    public void testPermitIsReleasedWhenSendFails() {
+        final PendingSendWindow window = new PendingSendWindow(1, metrics);
+
+        final CompletableFuture<MessageId> sent = window.send(mockMessage(CompletableFuture.failedFuture(new RuntimeException())));
+
+        assertTrue(sent.isCompletedExceptionally());
+        assertEquals(1, window.getAvailablePermits());
+
+        final TypedMessageBuilder<byte[]> throwing = mockMessage(null);
+        when(throwing.sendAsync()).thenThrow(new IllegalStateException());
+
+        assertTrue(window.send(throwing).isCompletedExceptionally());
+        assertEquals(1, window.getAvailablePermits());
+        assertEquals(0, metrics.getPendingSends());
+    }
+
+    @Test
+    public void testSendBlocksWhenWindowIsFull() throws Exception {
+        final PendingSendWindow window = new PendingSendWindow(1, metrics);
+
+        final CompletableFuture<MessageId> firstResult = new CompletableFuture<>();
+        window.send(mockMessage(firstResult));
+
+        final TypedMessageBuilder<byte[]> second = mockMessage(CompletableFuture.completedFuture(MessageId.latest));
+        final CompletableFuture<CompletableFuture<MessageId>> secondSent = CompletableFuture.supplyAsync(() -> window.send(second));
+
+        Thread.sleep(100);
+        assertFalse(secondSent.isDone());
+
+        firstResult.complete(MessageId.latest);
+
+        assertTrue(secondSent.get(5, TimeUnit.SECONDS).isDone());
+        assertEquals(1, window.getAvailablePermits());
+    }
+
+    @Test
+    public void testUnlimitedWindowNeverBlocks() {
+        final PendingSendWindow window = new PendingSendWindow(0, metrics);
+
+        final TypedMessageBuilder<byte[]> message = mockMessage(new CompletableFuture<>());
+        for (int i = 0; i < 1000; i++) {
+            window.send(message);
+        }
+
+        assertEquals(1000, metrics.getPendingSends());
+        assertEquals(Integer.MAX_VALUE, window.getAvailablePermits());
+    }
+}
@@ -0,0 +1,146 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripDescriptor;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class ProcessorStateSnapshotterTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final TripDescriptor TRIP = new TripDescriptor("1001", "2023-01-01", "12:00", "1");
+
+    private MutableClock clock;
+    private Path file;
+
+    @Before
+    public void setup() {
+        clock = new MutableClock();
+        file = temporaryFolder.getRoot().toPath().resolve("state.bin");
+    }
+
+    private ProcessorStateSnapshotter createSnapshotter(TripVehicleCache tripVehicleCache) {
+        return new ProcessorStateSnapshotter(file, Duration.ofSeconds(30), Duration.ofMinutes(10), tripVehicleCache, clock);
+    }
+
+    private void writeSnapshot() {
+        final TripVehicleCache tripVehicleCache = new TripVehicleCache();
+        tripVehicleCache.registerVehicleForTrip("1/1", TRIP);
+
+        final VehicleStateStore vehicleStates = new VehicleStateStore(Duration.ZERO, 0, clock);
+        final VehicleState registered = vehicleStates.getOrCreate(1, 1);
+        registered.setLatestTimestamp(1672574400);
+        registered.setStopStatus(new StopStatusProcessor.StopStatus("1020453", GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT));
+        registered.setTrip(TRIP, true);
+
+        final VehicleState notRegistered = vehicleStates.getOrCreate(1, 2);
+        notRegistered.setLatestTimestamp(1672574401);
+        notRegistered.setTrip(TRIP, false);
+
+        //Has no stop status or trip
+        vehicleStates.getOrCreate(2, 1);
+
+        final ProcessorStateSnapshotter snapshotter = createSnapshotter(tripVehicleCache);
+        snapshotter.newSlot(vehicleKey -> true).capture(vehicleStates.getAll());
+        snapshotter.writeSnapshot();
+    }
+
+    @Test
+    public void testStateIsRestored() {
+        writeSnapshot();
+        clock.advance(Duration.ofSeconds(10));
+
+        final TripVehicleCache tripVehicleCache = new TripVehicleCache();
+        final ProcessorStateSnapshotter snapshotter = createSnapshotter(tripVehicleCache);
+        assertTrue(snapshotter.restore());
+
+        final VehicleStateStore vehicleStates = new VehicleStateStore(Duration.ZERO, 0, clock);
+        assertEquals(3, snapshotter.newSlot(vehicleKey -> true).restore(vehicleStates));
+
+        //Trip is still owned by the same vehicle
+        assertFalse(tripVehicleCache.registerVehicleForTrip("1/2", TRIP));
+        assertTrue(tripVehicleCache.registerVehicleForTrip("1/1", TRIP));
+
+        final VehicleState registered = vehicleStates.get(1, 1);
+        assertEquals(1672574400, registered.getLatestTimestamp());
+        assertEquals("1020453", registered.getStopStatus().stopId);
+        assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT, registered.getStopStatus().stopStatus);
+        assertEquals(TRIP, registered.getTrip());
+        assertTrue(registered.isRegisteredForTrip());
+
+        final VehicleState notRegistered = vehicleStates.get(1, 2);
+        assertEquals(1672574401, notRegistered.getLatestTimestamp());
+        assertNull(notRegistered.getStopStatus());
+        assertFalse(notRegistered.isRegisteredForTrip());
+
+        final VehicleState empty = vehicleStates.get(2, 1);
+        assertNull(empty.getStopStatus());
+        assertNull(empty.getTrip());
+        assertEquals(VehicleState.NO_TIMESTAMP, empty.getLatestTimestamp());
+    }
+
+    @Test
+    public void testReleasedVehicleStatesAreNotRestored() {
+        writeSnapshot();
+
+        final ProcessorStateSnapshotter snapshotter = createSnapshotter(new TripVehicleCache());
+        assertTrue(snapshotter.restore());
+        assertEquals(3, snapshotter.newSlot(vehicleKey -> true).restore(new VehicleStateStore(Duration.ZERO, 0, clock)));
+
+        snapshotter.releaseRestoredVehicleStates();
+        assertEquals(0, snapshotter.newSlot(vehicleKey -> true).restore(new VehicleStateStore(Duration.ZERO, 0, clock)));
+    }
+
+    @Test
+    public void testOldStateIsNotRestored() {
+        writeSnapshot();
+        clock.advance(Duration.ofHours(4));
+
+        final TripVehicleCache tripVehicleCache = new TripVehicleCache();
+        final ProcessorStateSnapshotter snapshotter = createSnapshotter(tripVehicleCache);
+        assertTrue(snapshotter.restore());
+
+        assertEquals(0, snapshotter.newSlot(vehicleKey -> true).restore(new VehicleStateStore(Duration.ZERO, 0, clock)));
+        //Trip registration has expired
+        assertTrue(tripVehicleCache.registerVehicleForTrip("1/2", TRIP));
+    }
+
+    @Test
+    public void testSlotRestoresOnlyFilteredVehicles() {
+        writeSnapshot();
+
+        final ProcessorStateSnapshotter snapshotter = createSnapshotter(new TripVehicleCache());
+        snapshotter.restore();
+
+        final VehicleStateStore vehicleStates = new VehicleStateStore(Duration.ZERO, 0, clock);
+        assertEquals(1, snapshotter.newSlot(vehicleKey -> (vehicleKey >>> 32) == 2).restore(vehicleStates));
+        assertNotNull(vehicleStates.get(2, 1));
+        assertNull(vehicleStates.get(1, 1));
+    }
+
+    @Test
+    public void testInvalidSnapshotIsIgnored() throws IOException {
+        Files.write(file, new byte[] { 1, 2, 3 });
+
+        final ProcessorStateSnapshotter snapshotter = createSnapshotter(new TripVehicleCache());
+
+        assertFalse(snapshotter.restore());
+        assertEquals(0, snapshotter.newSlot(vehicleKey -> true).restore(new VehicleStateStore()));
+    }
+
+    @Test
+    public void testMissingSnapshotIsIgnored() {
+        assertFalse(createSnapshotter(new TripVehicleCache()).restore());
+    }
+}
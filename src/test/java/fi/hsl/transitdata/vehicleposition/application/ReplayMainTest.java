@@ -0,0 +1,166 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.typesafe.config.Config;
+import fi.hsl.common.hfp.HfpParser;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ReplayMainTest {
+    //Replayed messages are old, the clock of the handler must follow their event times for them to be accepted
+    private static final Instant START_TIME = Instant.parse("2022-10-27T11:30:00Z");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testVehiclePositionsAreWrittenToOutputFile() throws Exception {
+        final Path input = temporaryFolder.newFile("input.bin").toPath();
+        final Path output = temporaryFolder.newFile("output.bin").toPath();
+
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(input))) {
+            for (int i = 0; i < 3; i++) {
+                final Instant time = START_TIME.plusSeconds(i);
+                ReplayFile.writeInput(out, new ReplayFile.InputRecord(TransitdataProperties.ProtobufSchema.HfpData.toString(), time.toEpochMilli(), createHfpMessage(7915 + i, time)));
+            }
+            //Messages with other schemas are skipped
+            ReplayFile.writeInput(out, new ReplayFile.InputRecord(TransitdataProperties.ProtobufSchema.GTFS_TripUpdate.toString(), START_TIME.toEpochMilli(), new byte[0]));
+        }
+
+        final ReplayMain.ReplayResult result = ReplayMain.replay(createConfig(), input, output);
+
+        assertEquals(4, result.messagesIn);
+        assertEquals(3, result.messagesOut);
+
+        final List<ReplayFile.OutputRecord> records = readOutput(output);
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            final ReplayFile.OutputRecord record = records.get(i);
+            final GtfsRealtime.FeedMessage feedMessage = GtfsRealtime.FeedMessage.parseFrom(record.feedMessage);
+
+            assertEquals(feedMessage.getEntity(0).getVehicle().getVehicle().getId(), record.key);
+            assertEquals(START_TIME.plusSeconds(i).getEpochSecond(), feedMessage.getEntity(0).getVehicle().getTimestamp());
+            assertEquals(VehiclePositionHandler.getTopicSuffix(feedMessage.getEntity(0).getVehicle()), record.topicSuffix);
+        }
+    }
+
+    @Test
+    public void testReplayIsRepeatable() throws Exception {
+        final Path input = temporaryFolder.newFile("input.bin").toPath();
+        final Path output1 = temporaryFolder.newFile("output1.bin").toPath();
+        final Path output2 = temporaryFolder.newFile("output2.bin").toPath();
+
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(input))) {
+            for (int i = 0; i < 10; i++) {
+                final Instant time = START_TIME.plusSeconds(i);
+                ReplayFile.writeInput(out, new ReplayFile.InputRecord(TransitdataProperties.ProtobufSchema.HfpData.toString(), time.toEpochMilli(), createHfpMessage(7915 + i % 2, time)));
+            }
+        }
+
+        ReplayMain.replay(createConfig(), input, output1);
+        ReplayMain.replay(createConfig(), input, output2);
+
+        assertArrayEquals(Files.readAllBytes(output1), Files.readAllBytes(output2));
+    }
+
+    @Test
+    public void testTripRegistrationsExpireByReplayClock() throws Exception {
+        final Path input = temporaryFolder.newFile("input.bin").toPath();
+        final Path output = temporaryFolder.newFile("output.bin").toPath();
+
+        final Instant expiredTime = START_TIME.plus(TripRegistry.MAX_AGE).plusSeconds(1);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(input))) {
+            ReplayFile.writeInput(out, new ReplayFile.InputRecord(TransitdataProperties.ProtobufSchema.HfpData.toString(), START_TIME.toEpochMilli(), createHfpMessage(7915, START_TIME)));
+            //Trip is already taken by the first vehicle
+            ReplayFile.writeInput(out, new ReplayFile.InputRecord(TransitdataProperties.ProtobufSchema.HfpData.toString(), START_TIME.plusSeconds(1).toEpochMilli(), createHfpMessage(7916, START_TIME.plusSeconds(1))));
+            //Registration of the first vehicle has expired by the time of the message
+            ReplayFile.writeInput(out, new ReplayFile.InputRecord(TransitdataProperties.ProtobufSchema.HfpData.toString(), expiredTime.toEpochMilli(), createHfpMessage(7916, expiredTime)));
+        }
+
+        final Config config = createConfig();
+        when(config.getString("processor.vehicleposition.addedTripEnabledModes")).thenReturn("ubus");
+
+        final ReplayMain.ReplayResult result = ReplayMain.replay(config, input, output);
+
+        assertEquals(2, result.messagesOut);
+        final List<ReplayFile.OutputRecord> records = readOutput(output);
+        assertEquals("130/7916", records.get(1).key);
+    }
+
+    private static List<ReplayFile.OutputRecord> readOutput(Path output) throws Exception {
+        final List<ReplayFile.OutputRecord> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(output))) {
+            ReplayFile.OutputRecord record;
+            while ((record = ReplayFile.readOutput(in)) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static Config createConfig() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getDuration("processor.vehicleposition.maxTimeDifference", TimeUnit.SECONDS)).thenReturn(120L);
+        when(mockConfig.getString("processor.vehicleposition.addedTripEnabledModes")).thenReturn("ubus,bus");
+        when(mockConfig.getString("processor.vehicleposition.occuLevels")).thenReturn("");
+        when(mockConfig.getString("processor.vehicleposition.occuLevelsVehicleLoadRatio")).thenReturn("");
+        when(mockConfig.getString("processor.vehicleposition.passengerCountEnabledVehicles")).thenReturn("");
+        return mockConfig;
+    }
+
+    private static byte[] createHfpMessage(int veh, Instant time) throws Exception {
+        final DateTimeFormatter hfpDateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+        final Hfp.Topic hfpTopic = HfpParser.parseTopic("/hfp/v2/journey/ongoing/vp/bus/0130/0" + veh + "/7280/1/Veikkola/14:30/null/2/60;24/20/59/31", time.toEpochMilli());
+        final byte[] hfpPayloadBytes = ("{\n" +
+                "  \"VP\":{\n" +
+                "    \"desi\":\"280\",\n" +
+                "    \"dir\":\"1\",\n" +
+                "    \"oper\":130,\n" +
+                "    \"veh\":" + veh + ",\n" +
+                "    \"tst\":\"" + time.atOffset(ZoneOffset.UTC).format(hfpDateTimeFormatter) + "\",\n" +
+                "    \"tsi\":" + time.getEpochSecond() + ",\n" +
+                "    \"spd\":22.42071533203125,\n" +
+                "    \"hdg\":234,\n" +
+                "    \"lat\":60.25323486328125,\n" +
+                "    \"long\":24.091751098632812,\n" +
+                "    \"acc\":0.0,\n" +
+                "    \"dl\":null,\n" +
+                "    \"odo\":64314.378643035896,\n" +
+                "    \"drst\":null,\n" +
+                "    \"oday\":\"2022-10-27\",\n" +
+                "    \"jrn\":null,\n" +
+                "    \"line\":null,\n" +
+                "    \"start\":\"14:30\",\n" +
+                "    \"loc\":\"GPS\",\n" +
+                "    \"stop\":null,\n" +
+                "    \"route\":\"7280\",\n" +
+                "    \"occu\":0\n" +
+                "  }\n" +
+                "}").getBytes(StandardCharsets.UTF_8);
+        final Hfp.Payload hfpPayload = HfpParser.parsePayload(HfpParser.newInstance().parseJson(hfpPayloadBytes));
+
+        return Hfp.Data.newBuilder().setTopic(hfpTopic).setPayload(hfpPayload).setSchemaVersion(1).build().toByteArray();
+    }
+}
@@ -0,0 +1,144 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.typesafe.config.Config;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ShardedMessageHandlerTest {
+    private static Message<byte[]> mockMessage(TransitdataProperties.ProtobufSchema schema, byte[] data) {
+        final Message<byte[]> message = mock(Message.class);
+        when(message.getData()).thenReturn(data);
+        when(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA)).thenReturn(schema.toString());
+        when(message.getMessageId()).thenReturn(mock(MessageId.class));
+        return message;
+    }
+
+    private static Message<byte[]> mockHfpMessage(int operatorId, int vehicleNumber) {
+        return mockMessage(TransitdataProperties.ProtobufSchema.HfpData, Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setTopic(Hfp.Topic.newBuilder()
+                        .setSchemaVersion(1)
+                        .setReceivedAt(0)
+                        .setTopicPrefix("hfp")
+                        .setTopicVersion("v2")
+                        .setJourneyType(Hfp.Topic.JourneyType.deadrun)
+                        .setTemporalType(Hfp.Topic.TemporalType.ongoing)
+                        .setEventType(Hfp.Topic.EventType.VP)
+                        .setOperatorId(operatorId)
+                        .setVehicleNumber(vehicleNumber)
+                        .setUniqueVehicleId(operatorId + "/" + vehicleNumber))
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTst("")
+                        .setTsi(0))
+                .build()
+                .toByteArray());
+    }
+
+    private static Message<byte[]> mockPassengerCountMessage(int operatorId, int vehicleNumber) {
+        return mockMessage(TransitdataProperties.ProtobufSchema.PassengerCount, PassengerCount.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setPayload(PassengerCount.Payload.newBuilder()
+                        .setOper(operatorId)
+                        .setVeh(vehicleNumber)
+                        .setVehicleCounts(PassengerCount.VehicleCounts.newBuilder()
+                                .setCountQuality("")
+                                .setVehicleLoad(10)
+                                .setVehicleLoadRatio(0.1)))
+                .build()
+                .toByteArray());
+    }
+
+    @Test
+    public void testMessagesFromSameVehicleAreProcessedBySameWorker() {
+        for (int vehicleNumber = 1; vehicleNumber < 100; vehicleNumber++) {
+            assertEquals(ShardedMessageHandler.getWorkerIndex(mockHfpMessage(22, vehicleNumber), 4),
+                    ShardedMessageHandler.getWorkerIndex(mockPassengerCountMessage(22, vehicleNumber), 4));
+        }
+    }
+
+    private static PulsarApplicationContext mockContext(Consumer<byte[]> consumer) {
+        final Config config = mock(Config.class);
+        when(config.getDuration("processor.vehicleposition.maxTimeDifference", TimeUnit.SECONDS)).thenReturn(120L);
+        when(config.getString("processor.vehicleposition.addedTripEnabledModes")).thenReturn("ubus,bus");
+        when(config.getString("processor.vehicleposition.passengerCountEnabledVehicles")).thenReturn("");
+
+        final PulsarApplicationContext context = mock(PulsarApplicationContext.class);
+        when(context.getConsumer()).thenReturn(consumer);
+        when(context.getSingleProducer()).thenReturn(mock(Producer.class));
+        when(context.getConfig()).thenReturn(config);
+        return context;
+    }
+
+    private static long countWorkerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.isAlive() && thread.getName().startsWith("vehicle-position-worker-"))
+                .count();
+    }
+
+    @Test
+    public void testAllMessagesAreAcknowledged() {
+        final Consumer<byte[]> consumer = mock(Consumer.class);
+        when(consumer.acknowledgeAsync(any(MessageId.class))).thenReturn(CompletableFuture.completedFuture(null));
+
+        try (ShardedMessageHandler handler = new ShardedMessageHandler(mockContext(consumer), 4, 10, null, new ProcessingMetrics(), new TripVehicleCache(), null)) {
+            for (int vehicleNumber = 1; vehicleNumber <= 50; vehicleNumber++) {
+                handler.handleMessage(mockHfpMessage(22, vehicleNumber));
+                handler.handleMessage(mockPassengerCountMessage(22, vehicleNumber));
+            }
+
+            verify(consumer, timeout(5000).times(100)).acknowledgeAsync(any(MessageId.class));
+        }
+    }
+
+    @Test
+    public void testQueuedMessagesAreHandledAndWorkersStoppedWhenClosed() {
+        final Consumer<byte[]> consumer = mock(Consumer.class);
+        when(consumer.acknowledgeAsync(any(MessageId.class))).thenReturn(CompletableFuture.completedFuture(null));
+
+        final long threadsBefore = countWorkerThreads();
+
+        final ShardedMessageHandler handler = new ShardedMessageHandler(mockContext(consumer), 4, 100, null, new ProcessingMetrics(), new TripVehicleCache(), null);
+        assertEquals(threadsBefore + 4, countWorkerThreads());
+
+        for (int vehicleNumber = 1; vehicleNumber <= 50; vehicleNumber++) {
+            handler.handleMessage(mockHfpMessage(22, vehicleNumber));
+        }
+        handler.close();
+
+        verify(consumer, times(50)).acknowledgeAsync(any(MessageId.class));
+        assertEquals(threadsBefore, countWorkerThreads());
+    }
+
+    @Test
+    public void testMessageIsNegativelyAcknowledgedWhenInterruptedWhileQueueing() {
+        final Consumer<byte[]> consumer = mock(Consumer.class);
+
+        try (ShardedMessageHandler handler = new ShardedMessageHandler(mockContext(consumer), 4, 10, null, new ProcessingMetrics(), new TripVehicleCache(), null)) {
+            final Message<byte[]> message = mockHfpMessage(22, 1);
+
+            Thread.currentThread().interrupt();
+            handler.handleMessage(message);
+            assertTrue(Thread.interrupted());
+
+            verify(consumer).negativeAcknowledge(message.getMessageId());
+        }
+    }
+}
@@ -5,8 +5,9 @@ import fi.hsl.common.hfp.proto.Hfp;
 import fi.hsl.transitdata.vehicleposition.application.StopStatusProcessor;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import java.util.Random;
+
+import static org.junit.Assert.*;
 
 public class StopStatusProcessorTest {
     private Hfp.Data generateHfpData(Hfp.Topic.EventType eventType, String nextStop, String payloadStop) {
@@ -44,55 +45,129 @@ public class StopStatusProcessorTest {
     @Test
     public void testCalculateStopStatus() {
         StopStatusProcessor calculator = new StopStatusProcessor();
+        VehicleState vehicleState = new VehicleState(1, 1);
 
-        StopStatusProcessor.StopStatus stopStatus1 = calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.VP, "1", null));
+        StopStatusProcessor.StopStatus stopStatus1 = calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.VP, "1", null));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO, stopStatus1.stopStatus);
         assertEquals("1", stopStatus1.stopId);
 
-        StopStatusProcessor.StopStatus stopStatus2 = calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.DUE, "1", "1"));
+        StopStatusProcessor.StopStatus stopStatus2 = calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.DUE, "1", "1"));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.INCOMING_AT, stopStatus2.stopStatus);
         assertEquals("1", stopStatus2.stopId);
 
-        StopStatusProcessor.StopStatus stopStatus3 = calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.VP, "1", "1"));
+        StopStatusProcessor.StopStatus stopStatus3 = calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.VP, "1", "1"));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.INCOMING_AT, stopStatus3.stopStatus);
         assertEquals("1", stopStatus3.stopId);
 
-        StopStatusProcessor.StopStatus stopStatus4 = calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.ARS, "1", "1"));
+        StopStatusProcessor.StopStatus stopStatus4 = calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.ARS, "1", "1"));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT, stopStatus4.stopStatus);
         assertEquals("1", stopStatus4.stopId);
 
-        StopStatusProcessor.StopStatus stopStatus5 = calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.PDE, "2", "1"));
+        StopStatusProcessor.StopStatus stopStatus5 = calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.PDE, "2", "1"));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO, stopStatus5.stopStatus);
         assertEquals("2", stopStatus5.stopId);
 
-        StopStatusProcessor.StopStatus stopStatus6 = calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.VP, "2", null));
+        StopStatusProcessor.StopStatus stopStatus6 = calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.VP, "2", null));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO, stopStatus6.stopStatus);
         assertEquals("2", stopStatus6.stopId);
 
-        StopStatusProcessor.StopStatus stopStatus7 = calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.PAS, "3", "2"));
+        StopStatusProcessor.StopStatus stopStatus7 = calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.PAS, "3", "2"));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO, stopStatus7.stopStatus);
         assertEquals("3", stopStatus7.stopId);
 
-        assertNull(calculator.getStopStatus(generateHfpData(Hfp.Topic.EventType.VP, "EOL", null)));
+        assertNull(calculator.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.VP, "EOL", null)));
     }
 
     @Test
     public void testStopStatusNullIfNextStopIsEmpty() {
         StopStatusProcessor processor = new StopStatusProcessor();
 
-        assertNull(processor.getStopStatus(generateHfpData(Hfp.Topic.EventType.VP, "", null)));
+        assertNull(processor.getStopStatus(new VehicleState(1, 1), generateHfpData(Hfp.Topic.EventType.VP, "", null)));
     }
 
     @Test
     public void testStopStatusWithMetro() {
         StopStatusProcessor processor = new StopStatusProcessor();
+        VehicleState vehicleState = new VehicleState(1, 1);
 
-        StopStatusProcessor.StopStatus stoppedAtStop1 = processor.getStopStatus(generateHfpData(Hfp.Topic.EventType.VP, Hfp.Topic.TransportMode.metro, "1", "1"));
+        StopStatusProcessor.StopStatus stoppedAtStop1 = processor.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.VP, Hfp.Topic.TransportMode.metro, "1", "1"));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT, stoppedAtStop1.stopStatus);
         assertEquals("1", stoppedAtStop1.stopId);
 
-        StopStatusProcessor.StopStatus inTransitToStop2 = processor.getStopStatus(generateHfpData(Hfp.Topic.EventType.VP, Hfp.Topic.TransportMode.metro, "2", null));
+        StopStatusProcessor.StopStatus inTransitToStop2 = processor.getStopStatus(vehicleState, generateHfpData(Hfp.Topic.EventType.VP, Hfp.Topic.TransportMode.metro, "2", null));
         assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO, inTransitToStop2.stopStatus);
         assertEquals("2", inTransitToStop2.stopId);
     }
+
+    @Test
+    public void testStopStatusesAreReused() {
+        StopStatusProcessor processor = new StopStatusProcessor();
+
+        StopStatusProcessor.StopStatus vehicle1 = processor.getStopStatus(new VehicleState(1, 1), generateHfpData(Hfp.Topic.EventType.DUE, "1020453", null));
+        StopStatusProcessor.StopStatus vehicle2 = processor.getStopStatus(new VehicleState(1, 2), generateHfpData(Hfp.Topic.EventType.DUE, "1020453", null));
+        assertSame(vehicle1, vehicle2);
+
+        StopStatusProcessor.StopStatus metro = processor.getStopStatus(new VehicleState(1, 3), generateHfpData(Hfp.Topic.EventType.VP, Hfp.Topic.TransportMode.metro, "1020453", "1020453"));
+        assertEquals(GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT, metro.stopStatus);
+        assertSame(vehicle1.stopId, metro.stopId);
+    }
+
+    @Test
+    public void testIsSameStop() {
+        assertTrue(StopStatusProcessor.isSameStop(1020453, "1020453"));
+        assertTrue(StopStatusProcessor.isSameStop(0, "0"));
+        assertTrue(StopStatusProcessor.isSameStop(-5, "-5"));
+        assertTrue(StopStatusProcessor.isSameStop(Integer.MIN_VALUE, String.valueOf(Integer.MIN_VALUE)));
+        assertTrue(StopStatusProcessor.isSameStop(Integer.MAX_VALUE, String.valueOf(Integer.MAX_VALUE)));
+
+        assertFalse(StopStatusProcessor.isSameStop(1020453, "01020453"));
+        assertFalse(StopStatusProcessor.isSameStop(1020453, "1020454"));
+        assertFalse(StopStatusProcessor.isSameStop(1020453, "020453"));
+        assertFalse(StopStatusProcessor.isSameStop(1020453, "1020453 "));
+        assertFalse(StopStatusProcessor.isSameStop(5, "-5"));
+        assertFalse(StopStatusProcessor.isSameStop(-5, "5"));
+        assertFalse(StopStatusProcessor.isSameStop(0, "00"));
+        assertFalse(StopStatusProcessor.isSameStop(0, ""));
+    }
+
+    @Test
+    public void testStopStatusIsSameAsInLegacyProcessor() {
+        final Hfp.Topic.TransportMode[] transportModes = Hfp.Topic.TransportMode.values();
+        final Hfp.Topic.EventType[] eventTypes = Hfp.Topic.EventType.values();
+        final String[] nextStops = { "1020453", "1020454", "1020455", "01020453", "-5", "0", "EOL", "" };
+        final String[] payloadStops = { null, "1020453", "1020454", "1020455", "-5", "0" };
+
+        final Random random = new Random(42);
+        final StopStatusProcessor processor = new StopStatusProcessor();
+        final LegacyStopStatusProcessor legacyProcessor = new LegacyStopStatusProcessor();
+
+        final VehicleState[] vehicleStates = new VehicleState[20];
+        final VehicleState[] legacyVehicleStates = new VehicleState[vehicleStates.length];
+        for (int i = 0; i < vehicleStates.length; i++) {
+            vehicleStates[i] = new VehicleState(1, i);
+            legacyVehicleStates[i] = new VehicleState(1, i);
+        }
+
+        for (int i = 0; i < 100_000; i++) {
+            final int vehicle = random.nextInt(vehicleStates.length);
+            //Vehicles usually stay on the same stop for a few messages and mostly produce VP events
+            final Hfp.Data data = generateHfpData(
+                    random.nextBoolean() ? Hfp.Topic.EventType.VP : eventTypes[random.nextInt(eventTypes.length)],
+                    random.nextInt(4) == 0 ? transportModes[random.nextInt(transportModes.length)] : Hfp.Topic.TransportMode.bus,
+                    nextStops[random.nextInt(random.nextInt(10) == 0 ? nextStops.length : 2)],
+                    payloadStops[random.nextInt(random.nextInt(10) == 0 ? payloadStops.length : 3)]);
+
+            final StopStatusProcessor.StopStatus expected = legacyProcessor.getStopStatus(legacyVehicleStates[vehicle], data);
+            final StopStatusProcessor.StopStatus actual = processor.getStopStatus(vehicleStates[vehicle], data);
+
+            final String message = "Message " + i + " of vehicle " + vehicle + ": " + data.getTopic().getTransportMode() + " " + data.getTopic().getEventType() + " " + data.getTopic().getNextStop() + " " + data.getPayload().getStop();
+            if (expected == null) {
+                assertNull(message, actual);
+            } else {
+                assertNotNull(message, actual);
+                assertEquals(message, expected.stopId, actual.stopId);
+                assertEquals(message, expected.stopStatus, actual.stopStatus);
+            }
+        }
+    }
 }
@@ -0,0 +1,300 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.hfp.proto.Hfp;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class VehiclePositionCoalescerTest {
+    private MutableClock clock;
+    private List<VehiclePositionMessage> published;
+    private VehiclePositionCoalescer coalescer;
+
+    @Before
+    public void setup() {
+        clock = new MutableClock();
+        published = new ArrayList<>();
+        coalescer = new VehiclePositionCoalescer(Duration.ofSeconds(10), published::add, clock);
+    }
+
+    private static VehiclePositionMessage createMessage(long timestamp, String stopId, GtfsRealtime.VehiclePosition.OccupancyStatus occupancyStatus) {
+        Hfp.Data data = Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTst("")
+                        .setTsi(timestamp)
+                        .setLat(60)
+                        .setLong(25))
+                .build();
+
+        GtfsRealtime.TripDescriptor trip = GtfsRealtime.TripDescriptor.newBuilder()
+                .setRouteId("1001")
+                .setStartDate("20230101")
+                .setStartTime("12:00:00")
+                .setDirectionId(0)
+                .build();
+
+        return new VehiclePositionMessage("1/1", "vehicle_position_1/1", data, trip, new StopStatusProcessor.StopStatus(stopId, GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO), occupancyStatus, System.nanoTime());
+    }
+
+    @Test
+    public void testAllPositionsArePublishedWhenDisabled() {
+        VehiclePositionCoalescer disabled = new VehiclePositionCoalescer(Duration.ZERO, published::add, clock);
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        disabled.offer(vehicleState, createMessage(1, "1", null));
+        disabled.offer(vehicleState, createMessage(2, "1", null));
+
+        assertEquals(2, published.size());
+        assertEquals(2, disabled.getPublishedCount());
+        assertEquals(0, disabled.getCoalescedCount());
+    }
+
+    @Test
+    public void testLatestPositionIsPublishedAfterInterval() {
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        for (int i = 0; i < 9; i++) {
+            coalescer.offer(vehicleState, createMessage(i, "1", null));
+            clock.advance(Duration.ofSeconds(1));
+            coalescer.flush();
+        }
+
+        assertEquals(1, published.size());
+        assertEquals(0, published.get(0).timestamp);
+        assertEquals(1, coalescer.getPendingCount());
+
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.offer(vehicleState, createMessage(10, "1", null));
+
+        assertEquals(2, published.size());
+        assertEquals(10, published.get(1).timestamp);
+        assertEquals(2, coalescer.getPublishedCount());
+        assertEquals(8, coalescer.getCoalescedCount());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testPendingPositionIsPublishedByFlush() {
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        coalescer.offer(vehicleState, createMessage(0, "1", null));
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.offer(vehicleState, createMessage(1, "1", null));
+
+        clock.advance(Duration.ofSeconds(8));
+        coalescer.flush();
+        assertEquals(1, published.size());
+
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.flush();
+        assertEquals(2, published.size());
+        assertEquals(1, published.get(1).timestamp);
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testRepublishedVehicleDoesNotHoldBackOtherVehicles() {
+        VehicleState vehicleState1 = new VehicleState(1, 1);
+        VehicleState vehicleState2 = new VehicleState(1, 2);
+
+        coalescer.offer(vehicleState1, createMessage(0, "1", null));
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.offer(vehicleState1, createMessage(1, "1", null));
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.offer(vehicleState2, createMessage(2, "1", null));
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.offer(vehicleState2, createMessage(3, "1", null));
+
+        //First vehicle is published again when its interval has elapsed and gets a new pending position
+        clock.advance(Duration.ofSeconds(7));
+        coalescer.offer(vehicleState1, createMessage(10, "1", null));
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.offer(vehicleState1, createMessage(11, "1", null));
+        assertEquals(3, published.size());
+
+        clock.advance(Duration.ofSeconds(2));
+        coalescer.flush();
+        assertEquals(4, published.size());
+        assertEquals(3, published.get(3).timestamp);
+        assertEquals(1, coalescer.getPendingCount());
+
+        clock.advance(Duration.ofSeconds(7));
+        coalescer.flush();
+        assertEquals(5, published.size());
+        assertEquals(11, published.get(4).timestamp);
+    }
+
+    @Test
+    public void testScheduledFlushPublishesPendingPositionsWithoutNewPositions() throws InterruptedException {
+        List<VehiclePositionMessage> flushed = new CopyOnWriteArrayList<>();
+        VehiclePositionCoalescer scheduled = new VehiclePositionCoalescer(Duration.ofSeconds(10), flushed::add, clock);
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        scheduled.offer(vehicleState, createMessage(0, "1", null));
+        scheduled.offer(vehicleState, createMessage(1, "1", null));
+
+        //Clock is advanced before the flush thread is started, because the clock is not thread-safe
+        clock.advance(Duration.ofSeconds(10));
+        scheduled.startScheduledFlush(Duration.ofMillis(10));
+        try {
+            final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (flushed.size() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(2, flushed.size());
+            assertEquals(1, flushed.get(1).timestamp);
+        } finally {
+            scheduled.stopScheduledFlush();
+        }
+    }
+
+    @Test
+    public void testBlockedPublisherDoesNotBlockOtherThreads() throws Exception {
+        CountDownLatch publishing = new CountDownLatch(1);
+        CountDownLatch sendWindowFreed = new CountDownLatch(1);
+        List<VehiclePositionMessage> sent = new CopyOnWriteArrayList<>();
+        //Publisher blocks like a full send window
+        VehiclePositionCoalescer blocking = new VehiclePositionCoalescer(Duration.ofSeconds(10), message -> {
+            publishing.countDown();
+            try {
+                sendWindowFreed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(message);
+        }, clock);
+        VehicleState vehicleState1 = new VehicleState(1, 1);
+        VehicleState vehicleState2 = new VehicleState(1, 2);
+
+        Thread publishingThread = new Thread(() -> blocking.offer(vehicleState1, createMessage(0, "1", null)));
+        publishingThread.start();
+        assertTrue(publishing.await(5, TimeUnit.SECONDS));
+
+        //Statistics can be read and positions queued while the publisher is blocked
+        assertEquals(1, (long) CompletableFuture.supplyAsync(blocking::getPublishedCount).get(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> offered = CompletableFuture.runAsync(() -> blocking.offer(vehicleState2, createMessage(1, "1", null)));
+        CompletableFuture.runAsync(() -> {
+            while (blocking.getPublishedCount() < 2) {
+                Thread.onSpinWait();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertFalse(offered.isDone());
+
+        sendWindowFreed.countDown();
+        offered.get(5, TimeUnit.SECONDS);
+        publishingThread.join(5000);
+
+        //Positions are published in the order they were offered
+        assertEquals(2, sent.size());
+        assertEquals(0, sent.get(0).timestamp);
+        assertEquals(1, sent.get(1).timestamp);
+    }
+
+    @Test
+    public void testPendingPositionOfRemovedVehicleIsPublishedBeforeNewerPositions() {
+        VehicleStateStore vehicleStates = new VehicleStateStore(Duration.ZERO, 1, clock, coalescer::remove);
+
+        VehicleState vehicleState = vehicleStates.getOrCreate(1, 1);
+        coalescer.offer(vehicleState, createMessage(0, "1", null));
+        coalescer.offer(vehicleState, createMessage(1, "1", null));
+        assertEquals(1, coalescer.getPendingCount());
+
+        //State of the vehicle is evicted by another vehicle and created again when the vehicle sends a new position
+        vehicleStates.getOrCreate(1, 2);
+        assertEquals(2, published.size());
+        assertEquals(1, published.get(1).timestamp);
+        assertEquals(0, coalescer.getPendingCount());
+
+        coalescer.offer(vehicleStates.getOrCreate(1, 1), createMessage(2, "1", null));
+        clock.advance(Duration.ofSeconds(10));
+        coalescer.flush();
+
+        assertEquals(3, published.size());
+        assertEquals(2, published.get(2).timestamp);
+    }
+
+    @Test
+    public void testFlushAllPublishesPendingPositionsBeforeInterval() {
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        coalescer.offer(vehicleState, createMessage(0, "1", null));
+        clock.advance(Duration.ofSeconds(1));
+        coalescer.offer(vehicleState, createMessage(1, "1", null));
+
+        coalescer.flushAll();
+        assertEquals(2, published.size());
+        assertEquals(1, published.get(1).timestamp);
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testStopChangeIsPublishedImmediately() {
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        coalescer.offer(vehicleState, createMessage(0, "1", null));
+        coalescer.offer(vehicleState, createMessage(1, "1", null));
+        coalescer.offer(vehicleState, createMessage(2, "2", null));
+
+        assertEquals(2, published.size());
+        assertEquals("2", published.get(1).stopStatus.stopId);
+        assertEquals(1, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testOccupancyStatusChangeIsPublishedImmediately() {
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        coalescer.offer(vehicleState, createMessage(0, "1", null));
+        coalescer.offer(vehicleState, createMessage(1, "1", GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY));
+        coalescer.offer(vehicleState, createMessage(2, "1", GtfsRealtime.VehiclePosition.OccupancyStatus.FULL));
+
+        assertEquals(3, published.size());
+    }
+
+    @Test
+    public void testVehiclesAreRateLimitedSeparately() {
+        VehicleState vehicleState1 = new VehicleState(1, 1);
+        VehicleState vehicleState2 = new VehicleState(1, 2);
+
+        coalescer.offer(vehicleState1, createMessage(0, "1", null));
+        coalescer.offer(vehicleState2, createMessage(0, "1", null));
+        coalescer.offer(vehicleState1, createMessage(1, "1", null));
+
+        assertEquals(2, published.size());
+        assertEquals(1, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testReplacedPositionIsPersistedWithPositionReplacingIt() {
+        VehicleState vehicleState = new VehicleState(1, 1);
+
+        VehiclePositionMessage first = createMessage(1, "1", null);
+        VehiclePositionMessage replaced = createMessage(2, "1", null);
+        VehiclePositionMessage latest = createMessage(3, "1", null);
+
+        coalescer.offer(vehicleState, first);
+        coalescer.offer(vehicleState, replaced);
+        coalescer.offer(vehicleState, latest);
+
+        assertFalse(replaced.persisted.isDone());
+
+        latest.persisted.complete(null);
+
+        assertTrue(replaced.persisted.isDone());
+        assertFalse(replaced.persisted.isCompletedExceptionally());
+        assertFalse(first.persisted.isDone());
+    }
+}
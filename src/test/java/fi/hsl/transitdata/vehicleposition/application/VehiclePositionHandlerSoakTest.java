@@ -0,0 +1,98 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import fi.hsl.common.config.ConfigParser;
+import fi.hsl.common.pulsar.IMessageHandler;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the processor under sustained load against {@link InMemoryPulsarContext}. The tests are short by default,
+ * run longer soak tests with a bigger fleet with e.g.
+ * <code>mvn test -Dtest=VehiclePositionHandlerSoakTest -Dsoak.duration=PT5M -Dsoak.vehicles=10000</code>.
+ * Messages can also be sent at a fixed rate with e.g. <code>-Dsoak.rate=5000</code>.
+ */
+public class VehiclePositionHandlerSoakTest {
+    private static final Logger log = LoggerFactory.getLogger(VehiclePositionHandlerSoakTest.class);
+
+    private static final Duration SOAK_DURATION = Duration.parse(System.getProperty("soak.duration", "PT2S"));
+    private static final int VEHICLE_COUNT = Integer.getInteger("soak.vehicles", 2000);
+    //Messages per second, 0 sends messages as fast as they are handled
+    private static final double RATE = Double.parseDouble(System.getProperty("soak.rate", "0"));
+    private static final Duration SEND_LATENCY = Duration.ofMillis(5);
+
+    @Test
+    public void testAllMessagesAreAcknowledgedUnderSustainedLoad() throws Exception {
+        try (InMemoryPulsarContext context = new InMemoryPulsarContext(ConfigParser.createConfig(), SEND_LATENCY, false)) {
+            final VehiclePositionHandler handler = new VehiclePositionHandler(context.getContext());
+            try {
+                runSoak(context, handler);
+            } finally {
+                handler.close();
+            }
+        }
+    }
+
+    @Test
+    public void testAllMessagesAreAcknowledgedUnderSustainedLoadWithWorkerThreads() throws Exception {
+        try (InMemoryPulsarContext context = new InMemoryPulsarContext(ConfigParser.createConfig(), SEND_LATENCY, false)) {
+            try (ShardedMessageHandler handler = new ShardedMessageHandler(context.getContext(), 4, 1000, null, new ProcessingMetrics(), new TripVehicleCache(), null)) {
+                runSoak(context, handler);
+            }
+        }
+    }
+
+    private static void runSoak(InMemoryPulsarContext context, IMessageHandler handler) throws Exception {
+        final Instant startTime = Instant.now();
+        final FleetSimulator simulator = new FleetSimulator(VEHICLE_COUNT, 42, startTime);
+
+        final long startNanos = System.nanoTime();
+        final long deadline = startNanos + SOAK_DURATION.toNanos();
+
+        if (RATE > 0) {
+            simulator.emit((protobufSchema, data, eventTimeMs) -> {
+                context.enqueue(protobufSchema, data, eventTimeMs);
+                try {
+                    context.deliverQueued(handler);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, SOAK_DURATION, RATE);
+        } else {
+            //Each step is one second of simulated time, which can pass faster than real time
+            while (System.nanoTime() < deadline) {
+                simulator.step(context::enqueue);
+                context.deliverQueued(handler);
+            }
+        }
+
+        assertTrue("All messages should be acknowledged", context.awaitAcknowledged(Duration.ofSeconds(30)));
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final Runtime runtime = Runtime.getRuntime();
+        //If simulated time passes slower than real time, the processor could not keep up with the fleet
+        log.info("Handled {} messages from {} vehicles in {} ms ({} messages/s, simulated time {}x real time), produced {} vehicle positions, heap used {} MB",
+                context.getConsumer().getReceivedCount(),
+                VEHICLE_COUNT,
+                Duration.ofNanos(elapsedNanos).toMillis(),
+                String.format("%.0f", context.getConsumer().getReceivedCount() / (elapsedNanos / 1e9)),
+                String.format("%.2f", Duration.between(startTime, simulator.getCurrentTime()).getSeconds() / (elapsedNanos / 1e9)),
+                context.getProducer().getSentCount(),
+                (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+
+        assertTrue(context.getConsumer().getReceivedCount() > 0);
+        assertEquals(context.getConsumer().getReceivedCount(), context.getConsumer().getAcknowledgedCount());
+        assertEquals(0, context.getConsumer().getNegativelyAcknowledgedCount());
+        assertEquals(0, context.getConsumer().getUnexpectedAcknowledgementCount());
+        assertTrue(context.getProducer().getSentCount() > 0);
+        assertEquals(context.getProducer().getSentCount(), context.getProducer().getCompletedCount());
+    }
+}
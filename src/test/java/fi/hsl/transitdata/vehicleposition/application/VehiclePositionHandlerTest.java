@@ -6,6 +6,8 @@ import fi.hsl.common.hfp.HfpParser;
 import fi.hsl.common.hfp.proto.Hfp;
 import fi.hsl.common.pulsar.PulsarApplicationContext;
 import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.transitdata.vehicleposition.application.metrics.ProcessingMetrics;
+import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.MessageId;
@@ -14,13 +16,16 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -47,6 +52,19 @@ public class VehiclePositionHandlerTest {
         assertEquals("2550/20200101/12:00:00/1/STOPPED_AT/2222212", VehiclePositionHandler.getTopicSuffix(vehiclePosition));
     }
 
+    @Test
+    public void testGetTopicSuffixFromTripAndStopStatus() {
+        GtfsRealtime.TripDescriptor trip = GtfsRealtime.TripDescriptor.newBuilder()
+                .setRouteId("2550")
+                .setStartDate("20200101")
+                .setStartTime("12:00:00")
+                .setDirectionId(1)
+                .build();
+
+        assertEquals("2550/20200101/12:00:00/1/STOPPED_AT/2222212", VehiclePositionHandler.getTopicSuffix(trip, new StopStatusProcessor.StopStatus("2222212", GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT)));
+        assertEquals(VehiclePositionHandler.getTopicSuffix(GtfsRealtime.VehiclePosition.newBuilder().setTrip(trip).build()), VehiclePositionHandler.getTopicSuffix(trip, null));
+    }
+
     @Test
     public void testAddedTrips() throws HfpParser.InvalidHfpTopicException, HfpParser.InvalidHfpPayloadException, IOException {
         final DateTimeFormatter hfpDateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
@@ -154,4 +172,84 @@ public class VehiclePositionHandlerTest {
 
         verify(mockProducer, times(2)).newMessage();
     }
+
+    @Test
+    public void testMessageIsAcknowledgedAfterVehiclePositionIsPersisted() throws Exception {
+        final Instant now = Instant.now();
+
+        final Hfp.Data hfpData = Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setTopic(HfpParser.parseTopic("/hfp/v2/journey/ongoing/vp/bus/0022/00123/1010/1/Destination/08:00/1234567/5/60;24/19/73/55", now.toEpochMilli()))
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTst("")
+                        .setTsi(now.getEpochSecond())
+                        .setRoute("1010")
+                        .setDir("1")
+                        .setOday("2023-01-01")
+                        .setStart("08:00")
+                        .setLat(60.17)
+                        .setLong(24.94))
+                .build();
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getDuration("processor.vehicleposition.maxTimeDifference", TimeUnit.SECONDS)).thenReturn(120L);
+        when(mockConfig.getString("processor.vehicleposition.addedTripEnabledModes")).thenReturn("ubus,bus");
+        when(mockConfig.getString("processor.vehicleposition.passengerCountEnabledVehicles")).thenReturn("");
+
+        try (InMemoryPulsarContext context = new InMemoryPulsarContext(mockConfig, Duration.ofMillis(200), true)) {
+            final VehiclePositionHandler vehiclePositionHandler = new VehiclePositionHandler(context.getContext());
+
+            context.enqueue(TransitdataProperties.ProtobufSchema.HfpData, hfpData.toByteArray(), now.toEpochMilli());
+            assertEquals(1, context.deliverQueued(vehiclePositionHandler));
+
+            //Broker has not acknowledged the vehicle position yet
+            assertEquals(1, context.getConsumer().getUnacknowledgedCount());
+
+            assertTrue(context.awaitAcknowledged(Duration.ofSeconds(5)));
+            assertEquals(1, context.getConsumer().getAcknowledgedCount());
+
+            final List<InMemoryPulsarContext.SentMessage> sentMessages = context.getProducer().getSentMessages();
+            assertEquals(1, sentMessages.size());
+            assertEquals("22/123", sentMessages.get(0).key);
+            assertEquals(TransitdataProperties.ProtobufSchema.GTFS_VehiclePosition.toString(), sentMessages.get(0).properties.get(TransitdataProperties.KEY_PROTOBUF_SCHEMA));
+            assertEquals(now.getEpochSecond(), GtfsRealtime.FeedMessage.parseFrom(sentMessages.get(0).value).getEntity(0).getVehicle().getTimestamp());
+        }
+    }
+
+    @Test
+    public void testMessagesThatCannotBeProcessedAreCountedAsDropped() throws Exception {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getDuration("processor.vehicleposition.maxTimeDifference", TimeUnit.SECONDS)).thenReturn(120L);
+        when(mockConfig.getString("processor.vehicleposition.addedTripEnabledModes")).thenReturn("ubus,bus");
+        when(mockConfig.getString("processor.vehicleposition.passengerCountEnabledVehicles")).thenReturn("");
+
+        final ProcessingMetrics metrics = new ProcessingMetrics();
+
+        try (InMemoryPulsarContext context = new InMemoryPulsarContext(mockConfig, Duration.ofMillis(200), true)) {
+            final VehiclePositionHandler vehiclePositionHandler = new VehiclePositionHandler(context.getContext(), new TripVehicleCache(), null, metrics, null);
+
+            //Topic of a relevant tram message followed by a truncated payload
+            final byte[] malformedHfpData = Hfp.Data.newBuilder()
+                    .setSchemaVersion(1)
+                    .setTopic(HfpParser.parseTopic("/hfp/v2/journey/ongoing/vp/tram/0040/00401/1004/1/Destination/08:00/1234567/5/60;24/19/73/55", 0))
+                    .buildPartial()
+                    .toByteArray();
+            final byte[] truncatedHfpData = new byte[malformedHfpData.length + 2];
+            System.arraycopy(malformedHfpData, 0, truncatedHfpData, 0, malformedHfpData.length);
+            truncatedHfpData[malformedHfpData.length] = 0x1a;
+            truncatedHfpData[malformedHfpData.length + 1] = 0x7f;
+
+            context.enqueue(TransitdataProperties.ProtobufSchema.HfpData, truncatedHfpData, 0);
+            context.enqueue(TransitdataProperties.ProtobufSchema.PassengerCount, new byte[] { 0x0a, 0x7f }, 0);
+            context.enqueue(TransitdataProperties.ProtobufSchema.GTFS_TripUpdate, new byte[0], 0);
+            assertEquals(3, context.deliverQueued(vehiclePositionHandler));
+
+            assertEquals(1, metrics.getMessagesDropped(ProcessingMetrics.DropReason.PARSE_ERROR, Hfp.Topic.TransportMode.tram));
+            assertEquals(1, metrics.getMessagesDropped(ProcessingMetrics.DropReason.PARSE_ERROR));
+            assertEquals(1, metrics.getMessagesDropped(ProcessingMetrics.DropReason.UNKNOWN_SCHEMA));
+            assertEquals(1, metrics.getMessagesIn(ProcessingMetrics.UNKNOWN_SCHEMA));
+            assertEquals(0, metrics.getMessagesIn(TransitdataProperties.ProtobufSchema.GTFS_TripUpdate.toString()));
+        }
+    }
 }
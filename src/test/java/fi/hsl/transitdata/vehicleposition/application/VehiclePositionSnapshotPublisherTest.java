@@ -0,0 +1,110 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.hfp.proto.Hfp;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class VehiclePositionSnapshotPublisherTest {
+    private MutableClock clock;
+    private Producer<byte[]> producer;
+    private TypedMessageBuilder<byte[]> messageBuilder;
+    private VehiclePositionSnapshotPublisher snapshotPublisher;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        clock = new MutableClock();
+
+        messageBuilder = mock(TypedMessageBuilder.class, RETURNS_SELF);
+        when(messageBuilder.sendAsync()).thenReturn(CompletableFuture.completedFuture(MessageId.latest));
+
+        producer = mock(Producer.class);
+        when(producer.newMessage()).thenReturn(messageBuilder);
+
+        snapshotPublisher = new VehiclePositionSnapshotPublisher(producer, Duration.ofSeconds(10), Duration.ofMinutes(2), clock);
+    }
+
+    private static VehiclePositionMessage createMessage(String vehicleId, long timestamp) {
+        Hfp.Data data = Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setTopic(Hfp.Topic.newBuilder()
+                        .setSchemaVersion(1)
+                        .setReceivedAt(0)
+                        .setTopicPrefix("hfp")
+                        .setTopicVersion("v2")
+                        .setUniqueVehicleId(vehicleId))
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTst("")
+                        .setTsi(timestamp)
+                        .setLat(60)
+                        .setLong(25))
+                .build();
+
+        return new VehiclePositionMessage(vehicleId, "vehicle_position_" + vehicleId, data, GtfsRealtime.TripDescriptor.getDefaultInstance(), null, null, System.nanoTime());
+    }
+
+    @Test
+    public void testSnapshotContainsLatestPositionOfEachVehicle() throws InvalidProtocolBufferException {
+        snapshotPublisher.update(createMessage("1/1", 1));
+        snapshotPublisher.update(createMessage("1/2", 1));
+        snapshotPublisher.update(createMessage("1/1", 2));
+
+        GtfsRealtime.FeedMessage snapshot = GtfsRealtime.FeedMessage.parseFrom(snapshotPublisher.createSnapshot(clock.millis()));
+
+        assertEquals(GtfsRealtime.FeedHeader.Incrementality.FULL_DATASET, snapshot.getHeader().getIncrementality());
+        assertEquals(clock.millis() / 1000, snapshot.getHeader().getTimestamp());
+        assertEquals(2, snapshot.getEntityCount());
+        for (GtfsRealtime.FeedEntity entity : snapshot.getEntityList()) {
+            if (entity.getId().equals("vehicle_position_1/1")) {
+                assertEquals(2, entity.getVehicle().getTimestamp());
+            } else {
+                assertEquals("vehicle_position_1/2", entity.getId());
+            }
+        }
+    }
+
+    @Test
+    public void testSilentVehiclesAreRemoved() throws InvalidProtocolBufferException {
+        snapshotPublisher.update(createMessage("1/1", 1));
+        clock.advance(Duration.ofMinutes(1));
+        snapshotPublisher.update(createMessage("1/2", 61));
+        clock.advance(Duration.ofSeconds(61));
+
+        GtfsRealtime.FeedMessage snapshot = GtfsRealtime.FeedMessage.parseFrom(snapshotPublisher.createSnapshot(clock.millis()));
+
+        assertEquals(1, snapshot.getEntityCount());
+        assertEquals("vehicle_position_1/2", snapshot.getEntity(0).getId());
+        assertEquals(1, snapshotPublisher.getVehicleCount());
+    }
+
+    @Test
+    public void testSnapshotIsSentOnce() {
+        snapshotPublisher.update(createMessage("1/1", 1));
+
+        snapshotPublisher.publishSnapshot();
+
+        verify(producer, times(1)).newMessage();
+        verify(messageBuilder).value(snapshotPublisher.getLatestSnapshot());
+        verify(messageBuilder).sendAsync();
+    }
+
+    @Test
+    public void testProducerIsClosed() throws Exception {
+        snapshotPublisher.start();
+        snapshotPublisher.close();
+
+        verify(producer).close();
+    }
+}
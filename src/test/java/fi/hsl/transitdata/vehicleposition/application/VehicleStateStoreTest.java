@@ -0,0 +1,96 @@
+package fi.hsl.transitdata.vehicleposition.application;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VehicleStateStoreTest {
+    private VehicleStateStore vehicleStateStore;
+
+    @Before
+    public void setup() {
+        vehicleStateStore = new VehicleStateStore();
+    }
+
+    @Test
+    public void testSameStateIsReturnedForSameVehicle() {
+        VehicleState vehicleState = vehicleStateStore.getOrCreate(22, 1234);
+
+        assertSame(vehicleState, vehicleStateStore.getOrCreate(22, 1234));
+        assertSame(vehicleState, vehicleStateStore.get(22, 1234));
+        assertEquals(1, vehicleStateStore.size());
+    }
+
+    @Test
+    public void testDifferentVehiclesHaveDifferentState() {
+        VehicleState vehicleState1 = vehicleStateStore.getOrCreate(22, 1234);
+        VehicleState vehicleState2 = vehicleStateStore.getOrCreate(1234, 22);
+
+        assertNotSame(vehicleState1, vehicleState2);
+        assertEquals(22, vehicleState1.getOperatorId());
+        assertEquals(1234, vehicleState1.getVehicleNumber());
+        assertEquals(2, vehicleStateStore.size());
+    }
+
+    @Test
+    public void testStateIsNotCreatedByGet() {
+        assertNull(vehicleStateStore.get(22, 1234));
+        assertEquals(0, vehicleStateStore.size());
+    }
+
+    @Test
+    public void testIdleStateIsRemoved() {
+        MutableClock clock = new MutableClock();
+        VehicleStateStore store = new VehicleStateStore(Duration.ofMinutes(10), 0, clock);
+
+        VehicleState vehicleState1 = store.getOrCreate(22, 1);
+        store.getOrCreate(22, 2);
+
+        clock.advance(Duration.ofMinutes(6));
+        store.getOrCreate(22, 2);
+
+        clock.advance(Duration.ofMinutes(6));
+        store.getOrCreate(22, 3);
+
+        assertNull(store.get(22, 1));
+        assertNotNull(store.get(22, 2));
+        assertEquals(2, store.size());
+        assertEquals(1, store.getExpiredCount());
+        assertNotSame(vehicleState1, store.getOrCreate(22, 1));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedStateIsEvictedWhenFull() {
+        VehicleStateStore store = new VehicleStateStore(Duration.ZERO, 2, new MutableClock());
+
+        store.getOrCreate(22, 1);
+        store.getOrCreate(22, 2);
+        store.getOrCreate(22, 1);
+        store.getOrCreate(22, 3);
+
+        assertNotNull(store.get(22, 1));
+        assertNull(store.get(22, 2));
+        assertNotNull(store.get(22, 3));
+        assertEquals(2, store.size());
+        assertEquals(1, store.getEvictedCount());
+    }
+
+    @Test
+    public void testRemovalListenerIsCalledForEvictedState() {
+        List<VehicleState> removed = new ArrayList<>();
+        VehicleStateStore store = new VehicleStateStore(Duration.ZERO, 1, new MutableClock(), removed::add);
+
+        VehicleState vehicleState1 = store.getOrCreate(22, 1);
+        store.getOrCreate(22, 1);
+        assertTrue(removed.isEmpty());
+
+        store.getOrCreate(22, 2);
+        assertEquals(1, removed.size());
+        assertSame(vehicleState1, removed.get(0));
+    }
+}
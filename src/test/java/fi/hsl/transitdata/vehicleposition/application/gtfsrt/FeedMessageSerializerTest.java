@@ -0,0 +1,87 @@
+package fi.hsl.transitdata.vehicleposition.application.gtfsrt;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.StopStatusProcessor;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FeedMessageSerializerTest {
+    private static Hfp.Data generateHfpData(double lat, double lon, double spd, int hdg, int odo, long tsi, String label) {
+        Hfp.Payload.Builder payload = Hfp.Payload.newBuilder()
+                .setSchemaVersion(1)
+                .setLat(lat)
+                .setLong(lon)
+                .setSpd(spd)
+                .setHdg(hdg)
+                .setOdo(odo)
+                .setTsi(tsi)
+                .setTst("2019-07-09T06:50:00.000Z")
+                .setOday("2019-07-09")
+                .setStart("09:30");
+        if (label != null) {
+            payload.setLabel(label);
+        }
+
+        return Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setTopic(Hfp.Topic.newBuilder()
+                        .setSchemaVersion(1)
+                        .setReceivedAt(0)
+                        .setTopicPrefix("hfp")
+                        .setTopicVersion("v2")
+                        .setJourneyType(Hfp.Topic.JourneyType.journey)
+                        .setTemporalType(Hfp.Topic.TemporalType.ongoing)
+                        .setOperatorId(18)
+                        .setVehicleNumber(1234)
+                        .setUniqueVehicleId("18/1234")
+                        .setDirectionId(2)
+                        .setRouteId("1999"))
+                .setPayload(payload)
+                .build();
+    }
+
+    private static void assertSerializedIdentically(Hfp.Data data, GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship, StopStatusProcessor.StopStatus stopStatus, GtfsRealtime.VehiclePosition.OccupancyStatus occupancyStatus) {
+        final String entityId = "vehicle_position_" + data.getTopic().getUniqueVehicleId();
+
+        final GtfsRealtime.VehiclePosition vehiclePosition = GtfsRtGenerator.generateVehiclePosition(data, scheduleRelationship, stopStatus, Optional.ofNullable(occupancyStatus)).get();
+        final byte[] expected = FeedMessageFactory.createDifferentialFeedMessage(entityId, vehiclePosition, data.getPayload().getTsi()).toByteArray();
+
+        final GtfsRealtime.TripDescriptor trip = GtfsRtGenerator.getTripDescriptor(data, scheduleRelationship);
+
+        assertArrayEquals(expected, FeedMessageSerializer.serializeDifferentialFeedMessage(entityId, data, trip, stopStatus, occupancyStatus, data.getPayload().getTsi()));
+    }
+
+    @Test
+    public void testSerializedFeedMessageIsIdenticalToGeneratedFeedMessage() {
+        final StopStatusProcessor.StopStatus[] stopStatuses = {
+                null,
+                new StopStatusProcessor.StopStatus("1020453", GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO),
+                new StopStatusProcessor.StopStatus("1020453", GtfsRealtime.VehiclePosition.VehicleStopStatus.STOPPED_AT),
+                new StopStatusProcessor.StopStatus("", GtfsRealtime.VehiclePosition.VehicleStopStatus.INCOMING_AT)
+        };
+
+        final Hfp.Data[] hfpData = {
+                generateHfpData(60.17, 24.94, 8.5, 90, 12345, 1562655000, null),
+                generateHfpData(60.17, 24.94, 8.5, 90, 12345, 1562655000, "SUOMENLINNA II"),
+                generateHfpData(0, 0, 0, 0, 0, 0, ""),
+                generateHfpData(-60.123456789, -24.987654321, 123.456, 359, Integer.MAX_VALUE, 4102444800L, "Ä"),
+                generateHfpData(60.2, 25.1, -1, -1, -1, 1562655001, null)
+        };
+
+        for (Hfp.Data data : hfpData) {
+            for (GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship : new GtfsRealtime.TripDescriptor.ScheduleRelationship[] { GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED }) {
+                for (StopStatusProcessor.StopStatus stopStatus : stopStatuses) {
+                    assertSerializedIdentically(data, scheduleRelationship, stopStatus, null);
+                    for (GtfsRealtime.VehiclePosition.OccupancyStatus occupancyStatus : GtfsRealtime.VehiclePosition.OccupancyStatus.values()) {
+                        assertSerializedIdentically(data, scheduleRelationship, stopStatus, occupancyStatus);
+                    }
+                }
+            }
+        }
+    }
+}
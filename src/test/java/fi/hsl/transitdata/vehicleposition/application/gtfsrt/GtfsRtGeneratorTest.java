@@ -3,6 +3,7 @@ package fi.hsl.transitdata.vehicleposition.application.gtfsrt;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.hfp.proto.Hfp;
 import fi.hsl.transitdata.vehicleposition.application.StopStatusProcessor;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 import org.junit.Test;
 
 import java.util.Optional;
@@ -10,6 +11,8 @@ import java.util.Optional;
 import static com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class GtfsRtGeneratorTest {
     @Test
@@ -116,4 +119,50 @@ public class GtfsRtGeneratorTest {
         assertEquals("1999", gtfsRtVp.getTrip().getRouteId());
         assertEquals("SUOMENLINNA II", gtfsRtVp.getVehicle().getLabel());
     }
+
+    @Test
+    public void testTripDescriptorIsReusedForSameTrip() {
+        Hfp.Data.Builder data = Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setTopic(Hfp.Topic.newBuilder()
+                        .setSchemaVersion(1)
+                        .setReceivedAt(0)
+                        .setTopicPrefix("hfp")
+                        .setTopicVersion("v2")
+                        .setJourneyType(Hfp.Topic.JourneyType.journey)
+                        .setTemporalType(Hfp.Topic.TemporalType.ongoing)
+                        .setOperatorId(1)
+                        .setVehicleNumber(1)
+                        .setUniqueVehicleId("1/1")
+                        .setDirectionId(2)
+                        .setRouteId("2550"))
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTsi(1562655000)
+                        .setTst("2019-07-09T06:50:00.000Z")
+                        .setOday("2019-07-09")
+                        .setStart("09:30"));
+
+        VehicleState vehicleState = new VehicleState(1, 1);
+        GtfsRealtime.TripDescriptor trip = GtfsRtGenerator.getTripDescriptor(vehicleState, data.build(), GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED);
+        assertEquals(GtfsRtGenerator.getTripDescriptor(data.build(), GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED), trip);
+
+        data.getPayloadBuilder().setTsi(1562655060).setTst("2019-07-09T06:51:00.000Z");
+        assertSame(trip, GtfsRtGenerator.getTripDescriptor(vehicleState, data.build(), GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED));
+
+        //Trip descriptor is not shared with other vehicles
+        assertNotSame(trip, GtfsRtGenerator.getTripDescriptor(new VehicleState(1, 2), data.build(), GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED));
+
+        GtfsRealtime.TripDescriptor addedTrip = GtfsRtGenerator.getTripDescriptor(vehicleState, data.build(), GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
+        assertNotSame(trip, addedTrip);
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED, addedTrip.getScheduleRelationship());
+
+        data.getTopicBuilder().setDirectionId(1);
+        assertEquals(0, GtfsRtGenerator.getTripDescriptor(vehicleState, data.build(), GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED).getDirectionId());
+
+        assertEquals("20190709", trip.getStartDate());
+        assertEquals("09:30:00", trip.getStartTime());
+        assertEquals(1, trip.getDirectionId());
+        assertEquals("2550", trip.getRouteId());
+    }
 }
@@ -3,22 +3,27 @@ package fi.hsl.transitdata.vehicleposition.application.gtfsrt;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.hfp.proto.Hfp;
 import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.utils.CachedPassengerCount;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class GtfsRtOccupancyStatusHelperTest {
+    private TreeMap<Integer, GtfsRealtime.VehiclePosition.OccupancyStatus> occuToOccupancyStatus;
+    private TreeMap<Double, GtfsRealtime.VehiclePosition.OccupancyStatus> loadRatioToOccypancyStatus;
     private GtfsRtOccupancyStatusHelper gtfsRtOccupancyStatusHelper;
 
     @Before
     public void setup() {
-        TreeMap<Integer, GtfsRealtime.VehiclePosition.OccupancyStatus> occuToOccupancyStatus = new TreeMap<>();
+        occuToOccupancyStatus = new TreeMap<>();
         occuToOccupancyStatus.put(0, GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY);
         occuToOccupancyStatus.put(5, GtfsRealtime.VehiclePosition.OccupancyStatus.MANY_SEATS_AVAILABLE);
         occuToOccupancyStatus.put(20, GtfsRealtime.VehiclePosition.OccupancyStatus.FEW_SEATS_AVAILABLE);
@@ -26,7 +31,7 @@ public class GtfsRtOccupancyStatusHelperTest {
         occuToOccupancyStatus.put(70, GtfsRealtime.VehiclePosition.OccupancyStatus.CRUSHED_STANDING_ROOM_ONLY);
         occuToOccupancyStatus.put(90, GtfsRealtime.VehiclePosition.OccupancyStatus.FULL);
 
-        TreeMap<Double, GtfsRealtime.VehiclePosition.OccupancyStatus> loadRatioToOccypancyStatus = new TreeMap<>();
+        loadRatioToOccypancyStatus = new TreeMap<>();
         loadRatioToOccypancyStatus.put(0.0, GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY);
         loadRatioToOccypancyStatus.put(0.05, GtfsRealtime.VehiclePosition.OccupancyStatus.MANY_SEATS_AVAILABLE);
         loadRatioToOccypancyStatus.put(0.2, GtfsRealtime.VehiclePosition.OccupancyStatus.FEW_SEATS_AVAILABLE);
@@ -44,9 +49,9 @@ public class GtfsRtOccupancyStatusHelperTest {
     }
     
     @NotNull
-    private static PassengerCount.Payload getPassengerCountPayload(int vehicleLoad, double vehicleLoadRatio) {
-        return PassengerCount.Payload.newBuilder().setVehicleCounts(PassengerCount.VehicleCounts.newBuilder()
-                .setCountQuality("").setVehicleLoad(vehicleLoad).setVehicleLoadRatio(vehicleLoadRatio).build()).build();
+    private static CachedPassengerCount getPassengerCountPayload(int vehicleLoad, double vehicleLoadRatio) {
+        return CachedPassengerCount.of(PassengerCount.Payload.newBuilder().setVehicleCounts(PassengerCount.VehicleCounts.newBuilder()
+                .setCountQuality("").setVehicleLoad(vehicleLoad).setVehicleLoadRatio(vehicleLoadRatio).build()).build(), 0);
     }
 
     @Test
@@ -123,4 +128,54 @@ public class GtfsRtOccupancyStatusHelperTest {
         assertTrue(occuStatus.isPresent());
         assertEquals(GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY, occuStatus.get());
     }
+
+    @Test
+    public void testPassengerCountEnabledVehicles() {
+        GtfsRtOccupancyStatusHelper helper = new GtfsRtOccupancyStatusHelper(occuToOccupancyStatus, loadRatioToOccypancyStatus, List.of("18/123", "022/1", "invalid"));
+
+        assertTrue(helper.getOccupancyStatus(getHfpPayload(55).toBuilder().setOper(18).setVeh(123).build(), null).isPresent());
+        assertTrue(helper.getOccupancyStatus(getHfpPayload(55).toBuilder().setOper(18).setVeh(124).build(), null).isEmpty());
+        //Vehicles with leading zeros in the list never matched vehicle IDs formatted from HFP
+        assertTrue(helper.getOccupancyStatus(getHfpPayload(55).toBuilder().setOper(22).setVeh(1).build(), null).isEmpty());
+    }
+
+    @Test
+    public void testOccupancyStatusIsSameAsLookupFromLevels() {
+        for (int occu = -5; occu <= 120; occu++) {
+            Hfp.Payload hfpPayload = getHfpPayload(occu);
+            assertEquals("occu " + occu, getOccupancyStatusFromLevels(hfpPayload, null), gtfsRtOccupancyStatusHelper.getOccupancyStatus(hfpPayload, null));
+
+            for (double vehicleLoadRatio : new double[] { -1.0, -0.0, 0.0, 0.01, 0.05, 0.0500001, 0.2, 0.35, 0.5, 0.7, 0.89, 0.9, 1.0, 2.5, Double.NaN }) {
+                for (int vehicleLoad : new int[] { 0, 1, 50 }) {
+                    CachedPassengerCount passengerCount = getPassengerCountPayload(vehicleLoad, vehicleLoadRatio);
+                    assertEquals("occu " + occu + ", vehicle load " + vehicleLoad + ", vehicle load ratio " + vehicleLoadRatio,
+                            getOccupancyStatusFromLevels(hfpPayload, passengerCount), gtfsRtOccupancyStatusHelper.getOccupancyStatus(hfpPayload, passengerCount));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOccupancyStatusIsNotAllocatedForEachCall() {
+        assertSame(gtfsRtOccupancyStatusHelper.getOccupancyStatus(getHfpPayload(55), null), gtfsRtOccupancyStatusHelper.getOccupancyStatus(getHfpPayload(60), null));
+        assertSame(gtfsRtOccupancyStatusHelper.getOccupancyStatus(getHfpPayload(0), getPassengerCountPayload(10, 0.55)),
+                gtfsRtOccupancyStatusHelper.getOccupancyStatus(getHfpPayload(0), getPassengerCountPayload(10, 0.6)));
+    }
+
+    //Occupancy status looked up from the levels with TreeMap.lowerEntry
+    private Optional<GtfsRealtime.VehiclePosition.OccupancyStatus> getOccupancyStatusFromLevels(Hfp.Payload hfpPayload, CachedPassengerCount passengerCount) {
+        if (hfpPayload.getOccu() >= 100) {
+            return Optional.of(GtfsRealtime.VehiclePosition.OccupancyStatus.FULL);
+        }
+        if (passengerCount != null) {
+            if ((passengerCount.hasVehicleLoad() && passengerCount.getVehicleLoad() <= 0) || passengerCount.getVehicleLoadRatio() <= 0.0) {
+                return Optional.of(GtfsRealtime.VehiclePosition.OccupancyStatus.EMPTY);
+            }
+            return Optional.of(loadRatioToOccypancyStatus.lowerEntry(passengerCount.getVehicleLoadRatio()).getValue());
+        }
+        if (hfpPayload.getOccu() > 0) {
+            return Optional.of(occuToOccupancyStatus.lowerEntry(hfpPayload.getOccu()).getValue());
+        }
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,216 @@
+package fi.hsl.transitdata.vehicleposition.application.metrics;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.StopStatusProcessor;
+import fi.hsl.transitdata.vehicleposition.application.VehiclePositionCoalescer;
+import fi.hsl.transitdata.vehicleposition.application.VehiclePositionMessage;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
+import fi.hsl.transitdata.vehicleposition.application.VehicleStateStore;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProcessingMetricsTest {
+    @Test
+    public void testStagesAreRecorded() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        long startTime = System.nanoTime();
+        startTime = metrics.recordStage(ProcessingMetrics.Stage.FILTER, startTime);
+        metrics.recordStage(ProcessingMetrics.Stage.PARSE, startTime);
+        metrics.recordStage(ProcessingMetrics.Stage.PARSE, System.nanoTime());
+
+        assertEquals(1, metrics.getStageCount(ProcessingMetrics.Stage.FILTER));
+        assertEquals(2, metrics.getStageCount(ProcessingMetrics.Stage.PARSE));
+        assertEquals(0, metrics.getStageCount(ProcessingMetrics.Stage.SEND));
+    }
+
+    @Test
+    public void testMessagesAreCounted() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        metrics.incrementMessagesIn("HfpData");
+        metrics.incrementMessagesIn("HfpData");
+        metrics.incrementMessagesIn("PassengerCount");
+        metrics.incrementMessagesOut();
+
+        assertEquals(2, metrics.getMessagesIn("HfpData"));
+        assertEquals(1, metrics.getMessagesIn("PassengerCount"));
+        assertEquals(0, metrics.getMessagesIn("GTFS_TripUpdate"));
+        assertEquals(1, metrics.getMessagesOut());
+    }
+
+    @Test
+    public void testPrometheusText() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        metrics.incrementMessagesIn("HfpData");
+        metrics.incrementMessagesOut();
+        metrics.recordStage(ProcessingMetrics.Stage.STOP_STATUS, System.nanoTime() - 2000);
+
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheusText(text);
+
+        assertTrue(text.toString().contains("# TYPE vehicleposition_stage_duration_seconds summary\n"));
+        assertTrue(text.toString().contains("vehicleposition_stage_duration_seconds_count{stage=\"stop_status\"} 1\n"));
+        assertTrue(text.toString().contains("vehicleposition_stage_duration_seconds_count{stage=\"trip_registration\"} 0\n"));
+        assertTrue(text.toString().contains("vehicleposition_stage_duration_seconds{stage=\"stop_status\",quantile=\"0.99\"} "));
+        assertTrue(text.toString().contains("vehicleposition_messages_in_total{schema=\"HfpData\"} 1\n"));
+        assertTrue(text.toString().contains("vehicleposition_messages_out_total 1\n"));
+    }
+
+    @Test
+    public void testQuantilesAreNotResetWhenWritten() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        metrics.recordLatency(ProcessingMetrics.Latency.PRODUCE_TO_ACK, Hfp.Topic.TransportMode.bus, 1_000_000_000);
+
+        StringBuilder first = new StringBuilder();
+        metrics.writePrometheusText(first);
+        //Another scraper reading the metrics must see the same quantiles
+        StringBuilder second = new StringBuilder();
+        metrics.writePrometheusText(second);
+
+        assertTrue(first.toString().contains("vehicleposition_latency_seconds{latency=\"produce_to_ack\",transport_mode=\"bus\",quantile=\"0.5\"} 1.0"));
+        assertEquals(first.toString(), second.toString());
+    }
+
+    @Test
+    public void testLatenciesAreRecordedByTransportMode() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        metrics.recordLatency(ProcessingMetrics.Latency.BRIDGE_TO_RECEIVE, Hfp.Topic.TransportMode.metro, 1_500_000);
+        metrics.recordLatency(ProcessingMetrics.Latency.BRIDGE_TO_RECEIVE, Hfp.Topic.TransportMode.metro, 2_500_000);
+        //Negative latency caused by clock difference
+        metrics.recordLatency(ProcessingMetrics.Latency.VEHICLE_TO_BRIDGE, Hfp.Topic.TransportMode.bus, -1000);
+
+        assertEquals(2, metrics.getLatencyCount(ProcessingMetrics.Latency.BRIDGE_TO_RECEIVE, Hfp.Topic.TransportMode.metro));
+        assertEquals(0, metrics.getLatencyCount(ProcessingMetrics.Latency.BRIDGE_TO_RECEIVE, Hfp.Topic.TransportMode.bus));
+        assertEquals(1, metrics.getLatencyCount(ProcessingMetrics.Latency.VEHICLE_TO_BRIDGE, Hfp.Topic.TransportMode.bus));
+
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheusText(text);
+
+        assertTrue(text.toString().contains("# TYPE vehicleposition_latency_seconds summary\n"));
+        assertTrue(text.toString().contains("vehicleposition_latency_seconds_count{latency=\"bridge_to_receive\",transport_mode=\"metro\"} 2\n"));
+        assertTrue(text.toString().contains("vehicleposition_latency_seconds_sum{latency=\"bridge_to_receive\",transport_mode=\"metro\"} 0.004\n"));
+        assertTrue(text.toString().contains("vehicleposition_latency_seconds_sum{latency=\"vehicle_to_bridge\",transport_mode=\"bus\"} 0.0\n"));
+        assertFalse(text.toString().contains("transport_mode=\"tram\""));
+    }
+
+    @Test
+    public void testDroppedMessagesAreCountedByReasonAndTransportMode() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.NOT_ONGOING, Hfp.Topic.TransportMode.tram);
+        metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.NOT_ONGOING, Hfp.Topic.TransportMode.tram);
+        metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.NO_LOCATION, Hfp.Topic.TransportMode.bus);
+        metrics.incrementMessagesDropped(ProcessingMetrics.DropReason.UNKNOWN_SCHEMA);
+
+        assertEquals(2, metrics.getMessagesDropped(ProcessingMetrics.DropReason.NOT_ONGOING, Hfp.Topic.TransportMode.tram));
+        assertEquals(0, metrics.getMessagesDropped(ProcessingMetrics.DropReason.NOT_ONGOING, Hfp.Topic.TransportMode.bus));
+        assertEquals(1, metrics.getMessagesDropped(ProcessingMetrics.DropReason.NO_LOCATION, Hfp.Topic.TransportMode.bus));
+        assertEquals(1, metrics.getMessagesDropped(ProcessingMetrics.DropReason.UNKNOWN_SCHEMA));
+        assertEquals(0, metrics.getMessagesDropped(ProcessingMetrics.DropReason.PARSE_ERROR));
+
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheusText(text);
+
+        assertTrue(text.toString().contains("# TYPE vehicleposition_messages_dropped_total counter\n"));
+        assertTrue(text.toString().contains("vehicleposition_messages_dropped_total{reason=\"not_ongoing\",transport_mode=\"tram\"} 2\n"));
+        assertTrue(text.toString().contains("vehicleposition_messages_dropped_total{reason=\"trip_already_taken\",transport_mode=\"metro\"} 0\n"));
+        assertTrue(text.toString().contains("vehicleposition_messages_dropped_total{reason=\"unknown_schema\",transport_mode=\"unknown\"} 1\n"));
+        assertFalse(text.toString().contains("vehicleposition_messages_dropped_total{reason=\"parse_error\",transport_mode=\"unknown\"}"));
+    }
+
+    @Test
+    public void testVehicleStatesAreSummedOverStores() {
+        final AtomicLong currentTimeMs = new AtomicLong(0);
+        final Clock clock = mock(Clock.class);
+        when(clock.millis()).thenAnswer(invocation -> currentTimeMs.get());
+
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        //Stores of two worker threads
+        VehicleStateStore first = new VehicleStateStore(Duration.ofMinutes(1), 2, clock);
+        VehicleStateStore second = new VehicleStateStore(Duration.ofMinutes(1), 2, clock);
+        metrics.addVehicleStateStore(first);
+        metrics.addVehicleStateStore(second);
+
+        first.getOrCreate(1, 1);
+        first.getOrCreate(1, 2);
+        //Store is full, the least recently used state is evicted
+        first.getOrCreate(1, 3);
+        second.getOrCreate(1, 4);
+
+        currentTimeMs.set(Duration.ofMinutes(1).toMillis());
+        //Idle state is expired before creating the new one
+        second.getOrCreate(1, 5);
+
+        assertEquals(3, metrics.getVehicleStates());
+        assertEquals(1, metrics.getVehicleStatesEvicted());
+        assertEquals(1, metrics.getVehicleStatesExpired());
+
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheusText(text);
+
+        assertTrue(text.toString().contains("# TYPE vehicleposition_vehicle_states gauge\n"));
+        assertTrue(text.toString().contains("vehicleposition_vehicle_states 3\n"));
+        assertTrue(text.toString().contains("# TYPE vehicleposition_vehicle_states_removed_total counter\n"));
+        assertTrue(text.toString().contains("vehicleposition_vehicle_states_removed_total{reason=\"expired\"} 1\n"));
+        assertTrue(text.toString().contains("vehicleposition_vehicle_states_removed_total{reason=\"evicted\"} 1\n"));
+    }
+
+    private static VehiclePositionMessage createVehiclePositionMessage(long timestamp) {
+        final Hfp.Data data = Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTst("")
+                        .setTsi(timestamp))
+                .build();
+
+        return new VehiclePositionMessage("1/1", "vehicle_position_1/1", data, GtfsRealtime.TripDescriptor.getDefaultInstance(),
+                new StopStatusProcessor.StopStatus("1", GtfsRealtime.VehiclePosition.VehicleStopStatus.IN_TRANSIT_TO), null, System.nanoTime());
+    }
+
+    @Test
+    public void testCoalescedPositionsAreSummedOverCoalescers() {
+        ProcessingMetrics metrics = new ProcessingMetrics();
+
+        //Coalescers of two worker threads
+        VehiclePositionCoalescer first = new VehiclePositionCoalescer(Duration.ofMinutes(1), message -> {}, Clock.systemUTC());
+        VehiclePositionCoalescer second = new VehiclePositionCoalescer(Duration.ofMinutes(1), message -> {}, Clock.systemUTC());
+        metrics.addVehiclePositionCoalescer(first);
+        metrics.addVehiclePositionCoalescer(second);
+
+        //First position is published, the second is held back and replaced by the third
+        VehicleState vehicleState = new VehicleState(1, 1);
+        first.offer(vehicleState, createVehiclePositionMessage(1));
+        first.offer(vehicleState, createVehiclePositionMessage(2));
+        first.offer(vehicleState, createVehiclePositionMessage(3));
+        second.offer(new VehicleState(1, 2), createVehiclePositionMessage(1));
+
+        assertEquals(2, metrics.getPositionsPublishedByCoalescer());
+        assertEquals(1, metrics.getPositionsCoalesced());
+        assertEquals(1, metrics.getPositionsPending());
+
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheusText(text);
+
+        assertTrue(text.toString().contains("# TYPE vehicleposition_coalescer_positions_total counter\n"));
+        assertTrue(text.toString().contains("vehicleposition_coalescer_positions_total{result=\"published\"} 2\n"));
+        assertTrue(text.toString().contains("vehicleposition_coalescer_positions_total{result=\"coalesced\"} 1\n"));
+        assertTrue(text.toString().contains("# TYPE vehicleposition_coalescer_pending gauge\n"));
+        assertTrue(text.toString().contains("vehicleposition_coalescer_pending 1\n"));
+    }
+}
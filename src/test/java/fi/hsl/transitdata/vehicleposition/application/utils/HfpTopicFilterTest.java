@@ -0,0 +1,118 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import fi.hsl.common.hfp.proto.Hfp;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class HfpTopicFilterTest {
+    private static Hfp.Data generateHfpData(Hfp.Topic.JourneyType journeyType, Hfp.Topic.TemporalType temporalType, Hfp.Topic.EventType eventType) {
+        return Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setTopic(Hfp.Topic.newBuilder()
+                        .setSchemaVersion(1)
+                        .setReceivedAt(0)
+                        .setTopicPrefix("hfp")
+                        .setTopicVersion("v2")
+                        .setJourneyType(journeyType)
+                        .setTemporalType(temporalType)
+                        .setEventType(eventType)
+                        .setTransportMode(Hfp.Topic.TransportMode.bus)
+                        .setOperatorId(1)
+                        .setVehicleNumber(1)
+                        .setUniqueVehicleId("1/1")
+                        .setNextStop("1"))
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTst("")
+                        .setTsi(0))
+                .build();
+    }
+
+    @Test
+    public void testFastPathMatchesParsedTopic() {
+        for (Hfp.Topic.JourneyType journeyType : Hfp.Topic.JourneyType.values()) {
+            for (Hfp.Topic.TemporalType temporalType : Hfp.Topic.TemporalType.values()) {
+                for (Hfp.Topic.EventType eventType : Hfp.Topic.EventType.values()) {
+                    final Hfp.Data data = generateHfpData(journeyType, temporalType, eventType);
+
+                    assertEquals(HfpTopicFilter.check(data.getTopic()), HfpTopicFilter.check(data.toByteArray()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRelevantMessages() {
+        assertEquals(HfpTopicFilter.Result.RELEVANT, HfpTopicFilter.check(generateHfpData(Hfp.Topic.JourneyType.journey, Hfp.Topic.TemporalType.ongoing, Hfp.Topic.EventType.VP).toByteArray()));
+        assertEquals(HfpTopicFilter.Result.RELEVANT, HfpTopicFilter.check(generateHfpData(Hfp.Topic.JourneyType.journey, Hfp.Topic.TemporalType.ongoing, Hfp.Topic.EventType.ARS).toByteArray()));
+    }
+
+    @Test
+    public void testIrrelevantMessages() {
+        assertEquals(HfpTopicFilter.Result.NOT_JOURNEY, HfpTopicFilter.check(generateHfpData(Hfp.Topic.JourneyType.deadrun, Hfp.Topic.TemporalType.ongoing, Hfp.Topic.EventType.VP).toByteArray()));
+        assertEquals(HfpTopicFilter.Result.NOT_ONGOING, HfpTopicFilter.check(generateHfpData(Hfp.Topic.JourneyType.journey, Hfp.Topic.TemporalType.upcoming, Hfp.Topic.EventType.VP).toByteArray()));
+        assertEquals(HfpTopicFilter.Result.IRRELEVANT_EVENT_TYPE, HfpTopicFilter.check(generateHfpData(Hfp.Topic.JourneyType.journey, Hfp.Topic.TemporalType.ongoing, Hfp.Topic.EventType.DOO).toByteArray()));
+    }
+
+    @Test
+    public void testUnknownEnumValueKeepsPreviousValue() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        generateHfpData(Hfp.Topic.JourneyType.deadrun, Hfp.Topic.TemporalType.ongoing, Hfp.Topic.EventType.VP).writeTo(bytes);
+
+        //Append a second topic occurrence with an unknown journey type, which is merged with the first one when parsing
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        output.writeTag(Hfp.Data.TOPIC_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(CodedOutputStream.computeEnumSize(Hfp.Topic.JOURNEY_TYPE_FIELD_NUMBER, 99));
+        output.writeEnum(Hfp.Topic.JOURNEY_TYPE_FIELD_NUMBER, 99);
+        output.flush();
+
+        final byte[] data = bytes.toByteArray();
+
+        assertEquals(HfpTopicFilter.check(Hfp.Data.parseFrom(data).getTopic()), HfpTopicFilter.check(data));
+        assertEquals(HfpTopicFilter.Result.NOT_JOURNEY, HfpTopicFilter.check(data));
+    }
+
+    @Test
+    public void testInvalidDataIsLeftForParser() {
+        assertEquals(HfpTopicFilter.Result.RELEVANT, HfpTopicFilter.check(new byte[] { 0x12, 0x7f, 0x28 }));
+    }
+
+    @Test
+    public void testRejectedMessageIsNotValidated() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        generateHfpData(Hfp.Topic.JourneyType.deadrun, Hfp.Topic.TemporalType.ongoing, Hfp.Topic.EventType.VP).getTopic().writeTo(bytes);
+        final byte[] topic = bytes.toByteArray();
+
+        //Topic followed by a payload that cannot be parsed
+        bytes.reset();
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        output.writeByteArray(Hfp.Data.TOPIC_FIELD_NUMBER, topic);
+        output.writeByteArray(Hfp.Data.PAYLOAD_FIELD_NUMBER, new byte[] { 0x12, 0x7f, 0x28 });
+        output.flush();
+
+        final byte[] data = bytes.toByteArray();
+
+        assertThrows(InvalidProtocolBufferException.class, () -> Hfp.Data.parseFrom(data));
+        assertEquals(HfpTopicFilter.Result.NOT_JOURNEY, HfpTopicFilter.check(data));
+    }
+
+    @Test
+    public void testTransportModeIsReadWithoutParsing() {
+        for (Hfp.Topic.TransportMode transportMode : Hfp.Topic.TransportMode.values()) {
+            final Hfp.Data.Builder data = generateHfpData(Hfp.Topic.JourneyType.deadrun, Hfp.Topic.TemporalType.ongoing, Hfp.Topic.EventType.VP).toBuilder();
+            data.getTopicBuilder().setTransportMode(transportMode);
+
+            assertEquals(transportMode, HfpTopicFilter.getTransportMode(data.build().toByteArray()));
+        }
+
+        assertEquals(Hfp.Topic.getDefaultInstance().getTransportMode(), HfpTopicFilter.getTransportMode(new byte[] { 0x12, 0x7f, 0x28 }));
+    }
+}
@@ -0,0 +1,81 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongObjectMapTest {
+    @Test
+    public void testPutAndGet() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+
+        assertNull(map.put(VehicleKey.of(22, 1), "22/1"));
+        assertNull(map.put(VehicleKey.of(1, 22), "1/22"));
+        assertNull(map.put(0, "0"));
+
+        assertEquals("22/1", map.get(VehicleKey.of(22, 1)));
+        assertEquals("1/22", map.get(VehicleKey.of(1, 22)));
+        assertEquals("0", map.get(0));
+        assertNull(map.get(VehicleKey.of(22, 2)));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void testPutReplacesValue() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+
+        map.put(1, "a");
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.get(1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testRemove() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+
+        map.put(1, "a");
+        map.put(2, "b");
+
+        assertEquals("a", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertEquals("b", map.get(2));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testRandomOperationsMatchHashMap() {
+        final Random random = new Random(1);
+
+        final LongObjectMap<Integer> map = new LongObjectMap<>(16);
+        final Map<Long, Integer> expected = new HashMap<>();
+
+        for (int i = 0; i < 100_000; i++) {
+            //Small key space so that keys collide and are removed often
+            final long key = VehicleKey.of(random.nextInt(4), random.nextInt(500));
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        assertEquals(expected.size(), map.values().size());
+    }
+}
@@ -0,0 +1,204 @@
+package fi.hsl.transitdata.vehicleposition.application.utils;
+
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PartitionedTripRegistryTest {
+    private AtomicLong time;
+    private PartitionedTripRegistry tripRegistry;
+
+    @Before
+    public void setup() {
+        time = new AtomicLong();
+        setTime("2023-03-01T05:00");
+
+        final Clock clock = mock(Clock.class);
+        when(clock.millis()).thenAnswer(invocation -> time.get());
+        tripRegistry = new PartitionedTripRegistry(Duration.ofHours(3), clock);
+    }
+
+    private void setTime(String localDateTime) {
+        time.set(LocalDateTime.parse(localDateTime).atZone(ZoneId.of("Europe/Helsinki")).toInstant().toEpochMilli());
+    }
+
+    private Map<String, Integer> getBucketSizes() {
+        final Map<String, Integer> bucketSizes = new HashMap<>();
+        tripRegistry.forEachBucket((operatingDay, startHour, size) -> bucketSizes.put(operatingDay + " " + startHour, size));
+        return bucketSizes;
+    }
+
+    @Test
+    public void testOnlyOneVehicleCanBeRegisteredForOneTrip() {
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1515", "2550", "2023-03-01", "09:16", "1"));
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1515", "2550", "2023-03-01", "09:16", "1"));
+        assertFalse(tripRegistry.registerVehicleForTrip("10/1516", "2550", "2023-03-01", "09:16", "1"));
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1516", "2550", "2023-03-01", "09:16", "2"));
+    }
+
+    @Test
+    public void testBucketIsDroppedWhenLatestRegistrationExpires() {
+        setTime("2023-03-01T12:10");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1515", "2550", "2023-03-01", "12:15", "1"));
+        setTime("2023-03-01T12:40");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1516", "2551", "2023-03-01", "12:45", "1"));
+        assertEquals(Map.of("2023-03-01 12", 2), getBucketSizes());
+
+        setTime("2023-03-01T15:39");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1517", "2552", "2023-03-01", "15:45", "1"));
+        assertEquals(Map.of("2023-03-01 12", 2, "2023-03-01 15", 1), getBucketSizes());
+
+        setTime("2023-03-01T15:40");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1518", "2553", "2023-03-01", "15:45", "1"));
+        assertEquals(Map.of("2023-03-01 15", 2), getBucketSizes());
+    }
+
+    @Test
+    public void testRegistrationExpiresAfterMaxAgeWhenBucketIsKept() {
+        setTime("2023-03-01T12:10");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1515", "2550", "2023-03-01", "12:15", "1"));
+        //Later registration keeps the bucket until 17:00
+        setTime("2023-03-01T14:00");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1516", "2551", "2023-03-01", "12:50", "1"));
+
+        setTime("2023-03-01T15:09");
+        assertFalse(tripRegistry.registerVehicleForTrip("10/1517", "2550", "2023-03-01", "12:15", "1"));
+
+        setTime("2023-03-01T15:10");
+        final VehicleState vehicleState = new VehicleState(10, 1517);
+        assertTrue(tripRegistry.registerVehicleForTrip(vehicleState, "10/1517", "2550", "2023-03-01", "12:15", "1"));
+        assertTrue(vehicleState.isTripRegistrationValid(time.get() + Duration.ofHours(3).toMillis() - 1));
+        assertFalse(tripRegistry.registerVehicleForTrip("10/1518", "2551", "2023-03-01", "12:50", "1"));
+        assertEquals(Map.of("2023-03-01 12", 2), getBucketSizes());
+    }
+
+    @Test
+    public void testLateRegistrationIsKeptForMaxAge() {
+        setTime("2023-03-01T20:00");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1515", "2550", "2023-03-01", "12:15", "1"));
+
+        setTime("2023-03-01T22:59");
+        assertFalse(tripRegistry.registerVehicleForTrip("10/1516", "2550", "2023-03-01", "12:15", "1"));
+
+        setTime("2023-03-01T23:00");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1516", "2550", "2023-03-01", "12:15", "1"));
+    }
+
+    @Test
+    public void testTripWithInvalidStartTimeIsRegistered() {
+        setTime("2023-03-01T12:30");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1515", "2550", "", "", "1"));
+
+        setTime("2023-03-01T15:29");
+        assertFalse(tripRegistry.registerVehicleForTrip("10/1516", "2550", "", "", "1"));
+
+        setTime("2023-03-01T15:30");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1516", "2550", "", "", "1"));
+        assertEquals(Map.of(" -1", 1), getBucketSizes());
+    }
+
+    @Test
+    public void testSameTripIsNotRegisteredAgainForVehicleState() {
+        final VehicleState vehicleState = new VehicleState(10, 1515);
+
+        assertTrue(tripRegistry.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2023-03-01", "09:16", "1"));
+        final TripDescriptor trip = vehicleState.getTrip();
+
+        assertTrue(tripRegistry.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2023-03-01", "09:16", "1"));
+        assertSame(trip, vehicleState.getTrip());
+    }
+
+    @Test
+    public void testRegistrationsCanBeRestored() {
+        setTime("2023-03-01T12:10");
+        assertTrue(tripRegistry.registerVehicleForTrip("10/1515", "2550", "2023-03-01", "12:15", "1"));
+
+        final List<String> vehicleIds = new ArrayList<>();
+        final PartitionedTripRegistry restored = new PartitionedTripRegistry();
+        tripRegistry.forEachRegistration((vehicleId, trip, expiresAfter) -> {
+            assertEquals(Duration.ofHours(3), expiresAfter);
+            vehicleIds.add(vehicleId);
+            restored.restoreRegistration(vehicleId, trip, expiresAfter);
+        });
+
+        assertEquals(List.of("10/1515"), vehicleIds);
+        assertFalse(restored.registerVehicleForTrip("10/1516", "2550", "2023-03-01", "12:15", "1"));
+    }
+
+    @Test
+    public void testRegistrationsAreSameAsInTripVehicleCacheDuringServiceDay() {
+        final TripVehicleCache tripVehicleCache = new TripVehicleCache(() -> TimeUnit.MILLISECONDS.toNanos(time.get()));
+        final Random random = new Random(42);
+
+        setTime("2023-03-01T04:00");
+        final long startOfDay = time.get();
+
+        //Trips start every minute from 05:00 to 01:59, some of the trips are served by two vehicles
+        final List<long[]> trips = new ArrayList<>();
+        final Map<Integer, TripDescriptor> tripDescriptors = new HashMap<>();
+        for (int minute = 60; minute < 22 * 60; minute++) {
+            final int tripIndex = trips.size();
+            final int startMinute = minute + 4 * 60;
+            final int vehicles = random.nextInt(20) == 0 ? 2 : 1;
+            trips.add(new long[] { startOfDay + TimeUnit.MINUTES.toMillis(minute), 10 + random.nextInt(80), vehicles });
+            tripDescriptors.put(tripIndex, new TripDescriptor(String.valueOf(1000 + random.nextInt(10)), "2023-03-01",
+                    String.format("%02d:%02d", startMinute / 60 % 24, startMinute % 60), String.valueOf(1 + random.nextInt(2))));
+        }
+
+        final Map<String, VehicleState> cacheStates = new HashMap<>();
+        final Map<String, VehicleState> registryStates = new HashMap<>();
+        int registrations = 0;
+
+        //Vehicles send a message every minute from 10 minutes before the start of the trip until the end of the trip
+        for (long now = startOfDay; now < startOfDay + TimeUnit.HOURS.toMillis(25); now += TimeUnit.MINUTES.toMillis(1)) {
+            time.set(now);
+
+            for (int i = 0; i < trips.size(); i++) {
+                final long[] trip = trips.get(i);
+                if (now < trip[0] - TimeUnit.MINUTES.toMillis(10) || now > trip[0] + TimeUnit.MINUTES.toMillis(trip[1])) {
+                    continue;
+                }
+
+                final TripDescriptor tripDescriptor = tripDescriptors.get(i);
+                for (int vehicle = 0; vehicle < trip[2]; vehicle++) {
+                    final String vehicleId = "22/" + (i * 2 + vehicle);
+
+                    final boolean registeredToCache = tripVehicleCache.registerVehicleForTrip(cacheStates.computeIfAbsent(vehicleId, id -> new VehicleState(22, 0)),
+                            vehicleId, tripDescriptor.routeId, tripDescriptor.operatingDay, tripDescriptor.startTime, tripDescriptor.directionId);
+                    final boolean registeredToRegistry = tripRegistry.registerVehicleForTrip(registryStates.computeIfAbsent(vehicleId, id -> new VehicleState(22, 0)),
+                            vehicleId, tripDescriptor.routeId, tripDescriptor.operatingDay, tripDescriptor.startTime, tripDescriptor.directionId);
+
+                    assertEquals("Registration of " + vehicleId + " for trip " + tripDescriptor + " at " + now, registeredToCache, registeredToRegistry);
+                    registrations++;
+                }
+            }
+        }
+
+        assertTrue(registrations > trips.size());
+
+        //All registrations have expired after the service day and buckets are dropped on the next registration
+        time.addAndGet(TimeUnit.HOURS.toMillis(5));
+        assertTrue(tripRegistry.registerVehicleForTrip("22/99999", "9999", "2023-03-02", "12:00", "1"));
+
+        final List<TripDescriptor> remaining = new ArrayList<>();
+        tripVehicleCache.forEachRegistration((vehicleId, trip, expiresAfter) -> remaining.add(trip));
+        assertEquals(List.of(), remaining);
+        assertEquals(Map.of("2023-03-02 12", 1), getBucketSizes());
+    }
+}
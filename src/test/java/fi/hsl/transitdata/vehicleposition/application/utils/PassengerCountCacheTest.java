@@ -1,22 +1,31 @@
 package fi.hsl.transitdata.vehicleposition.application.utils;
 
 import fi.hsl.common.passengercount.proto.PassengerCount;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class PassengerCountCacheTest {
     private PassengerCountCache passengerCountCache;
+    private VehicleState vehicleState;
 
     @Before
     public void setup() {
         passengerCountCache = new PassengerCountCache();
+        vehicleState = new VehicleState(1, 1);
     }
 
     @Test
     public void testPassengerCountCache() {
-        passengerCountCache.updatePassengerCount("1/1", "1", "2021-01-01", "12:00", "1", PassengerCount.Payload.newBuilder()
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1", PassengerCount.Payload.newBuilder()
                         .setDesi("1")
                         .setDir("1")
                         .setJrn(1)
@@ -40,7 +49,96 @@ public class PassengerCountCacheTest {
                                 .build())
                 .build());
 
-        assertNotNull(passengerCountCache.getPassengerCount("1/1", "1", "2021-01-01", "12:00", "1"));
-        assertEquals(0.25, passengerCountCache.getPassengerCount("1/1", "1", "2021-01-01", "12:00", "1").getVehicleCounts().getVehicleLoadRatio(), 0.00001);
+        assertNull(passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:30", "1"));
+        assertNotNull(passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1"));
+        assertEquals(0.25, passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1").getVehicleLoadRatio(), 0.00001);
+    }
+
+    private static PassengerCount.Payload createPayload(double vehicleLoadRatio) {
+        return PassengerCount.Payload.newBuilder()
+                .setRoute("1")
+                .setOday("2021-01-01")
+                .setStart("12:00")
+                .setDir("1")
+                .setVehicleCounts(PassengerCount.VehicleCounts.newBuilder()
+                        .setCountQuality("")
+                        .setVehicleLoad(10)
+                        .setVehicleLoadRatio(vehicleLoadRatio))
+                .build();
+    }
+
+    @Test
+    public void testPassengerCountExpires() {
+        final AtomicLong currentTimeMs = new AtomicLong(0);
+        final Clock clock = mock(Clock.class);
+        when(clock.millis()).thenAnswer(invocation -> currentTimeMs.get());
+
+        passengerCountCache = new PassengerCountCache(Duration.ofMinutes(1), 0, clock);
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1", createPayload(0.25));
+
+        currentTimeMs.set(Duration.ofSeconds(59).toMillis());
+        assertNotNull(passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1"));
+
+        currentTimeMs.set(Duration.ofMinutes(1).toMillis());
+        assertNull(passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1"));
+
+        //Expired passenger count is replaced by a new one
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1", createPayload(0.5));
+        assertEquals(0.5, passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1").getVehicleLoadRatio(), 0.00001);
+    }
+
+    @Test
+    public void testLeastRecentlyUpdatedVehicleIsRemovedWhenFull() {
+        passengerCountCache = new PassengerCountCache(Duration.ofMinutes(5), 2, Clock.systemUTC());
+
+        final VehicleState vehicleState2 = new VehicleState(1, 2);
+        final VehicleState vehicleState3 = new VehicleState(1, 3);
+
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1", createPayload(0.1));
+        passengerCountCache.updatePassengerCount(vehicleState2, "1", "2021-01-01", "12:00", "1", createPayload(0.2));
+        //Updating an existing passenger count does not take more room, but makes it the most recently updated
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1", createPayload(0.15));
+        assertEquals(2, passengerCountCache.size());
+
+        passengerCountCache.updatePassengerCount(vehicleState3, "1", "2021-01-01", "12:00", "1", createPayload(0.3));
+        assertEquals(0.15, passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1").getVehicleLoadRatio(), 0.00001);
+        assertNull(vehicleState2.getPassengerCount());
+        assertNotNull(passengerCountCache.getPassengerCount(vehicleState3, "1", "2021-01-01", "12:00", "1"));
+        assertEquals(2, passengerCountCache.size());
+    }
+
+    @Test
+    public void testRemovedPassengerCountDoesNotTakeRoom() {
+        passengerCountCache = new PassengerCountCache(Duration.ofMinutes(5), 2, Clock.systemUTC());
+
+        final VehicleState vehicleState2 = new VehicleState(1, 2);
+        final VehicleState vehicleState3 = new VehicleState(1, 3);
+
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1", createPayload(0.1));
+        passengerCountCache.updatePassengerCount(vehicleState2, "1", "2021-01-01", "12:00", "1", createPayload(0.2));
+        //State of the vehicle was removed from the store
+        passengerCountCache.remove(vehicleState2);
+        assertNull(vehicleState2.getPassengerCount());
+        assertEquals(1, passengerCountCache.size());
+
+        passengerCountCache.updatePassengerCount(vehicleState3, "1", "2021-01-01", "12:00", "1", createPayload(0.3));
+        assertNotNull(passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1"));
+        assertNotNull(passengerCountCache.getPassengerCount(vehicleState3, "1", "2021-01-01", "12:00", "1"));
+    }
+
+    @Test
+    public void testLatePassengerCountOfPreviousTripDoesNotReplaceCurrentTrip() {
+        vehicleState.setTrip(new TripDescriptor("1", "2021-01-01", "12:00", "1"), true);
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1", createPayload(0.25));
+
+        //Passenger count of the previous trip was received after the vehicle had started the current trip
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "11:00", "1", createPayload(0.75));
+        assertEquals(0.25, passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "12:00", "1").getVehicleLoadRatio(), 0.00001);
+        assertNull(passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "11:00", "1"));
+
+        //Passenger count of the next trip replaces the current one when the vehicle is registered for the next trip
+        vehicleState.setTrip(new TripDescriptor("1", "2021-01-01", "13:00", "1"), true);
+        passengerCountCache.updatePassengerCount(vehicleState, "1", "2021-01-01", "13:00", "1", createPayload(0.5));
+        assertEquals(0.5, passengerCountCache.getPassengerCount(vehicleState, "1", "2021-01-01", "13:00", "1").getVehicleLoadRatio(), 0.00001);
     }
 }
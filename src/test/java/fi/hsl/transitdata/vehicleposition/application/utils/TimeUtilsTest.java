@@ -4,6 +4,10 @@ import fi.hsl.common.hfp.proto.Hfp;
 import fi.hsl.transitdata.vehicleposition.application.utils.TimeUtils;
 import org.junit.Test;
 
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
 import static org.junit.Assert.assertEquals;
 
 public class TimeUtilsTest {
@@ -91,4 +95,110 @@ public class TimeUtilsTest {
 
         assertEquals("24:05:00", TimeUtils.getStartTime(data));
     }
+
+    @Test
+    public void testParseTimeWithSigns() {
+        assertEquals(TimeUtils.hhMmToSeconds("01:30"), TimeUtils.hhMmToSeconds("+1:30"));
+    }
+
+    @Test
+    public void testGetStartTimeEquivalentToReferenceImplementation() {
+        //Regular days, days when DST starts and ends and a leap day
+        final String[] odays = { "2019-06-28", "2019-12-17", "2019-03-31", "2019-10-27", "2023-03-26", "2023-10-29", "2024-02-29" };
+
+        for (String oday : odays) {
+            final long startOfDay = LocalDate.parse(oday).atStartOfDay(ZoneId.of("Europe/Helsinki")).toEpochSecond();
+
+            for (int startMinutes = 0; startMinutes < 30 * 60; startMinutes++) {
+                final String start = String.format("%02d:%02d", startMinutes / 60, startMinutes % 60);
+
+                //Timestamps from 12 hours before the operating day until 48 hours after its beginning
+                for (long tsi = startOfDay - 12 * 3600 + startMinutes % 61; tsi < startOfDay + 48 * 3600; tsi += 47 * 60) {
+                    assertStartTimeEquivalent(tsi, oday, start);
+                }
+
+                //Timestamps around the 12-hour limit
+                final long startTime = startOfDay + startMinutes * 60;
+                for (long tsi : new long[] { startTime - 1, startTime, startTime + 1, startTime + 43199, startTime + 43200, startTime + 43259, startTime + 43260, startTime + 43261 }) {
+                    assertStartTimeEquivalent(tsi, oday, start);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGetStartTimeEquivalentToReferenceImplementationForUnusualStartTimes() {
+        final long startOfDay = LocalDate.parse("2019-06-28").atStartOfDay(ZoneId.of("Europe/Helsinki")).toEpochSecond();
+
+        for (String start : new String[] { "12:75", "+1:30", "05:30:00", "99:59", "9:30", "ab:cd", "" }) {
+            for (long tsi = startOfDay - 12 * 3600; tsi < startOfDay + 48 * 3600; tsi += 7 * 60 + 1) {
+                assertStartTimeEquivalent(tsi, "2019-06-28", start);
+            }
+        }
+    }
+
+    @Test
+    public void testGetStartTimeEquivalentToReferenceImplementationForInvalidOperatingDay() {
+        assertStartTimeEquivalent(1561683025, "2019-02-30", "12:00");
+        assertStartTimeEquivalent(1561683025, "20190628", "12:00");
+    }
+
+    private static void assertStartTimeEquivalent(long tsi, String oday, String start) {
+        final Hfp.Data data = Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setOday(oday)
+                        .setTst(Instant.ofEpochSecond(tsi).toString())
+                        .setTsi(tsi)
+                        .setStart(start))
+                .build();
+
+        String expected;
+        try {
+            expected = getStartTimeReference(data);
+        } catch (RuntimeException e) {
+            expected = e.getClass().getName();
+        }
+
+        String actual;
+        try {
+            actual = TimeUtils.getStartTime(data);
+        } catch (RuntimeException e) {
+            actual = e.getClass().getName();
+        }
+
+        assertEquals("tsi: " + tsi + ", oday: " + oday + ", start: " + start, expected, actual);
+    }
+
+    //Original implementation of TimeUtils.getStartTime, which formatted and parsed the timestamp for every call
+    private static String getStartTimeReference(Hfp.Data data) {
+        final ZoneId tz = ZoneId.of("Europe/Helsinki");
+
+        final ZonedDateTime timeZonedTst = ZonedDateTime.ofInstant(Instant.ofEpochSecond(data.getPayload().getTsi()), ZoneOffset.UTC).withZoneSameInstant(tz);
+        final String formattedTimeZonedTst = timeZonedTst.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+
+        final String oday = data.getPayload().getOday();
+        final String tstDay = formattedTimeZonedTst.substring(0, 10);
+
+        final ZonedDateTime startTimeOday = LocalDate.parse(oday).atStartOfDay(tz).plus(hhMmToSecondsReference(data.getPayload().getStart()), ChronoUnit.SECONDS);
+
+        if (oday.equals(tstDay) &&
+                startTimeOday.until(timeZonedTst, ChronoUnit.MINUTES) <= 12 * 60) {
+            return data.getPayload().getStart()+":00";
+        } else {
+            int tstTime = hhMmToSecondsReference(formattedTimeZonedTst.substring(11, 16));
+            int startTime = hhMmToSecondsReference(data.getPayload().getStart());
+
+            if (startTime <= tstTime) {
+                startTime += 86400;
+            }
+
+            return TimeUtils.formatTime(startTime);
+        }
+    }
+
+    private static int hhMmToSecondsReference(String hhMm) {
+        return Integer.parseInt(hhMm.substring(0, 2)) * 60 * 60 + Integer.parseInt(hhMm.substring(3, 5)) * 60;
+    }
 }
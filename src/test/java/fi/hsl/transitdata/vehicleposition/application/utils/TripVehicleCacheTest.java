@@ -1,17 +1,25 @@
 package fi.hsl.transitdata.vehicleposition.application.utils;
 
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 import fi.hsl.transitdata.vehicleposition.application.utils.TripVehicleCache;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static org.junit.Assert.*;
 
 public class TripVehicleCacheTest {
+    private AtomicLong time;
     private TripVehicleCache tripVehicleCache;
 
     @Before
     public void setup() {
-        tripVehicleCache = new TripVehicleCache();
+        time = new AtomicLong();
+        tripVehicleCache = new TripVehicleCache(time::get);
     }
 
     @Test
@@ -30,4 +38,82 @@ public class TripVehicleCacheTest {
         assertTrue(tripVehicleCache.registerVehicleForTrip("10/1515", "2550", "2019-08-17", "09:16", "1"));
         assertTrue(tripVehicleCache.registerVehicleForTrip("10/1515", "2550", "2019-08-17", "09:16", "1"));
     }
+
+    @Test
+    public void testRegistrationsCanBeRestored() {
+        assertTrue(tripVehicleCache.registerVehicleForTrip("10/1515", "2550", "2019-08-17", "09:16", "1"));
+
+        final List<String> vehicleIds = new ArrayList<>();
+        final TripVehicleCache restored = new TripVehicleCache();
+        tripVehicleCache.forEachRegistration((vehicleId, trip, expiresAfter) -> {
+            assertTrue(expiresAfter.compareTo(Duration.ofHours(3)) <= 0);
+            vehicleIds.add(vehicleId);
+            restored.restoreRegistration(vehicleId, trip, expiresAfter);
+        });
+
+        assertEquals(List.of("10/1515"), vehicleIds);
+        assertFalse(restored.registerVehicleForTrip("10/1516", "2550", "2019-08-17", "09:16", "1"));
+    }
+
+    @Test
+    public void testSameTripIsNotRegisteredAgainForVehicleState() {
+        final VehicleState vehicleState = new VehicleState(10, 1515);
+
+        assertTrue(tripVehicleCache.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2019-08-17", "09:16", "1"));
+        final TripDescriptor trip = vehicleState.getTrip();
+
+        assertTrue(tripVehicleCache.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2019-08-17", "09:16", "1"));
+        assertSame(trip, vehicleState.getTrip());
+        assertTrue(vehicleState.isRegisteredForTrip());
+    }
+
+    @Test
+    public void testTripChangeIsRegistered() {
+        final VehicleState vehicleState = new VehicleState(10, 1515);
+
+        assertTrue(tripVehicleCache.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2019-08-17", "09:16", "1"));
+        assertTrue(tripVehicleCache.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2019-08-17", "10:16", "2"));
+        assertEquals(new TripDescriptor("2550", "2019-08-17", "10:16", "2"), vehicleState.getTrip());
+
+        //Registration of the previous trip is kept until it expires
+        assertFalse(tripVehicleCache.registerVehicleForTrip(new VehicleState(10, 1516), "10/1516", "2550", "2019-08-17", "09:16", "1"));
+        assertFalse(tripVehicleCache.registerVehicleForTrip(new VehicleState(10, 1516), "10/1516", "2550", "2019-08-17", "10:16", "2"));
+    }
+
+    @Test
+    public void testOtherVehicleCanBeRegisteredAfterRegistrationExpires() {
+        final VehicleState otherVehicleState = new VehicleState(10, 1516);
+
+        assertTrue(tripVehicleCache.registerVehicleForTrip(new VehicleState(10, 1515), "10/1515", "2550", "2019-08-17", "09:16", "1"));
+        assertFalse(tripVehicleCache.registerVehicleForTrip(otherVehicleState, "10/1516", "2550", "2019-08-17", "09:16", "1"));
+
+        time.addAndGet(Duration.ofHours(3).minusSeconds(1).toNanos());
+        assertFalse(tripVehicleCache.registerVehicleForTrip(otherVehicleState, "10/1516", "2550", "2019-08-17", "09:16", "1"));
+
+        time.addAndGet(Duration.ofSeconds(1).toNanos());
+        assertTrue(tripVehicleCache.registerVehicleForTrip(otherVehicleState, "10/1516", "2550", "2019-08-17", "09:16", "1"));
+        assertTrue(otherVehicleState.isRegisteredForTrip());
+    }
+
+    @Test
+    public void testVehicleIsRegisteredAgainAfterRegistrationExpires() {
+        final VehicleState vehicleState = new VehicleState(10, 1515);
+
+        assertTrue(tripVehicleCache.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2019-08-17", "09:16", "1"));
+
+        time.addAndGet(Duration.ofHours(3).toNanos());
+        assertTrue(tripVehicleCache.registerVehicleForTrip(vehicleState, "10/1515", "2550", "2019-08-17", "09:16", "1"));
+
+        assertFalse(tripVehicleCache.registerVehicleForTrip(new VehicleState(10, 1516), "10/1516", "2550", "2019-08-17", "09:16", "1"));
+    }
+
+    @Test
+    public void testRestoredVehicleStateIsCheckedFromCache() {
+        final VehicleState vehicleState = new VehicleState(10, 1516);
+        vehicleState.setTrip(new TripDescriptor("2550", "2019-08-17", "09:16", "1"), true);
+
+        assertTrue(tripVehicleCache.registerVehicleForTrip("10/1515", "2550", "2019-08-17", "09:16", "1"));
+        assertFalse(tripVehicleCache.registerVehicleForTrip(vehicleState, "10/1516", "2550", "2019-08-17", "09:16", "1"));
+        assertFalse(vehicleState.isRegisteredForTrip());
+    }
 }
@@ -1,6 +1,7 @@
 package fi.hsl.transitdata.vehicleposition.application.utils;
 
 import fi.hsl.common.hfp.proto.Hfp;
+import fi.hsl.transitdata.vehicleposition.application.VehicleState;
 import fi.hsl.transitdata.vehicleposition.application.utils.VehicleTimestampValidator;
 import org.junit.Before;
 import org.junit.Test;
@@ -9,10 +10,12 @@ import static org.junit.Assert.*;
 
 public class VehicleTimestampValidatorTest {
     private VehicleTimestampValidator validator;
+    private VehicleState vehicleState;
 
     @Before
     public void setup() {
         validator = new VehicleTimestampValidator(5);
+        vehicleState = new VehicleState(1, 1);
     }
 
     @Test
@@ -35,7 +38,7 @@ public class VehicleTimestampValidatorTest {
                     .setTsi(10))
                 .build();
 
-        assertFalse(validator.validateTimestamp(data, 3000));
+        assertFalse(validator.validateTimestamp(vehicleState, data, 3000));
     }
 
     @Test
@@ -58,7 +61,7 @@ public class VehicleTimestampValidatorTest {
                         .setTsi(10))
                 .build();
 
-        assertTrue(validator.validateTimestamp(data1, 10500));
+        assertTrue(validator.validateTimestamp(vehicleState, data1, 10500));
 
         Hfp.Data data2 = Hfp.Data.newBuilder()
                 .setSchemaVersion(1)
@@ -79,7 +82,7 @@ public class VehicleTimestampValidatorTest {
                 .build();
 
         //Vehicle position is ignored
-        assertFalse(validator.validateTimestamp(data2, 11500));
+        assertFalse(validator.validateTimestamp(vehicleState, data2, 11500));
 
         Hfp.Data data3 = Hfp.Data.newBuilder()
                 .setSchemaVersion(1)
@@ -99,6 +102,32 @@ public class VehicleTimestampValidatorTest {
                         .setTsi(12))
                 .build();
 
-        assertTrue(validator.validateTimestamp(data3, 12500));
+        assertTrue(validator.validateTimestamp(vehicleState, data3, 12500));
+    }
+
+    @Test
+    public void testCheckTimestampReturnsReason() {
+        Hfp.Data.Builder data = Hfp.Data.newBuilder()
+                .setSchemaVersion(1)
+                .setTopic(Hfp.Topic.newBuilder()
+                        .setSchemaVersion(1)
+                        .setUniqueVehicleId("1/1")
+                        .setReceivedAt(0)
+                        .setTopicPrefix("hfp")
+                        .setTopicVersion("v2")
+                        .setOperatorId(1)
+                        .setVehicleNumber(1))
+                .setPayload(Hfp.Payload.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTst("")
+                        .setTsi(10));
+
+        assertEquals(VehicleTimestampValidator.Result.FUTURE_TIMESTAMP, validator.checkTimestamp(vehicleState, data.build(), 3000));
+        assertEquals(VehicleTimestampValidator.Result.VALID, validator.checkTimestamp(vehicleState, data.build(), 10000));
+        //Same timestamp again is still valid
+        assertEquals(VehicleTimestampValidator.Result.VALID, validator.checkTimestamp(vehicleState, data.build(), 10000));
+
+        data.getPayloadBuilder().setTsi(9);
+        assertEquals(VehicleTimestampValidator.Result.OLDER_TIMESTAMP, validator.checkTimestamp(vehicleState, data.build(), 10000));
     }
 }